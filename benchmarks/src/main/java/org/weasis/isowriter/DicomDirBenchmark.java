@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.util.UIDUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records of one series added to the DICOMDIR and the DICOMDIR written, for series of increasing size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DicomDirBenchmark {
+
+    @Param({ "10", "100", "1000", "5000" })
+    public int seriesSize;
+
+    private File dir;
+    private List<ExportedInstance> instances;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("bench-dicomdir"); //$NON-NLS-1$
+        String studyUID = UIDUtils.createUID();
+        String seriesUID = UIDUtils.createUID();
+        File seriesDir = new File(dir, "DICOM"); //$NON-NLS-1$
+        instances = new ArrayList<>(seriesSize);
+        for (int i = 1; i <= seriesSize; i++) {
+            Attributes dataset = SyntheticData.newInstance("P1", studyUID, seriesUID, i); //$NON-NLS-1$
+            String fileID = IsoExporter.makeFileIDs(dataset.getString(Tag.SOPInstanceUID));
+            instances.add(new ExportedInstance(dataset, fileID, new File(seriesDir, fileID)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public int addRecords() {
+        DicomDirBuilder dicomdir = new DicomDirBuilder(new File(dir, "DICOMDIR")); //$NON-NLS-1$
+        for (ExportedInstance instance : instances) {
+            IsoExporter.writeInDicomDir(dicomdir, instance);
+        }
+        return dicomdir.getRecordCount();
+    }
+
+    @Benchmark
+    public long addRecordsAndWrite() throws IOException {
+        File file = new File(dir, "DICOMDIR"); //$NON-NLS-1$
+        DicomDirBuilder dicomdir = new DicomDirBuilder(file);
+        for (ExportedInstance instance : instances) {
+            IsoExporter.writeInDicomDir(dicomdir, instance);
+        }
+        dicomdir.write();
+        return file.length();
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.util.UIDUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.weasis.dicom.codec.DicomImageElement;
+
+/**
+ * Names of the files and of the folders of the image, computed for each exported instance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FileNameBenchmark {
+
+    private static final String[] FOLDER_NAMES =
+        { "Benchmark^Patient", "CT Thorax 2016-01-01", "Series 1 - CT Lung 1.25mm" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    private File dir;
+    private DicomImageElement image;
+    private String uid;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("bench-names"); //$NON-NLS-1$
+        image = SyntheticData.writeImage(new File(dir, "image.dcm"), 16); //$NON-NLS-1$
+        uid = UIDUtils.createUID();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public String makeFileIDs() {
+        return IsoExporter.makeFileIDs(uid);
+    }
+
+    @Benchmark
+    public String buildDicomPath() {
+        return IsoExporter.buildPath(image, false, true, true, FOLDER_NAMES);
+    }
+
+    @Benchmark
+    public String buildDicomPathWithNames() {
+        return IsoExporter.buildPath(image, true, false, false, FOLDER_NAMES);
+    }
+
+    @Benchmark
+    public String buildJpegPath() {
+        return IsoExporter.buildPath(image, false, FOLDER_NAMES);
+    }
+
+    @Benchmark
+    public String buildJpegPathWithNames() {
+        return IsoExporter.buildPath(image, true, FOLDER_NAMES);
+    }
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.weasis.dicom.codec.DicomImageElement;
+
+/**
+ * Icon of the DICOMDIR series records built from a rendered image, in grayscale and in color (palette conversion).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class IconBenchmark {
+
+    @Param({ "512", "2048" })
+    public int size;
+
+    private File dir;
+    private DicomImageElement image;
+    private BufferedImage gray;
+    private BufferedImage color;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("bench-icon"); //$NON-NLS-1$
+        image = SyntheticData.writeImage(new File(dir, "image.dcm"), 16); //$NON-NLS-1$
+        Random random = new Random(size);
+        gray = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+        color = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int rgb = random.nextInt(0x1000000);
+                gray.getRaster().setSample(x, y, 0, rgb & 0xFF);
+                color.setRGB(x, y, rgb);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public Attributes grayscaleIcon() {
+        return IsoExporter.mkIconItem(image, gray);
+    }
+
+    @Benchmark
+    public Attributes colorIcon() {
+        return IsoExporter.mkIconItem(image, color);
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.stephenc.javaisotools.iso9660.impl.ISOImageFileHandler;
+
+/**
+ * Mastering of an ISO image from a tree of small files, which measures the directory hierarchy and the writing of
+ * the image rather than the throughput of the disk. The handler "channel" is the one of the export
+ * ({@link ChannelStreamHandler}), "sabre" is the handler of java-iso-tools used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class IsoImageBenchmark {
+
+    @Param({ "1000", "10000", "50000" })
+    public int nbFiles;
+
+    @Param({ "4096" })
+    public int fileSize;
+
+    @Param({ "channel", "sabre" })
+    public String handler;
+
+    private File dir;
+    private File tree;
+    private File image;
+    private IsoExporter exporter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("bench-iso"); //$NON-NLS-1$
+        tree = new File(dir, "tree"); //$NON-NLS-1$
+        SyntheticData.writeTree(tree, nbFiles, fileSize);
+        image = new File(dir, "image.iso"); //$NON-NLS-1$
+        exporter = new IsoExporter(new ExportOptions(), new ExportProgress(), ExportLimits.UNLIMITED,
+            new File(dir, "burn")); //$NON-NLS-1$
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteImage() {
+        image.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public long makeISO() throws Exception {
+        IsoLayout layout = new IsoLayout(new File(dir, "layout"), false); //$NON-NLS-1$
+        layout.addTree(tree, ""); //$NON-NLS-1$
+        if ("sabre".equals(handler)) { //$NON-NLS-1$
+            exporter.writeISO(layout, new ISOImageFileHandler(image));
+            return image.length();
+        }
+        File result = exporter.makeISO(layout, image, () -> false);
+        if (result == null) {
+            throw new IllegalStateException("Cannot write the image"); //$NON-NLS-1$
+        }
+        return result.length();
+    }
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.UIDUtils;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.dicom.codec.DicomImageElement;
+import org.weasis.dicom.codec.DicomMediaIO;
+
+/**
+ * Synthetic DICOM data of the benchmarks, generated without any sample file.
+ */
+final class SyntheticData {
+
+    private SyntheticData() {
+    }
+
+    /**
+     * @return the attributes of a CT image without pixel data
+     */
+    static Attributes newInstance(String patientID, String studyUID, String seriesUID, int number) {
+        Attributes attributes = new Attributes();
+        attributes.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attributes.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+        attributes.setString(Tag.PatientID, VR.LO, patientID);
+        attributes.setString(Tag.PatientName, VR.PN, "Benchmark^" + patientID); //$NON-NLS-1$
+        attributes.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+        attributes.setString(Tag.StudyDate, VR.DA, "20160101"); //$NON-NLS-1$
+        attributes.setString(Tag.SeriesInstanceUID, VR.UI, seriesUID);
+        attributes.setString(Tag.Modality, VR.CS, "CT"); //$NON-NLS-1$
+        attributes.setInt(Tag.SeriesNumber, VR.IS, 1);
+        attributes.setInt(Tag.InstanceNumber, VR.IS, number);
+        return attributes;
+    }
+
+    /**
+     * Write a 16-bit grayscale image and read it as Weasis does.
+     */
+    static DicomImageElement writeImage(File file, int size) throws IOException {
+        Attributes attributes = newInstance("P1", UIDUtils.createUID(), UIDUtils.createUID(), 1); //$NON-NLS-1$
+        attributes.setInt(Tag.Rows, VR.US, size);
+        attributes.setInt(Tag.Columns, VR.US, size);
+        attributes.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attributes.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2"); //$NON-NLS-1$
+        attributes.setInt(Tag.BitsAllocated, VR.US, 16);
+        attributes.setInt(Tag.BitsStored, VR.US, 12);
+        attributes.setInt(Tag.HighBit, VR.US, 11);
+        attributes.setInt(Tag.PixelRepresentation, VR.US, 0);
+        byte[] pixels = new byte[size * size * 2];
+        Random random = new Random(size);
+        for (int i = 0; i < pixels.length; i += 2) {
+            pixels[i] = (byte) random.nextInt(256);
+            pixels[i + 1] = (byte) random.nextInt(16);
+        }
+        attributes.setBytes(Tag.PixelData, VR.OW, pixels);
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(attributes.createFileMetaInformation(UID.ExplicitVRLittleEndian), attributes);
+        }
+        DicomMediaIO reader = new DicomMediaIO(file);
+        MediaElement[] medias = reader.isReadableDicom() ? reader.getMediaElement() : null;
+        if (medias == null || medias.length == 0 || !(medias[0] instanceof DicomImageElement)) {
+            throw new IOException("Cannot read the synthetic image " + file); //$NON-NLS-1$
+        }
+        return (DicomImageElement) medias[0];
+    }
+
+    /**
+     * Write a tree of small files, 100 files per folder.
+     */
+    static void writeTree(File dir, int nbFiles, int fileSize) throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(nbFiles).nextBytes(content);
+        for (int i = 0; i < nbFiles; i++) {
+            File folder = new File(dir, String.format("D%04d", i / 100)); //$NON-NLS-1$
+            folder.mkdirs();
+            try (OutputStream out = Files.newOutputStream(new File(folder, String.format("I%07d", i)).toPath())) { //$NON-NLS-1$
+                out.write(content);
+            }
+        }
+    }
+
+    static File createTempDir(String name) throws IOException {
+        return Files.createTempDirectory(name).toFile();
+    }
+
+    static void delete(File dir) {
+        FileUtil.recursiveDelete(dir);
+    }
+}
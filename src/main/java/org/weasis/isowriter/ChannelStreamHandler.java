@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.weasis.core.api.util.FileUtil;
+
+import com.github.stephenc.javaisotools.sabre.DataReference;
+import com.github.stephenc.javaisotools.sabre.Element;
+import com.github.stephenc.javaisotools.sabre.Fixup;
+import com.github.stephenc.javaisotools.sabre.HandlerException;
+import com.github.stephenc.javaisotools.sabre.StreamHandler;
+
+/**
+ * Writes the ISO image in a file channel, instead of
+ * {@link com.github.stephenc.javaisotools.iso9660.impl.ISOImageFileHandler}.
+ * <p>
+ * The data is accumulated in a direct buffer and written sequentially by blocks which are a multiple of the sector
+ * size. The back-references (path tables, volume descriptors...) are patched in the buffer when they are not yet
+ * written, otherwise with positional writes in the same channel instead of opening the file again for each fixup.
+ */
+class ChannelStreamHandler implements StreamHandler {
+
+    static final int SECTOR_SIZE = 2048;
+    // 1 MB, a multiple of the sector size
+    static final int BUFFER_SIZE = 512 * SECTOR_SIZE;
+    private static final long SYNC_INTERVAL = 256L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ExportOptions.SyncPolicy syncPolicy;
+    // Position of the first byte of the buffer in the file
+    private long flushed;
+    private long lastSync;
+
+    ChannelStreamHandler(File file, ExportOptions.SyncPolicy syncPolicy) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.syncPolicy = syncPolicy == null ? ExportOptions.SyncPolicy.NONE : syncPolicy;
+    }
+
+    @Override
+    public void startDocument() throws HandlerException {
+        // Nothing to do
+    }
+
+    @Override
+    public void endDocument() throws HandlerException {
+        try {
+            flush();
+            if (syncPolicy != ExportOptions.SyncPolicy.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new HandlerException(e);
+        } finally {
+            close();
+        }
+    }
+
+    void close() {
+        FileUtil.safeClose(channel);
+    }
+
+    @Override
+    public void startElement(Element element) throws HandlerException {
+        // Nothing to do
+    }
+
+    @Override
+    public void endElement() throws HandlerException {
+        // Nothing to do
+    }
+
+    @Override
+    public void data(DataReference reference) throws HandlerException {
+        try (InputStream in = reference.createInputStream(); ReadableByteChannel source = Channels.newChannel(in)) {
+            long remaining = reference.getLength();
+            while (remaining > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int limit = buffer.limit();
+                if (buffer.remaining() > remaining) {
+                    buffer.limit(buffer.position() + (int) remaining);
+                }
+                int read = source.read(buffer);
+                buffer.limit(limit);
+                if (read < 0) {
+                    throw new HandlerException("Unexpected end of data, missing " + remaining + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            throw new HandlerException(e);
+        }
+    }
+
+    @Override
+    public Fixup fixup(DataReference reference) throws HandlerException {
+        long position = mark();
+        // Reserve the space with the placeholder data
+        data(reference);
+        return new ChannelFixup(position, reference.getLength());
+    }
+
+    @Override
+    public long mark() throws HandlerException {
+        return flushed + buffer.position();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer, flushed);
+        }
+        buffer.clear();
+        if (syncPolicy == ExportOptions.SyncPolicy.PERIODIC && flushed - lastSync >= SYNC_INTERVAL) {
+            channel.force(false);
+            lastSync = flushed;
+        }
+    }
+
+    /**
+     * Patch a range already reserved. The bytes still in the buffer are patched in place, so the buffer is never
+     * flushed early and the writes remain aligned; only the bytes already flushed are written at their position.
+     */
+    private void write(long position, DataReference reference) throws IOException {
+        byte[] bytes = new byte[SECTOR_SIZE];
+        try (InputStream in = reference.createInputStream()) {
+            long offset = position;
+            long remaining = reference.getLength();
+            while (remaining > 0) {
+                int read = in.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                // Bytes already written in the file
+                int written = (int) Math.max(0L, Math.min(read, flushed - offset));
+                ByteBuffer data = ByteBuffer.wrap(bytes, 0, written);
+                long end = offset;
+                while (data.hasRemaining()) {
+                    end += channel.write(data, end);
+                }
+                if (written < read) {
+                    // The position of the buffer is unchanged
+                    ByteBuffer pending = buffer.duplicate();
+                    pending.position((int) (offset + written - flushed));
+                    pending.put(bytes, written, read - written);
+                }
+                offset += read;
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Reserved space which is filled sequentially.
+     */
+    private class ChannelFixup implements Fixup {
+        private long position;
+        private long available;
+        private boolean closed;
+
+        ChannelFixup(long position, long available) {
+            this.position = position;
+            this.available = available;
+        }
+
+        @Override
+        public void data(DataReference reference) throws HandlerException {
+            if (closed) {
+                throw new HandlerException("Fixup already closed"); //$NON-NLS-1$
+            }
+            long length = reference.getLength();
+            if (length > available) {
+                throw new HandlerException("Fixup of " + available + " bytes is too small for " + length); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            try {
+                write(position, reference);
+                position += length;
+                available -= length;
+            } catch (IOException e) {
+                throw new HandlerException(e);
+            }
+        }
+
+        @Override
+        public void close() throws HandlerException {
+            closed = true;
+        }
+    }
+}
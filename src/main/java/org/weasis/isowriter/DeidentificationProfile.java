@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.StringUtil;
+
+/**
+ * The attributes changed by the de-identification of the exported DICOM files.
+ * <p>
+ * The default profile is a subset of the Basic Application Level Confidentiality Profile (DICOM PS3.15, annex E): the
+ * identifying attributes of the patient, of the physicians and of the institution are removed or emptied, the patient
+ * ID is replaced by a pseudonym, the private attributes are removed and the UIDs are replaced. The dates are kept.
+ * <p>
+ * A profile file changes the default profile. It is a properties file whose keys are the tags in hexadecimal (e.g.
+ * 00100010) and whose values are the actions: keep, remove, empty, hash or replace:value. The keys private_tags and
+ * uids accept the values keep and remove, respectively keep and remap.
+ */
+public final class DeidentificationProfile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeidentificationProfile.class);
+
+    static final String PRIVATE_TAGS = "private_tags"; //$NON-NLS-1$
+    static final String UIDS = "uids"; //$NON-NLS-1$
+
+    public enum Action {
+        KEEP, REMOVE, EMPTY,
+        // Replace by a pseudonym, the same value has always the same pseudonym with the same key
+        HASH,
+        // Replace by the value of the profile
+        REPLACE
+    }
+
+    private static final int[] REMOVED = { Tag.IssuerOfPatientID, Tag.OtherPatientIDs, Tag.OtherPatientIDsSequence,
+        Tag.OtherPatientNames, Tag.PatientBirthName, Tag.PatientMotherBirthName, Tag.PatientBirthTime,
+        Tag.PatientAddress, Tag.PatientTelephoneNumbers, Tag.MedicalRecordLocator, Tag.EthnicGroup, Tag.Occupation,
+        Tag.MilitaryRank, Tag.BranchOfService, Tag.CountryOfResidence, Tag.RegionOfResidence,
+        Tag.AdditionalPatientHistory, Tag.PatientComments, Tag.ReferencedPatientSequence,
+        Tag.ReferringPhysicianAddress, Tag.ReferringPhysicianTelephoneNumbers, Tag.PhysiciansOfRecord,
+        Tag.PerformingPhysicianName, Tag.NameOfPhysiciansReadingStudy, Tag.OperatorsName, Tag.RequestingPhysician,
+        Tag.InstitutionName, Tag.InstitutionAddress, Tag.InstitutionalDepartmentName, Tag.StationName,
+        Tag.DeviceSerialNumber, Tag.AdmittingDiagnosesDescription, Tag.RequestAttributesSequence, Tag.ImageComments };
+
+    private static final int[] EMPTIED = { Tag.PatientBirthDate, Tag.ReferringPhysicianName, Tag.AccessionNumber,
+        Tag.StudyID, Tag.ContentCreatorName };
+
+    private final Map<Integer, Action> actions = new HashMap<>();
+    private final Map<Integer, String> replacements = new HashMap<>();
+    private boolean removePrivateTags = true;
+    private boolean remapUIDs = true;
+
+    /**
+     * @return a new instance of the default profile
+     */
+    public static DeidentificationProfile getDefault() {
+        DeidentificationProfile profile = new DeidentificationProfile();
+        for (int tag : REMOVED) {
+            profile.setAction(tag, Action.REMOVE, null);
+        }
+        for (int tag : EMPTIED) {
+            profile.setAction(tag, Action.EMPTY, null);
+        }
+        profile.setAction(Tag.PatientName, Action.REPLACE, "Anonymous"); //$NON-NLS-1$
+        profile.setAction(Tag.PatientID, Action.HASH, null);
+        return profile;
+    }
+
+    /**
+     * @param file
+     *            the profile file changing the default profile, can be null
+     * @return the profile, the default profile when the file is null
+     * @throws IOException
+     *             when the file cannot be read: exporting with the default profile could keep the attributes which
+     *             must be removed
+     */
+    public static DeidentificationProfile load(File file) throws IOException {
+        DeidentificationProfile profile = getDefault();
+        if (file != null) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                properties.load(in);
+            }
+            profile.read(properties);
+        }
+        return profile;
+    }
+
+    void read(Properties properties) throws IOException {
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+            if (PRIVATE_TAGS.equals(key)) {
+                removePrivateTags = !"keep".equalsIgnoreCase(value); //$NON-NLS-1$
+            } else if (UIDS.equals(key)) {
+                remapUIDs = !"keep".equalsIgnoreCase(value); //$NON-NLS-1$
+            } else {
+                int tag;
+                try {
+                    tag = (int) Long.parseLong(key.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid tag in the de-identification profile: " + key, e); //$NON-NLS-1$
+                }
+                int index = value.indexOf(':');
+                String name = index < 0 ? value : value.substring(0, index);
+                try {
+                    Action action = Action.valueOf(name.trim().toUpperCase());
+                    setAction(tag, action, index < 0 ? null : value.substring(index + 1));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid action in the de-identification profile: " + value, e); //$NON-NLS-1$
+                }
+            }
+        }
+    }
+
+    /**
+     * @param value
+     *            the value of the action REPLACE
+     */
+    public void setAction(int tag, Action action, String value) {
+        if (action == null || action == Action.KEEP) {
+            actions.remove(tag);
+            replacements.remove(tag);
+        } else {
+            actions.put(tag, action);
+            if (action == Action.REPLACE) {
+                replacements.put(tag, StringUtil.hasText(value) ? value : ""); //$NON-NLS-1$
+            } else if (value != null) {
+                LOGGER.warn("The value of {} is ignored with the action {}", Integer.toHexString(tag), action); //$NON-NLS-1$
+            }
+        }
+    }
+
+    public Action getAction(int tag) {
+        Action action = actions.get(tag);
+        return action == null ? Action.KEEP : action;
+    }
+
+    public String getReplacement(int tag) {
+        return replacements.get(tag);
+    }
+
+    public boolean isRemovePrivateTags() {
+        return removePrivateTags;
+    }
+
+    public void setRemovePrivateTags(boolean removePrivateTags) {
+        this.removePrivateTags = removePrivateTags;
+    }
+
+    /**
+     * @return true when the UIDs of the instances are replaced by new UIDs, which are the same for all the files of
+     *         the export
+     */
+    public boolean isRemapUIDs() {
+        return remapUIDs;
+    }
+
+    public void setRemapUIDs(boolean remapUIDs) {
+        this.remapUIDs = remapUIDs;
+    }
+}
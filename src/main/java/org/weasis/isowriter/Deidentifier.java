@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.TagUtils;
+
+/**
+ * Applies a {@link DeidentificationProfile} to the datasets of an export.
+ * <p>
+ * The UIDs and the pseudonyms are derived from the original values with a keyed hash, so an instance, its
+ * presentation states and its DICOMDIR record reference the same new UIDs, even when the export is resumed. The
+ * original values cannot be found without the key. The instances are modified concurrently by the workers.
+ */
+final class Deidentifier {
+
+    private static final String ALGORITHM = "HmacSHA256"; //$NON-NLS-1$
+    // The UID of a UUID (DICOM PS3.5, annex B.2)
+    private static final String UUID_ROOT = "2.25."; //$NON-NLS-1$
+    // Hashed with the key to identify the key without revealing it
+    private static final String KEY_ID_LABEL = "Weasis ISO export key identifier"; //$NON-NLS-1$
+
+    private final DeidentificationProfile profile;
+    private final SecretKeySpec key;
+    private final Map<String, String> uids = new ConcurrentHashMap<>();
+
+    /**
+     * @param key
+     *            the secret of the pseudonyms
+     */
+    Deidentifier(DeidentificationProfile profile, String key) {
+        if (profile == null || key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Profile and key cannot be null"); //$NON-NLS-1$
+        }
+        this.profile = profile;
+        this.key = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        try {
+            Mac.getInstance(ALGORITHM).init(this.key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot create the pseudonyms", e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @param key
+     *            the secret of the pseudonyms
+     * @return an identifier of the key, the keyed hash of a fixed label, which tells whether two exports use the same
+     *         key. Unlike a plain hash, it is specific to this use and does not match the precomputed digests of
+     *         common secrets.
+     */
+    static String getKeyId(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Key cannot be null"); //$NON-NLS-1$
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            byte[] id = mac.doFinal(KEY_ID_LABEL.getBytes(StandardCharsets.UTF_8));
+            return toHex(id, id.length);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot identify the key", e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * De-identify a dataset and its sequences. The bulk data is not read.
+     *
+     * @return the same dataset
+     */
+    Attributes apply(Attributes dataset) {
+        applyProfile(dataset);
+        dataset.setString(Tag.PatientIdentityRemoved, VR.CS, "YES"); //$NON-NLS-1$
+        dataset.setString(Tag.DeidentificationMethod, VR.LO, "Weasis ISO export"); //$NON-NLS-1$
+        return dataset;
+    }
+
+    private void applyProfile(Attributes attributes) {
+        // The values are removed during the iteration
+        int[] tags = attributes.tags();
+        tags = Arrays.copyOf(tags, tags.length);
+        for (int tag : tags) {
+            if (profile.isRemovePrivateTags() && TagUtils.isPrivateTag(tag)) {
+                attributes.remove(tag);
+                continue;
+            }
+            VR vr = attributes.getVR(tag);
+            DeidentificationProfile.Action action = profile.getAction(tag);
+            if (action == DeidentificationProfile.Action.REMOVE) {
+                attributes.remove(tag);
+            } else if (action == DeidentificationProfile.Action.EMPTY
+                || vr == VR.SQ && action != DeidentificationProfile.Action.KEEP) {
+                attributes.setNull(tag, vr);
+            } else if (action == DeidentificationProfile.Action.REPLACE) {
+                attributes.setString(tag, vr, profile.getReplacement(tag));
+            } else if (action == DeidentificationProfile.Action.HASH) {
+                String[] values = attributes.getStrings(tag);
+                if (values != null) {
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = values[i] == null || values[i].isEmpty() ? values[i] : getPseudonym(values[i]);
+                    }
+                    attributes.setString(tag, vr, values);
+                }
+            } else if (vr == VR.SQ) {
+                Sequence seq = attributes.getSequence(tag);
+                if (seq != null) {
+                    for (Attributes item : seq) {
+                        applyProfile(item);
+                    }
+                }
+            } else if (vr == VR.UI && profile.isRemapUIDs()) {
+                String[] values = attributes.getStrings(tag);
+                if (values != null) {
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = getUID(values[i]);
+                    }
+                    attributes.setString(tag, vr, values);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the new UID, the same UID when it is a standard UID (SOP class, transfer syntax, coding scheme...) or
+     *         when the UIDs are kept
+     */
+    String getUID(String uid) {
+        if (uid == null || uid.isEmpty() || !profile.isRemapUIDs() || !"?".equals(UID.nameOf(uid))) { //$NON-NLS-1$
+            return uid;
+        }
+        return uids.computeIfAbsent(uid, k -> UUID_ROOT + new BigInteger(1, Arrays.copyOf(hash(k), 16)));
+    }
+
+    /**
+     * @return a pseudonym of 16 characters
+     */
+    String getPseudonym(String value) {
+        return toHex(hash(value), 8);
+    }
+
+    /**
+     * @return a name of 8 characters, compatible with the file IDs of the DICOMDIR (see
+     *         {@link IsoExporter#makeFileIDs(String)})
+     */
+    String getFileID(String value) {
+        return value == null ? null : toHex(hash(value), 4);
+    }
+
+    private byte[] hash(String value) {
+        try {
+            // A Mac is not thread safe
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot create the pseudonyms", e); //$NON-NLS-1$
+        }
+    }
+
+    private static String toHex(byte[] bytes, int length) {
+        StringBuilder buffer = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            buffer.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            buffer.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return buffer.toString().toUpperCase();
+    }
+}
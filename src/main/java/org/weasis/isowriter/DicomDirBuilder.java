@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.media.DicomDirWriter;
+import org.dcm4che3.media.RecordType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.explorer.DicomDirLoader;
+
+/**
+ * Collects the records of a DICOMDIR in memory and writes the whole file at the end.
+ * <p>
+ * The patient, study, series and instance records are indexed by their keys, so adding an instance does not require
+ * to read the records already written. When writing, the records are appended in depth-first order, which is the
+ * natural order of the DICOMDIR file.
+ */
+public class DicomDirBuilder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DicomDirBuilder.class);
+
+    private final File file;
+    // Patient records and instances without study (key prefixed by the record type)
+    private final Map<String, Node> roots = new LinkedHashMap<>();
+    private int recordCount;
+
+    public DicomDirBuilder(File file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Add the records of a DICOM file, creating the patient, study and series records when necessary.
+     *
+     * @param dataset
+     *            the attributes of the DICOM file
+     * @param seriesIcon
+     *            the icon of the series, resolved only when writing the DICOMDIR (can be null)
+     * @param iuid
+     *            the key of the instance in its series
+     * @param destinationFile
+     *            the location of the DICOM file
+     */
+    public boolean add(Attributes dataset, Future<Attributes> seriesIcon, String iuid, File destinationFile) {
+        return add(dataset, seriesIcon, iuid, destinationFile, null);
+    }
+
+    /**
+     * Add the records of a DICOM file, creating the patient, study and series records when necessary.
+     *
+     * @param transferSyntax
+     *            the transfer syntax of the written file when it has been converted (can be null)
+     * @see #add(Attributes, Future, String, File)
+     */
+    public synchronized boolean add(Attributes dataset, Future<Attributes> seriesIcon, String iuid,
+        File destinationFile, String transferSyntax) {
+        if (dataset == null) {
+            return false;
+        }
+        Attributes fmi =
+            dataset.createFileMetaInformation(transferSyntax == null ? UID.ImplicitVRLittleEndian : transferSyntax);
+
+        String miuid = fmi.getString(Tag.MediaStorageSOPInstanceUID, null);
+
+        String pid = dataset.getString(Tag.PatientID, null);
+        String styuid = dataset.getString(Tag.StudyInstanceUID, null);
+        String seruid = dataset.getString(Tag.SeriesInstanceUID, null);
+
+        if (styuid != null && seruid != null) {
+            if (pid == null) {
+                pid = styuid;
+                dataset.setString(Tag.PatientID, VR.LO, pid);
+            }
+            Node patient = roots.get("P" + pid); //$NON-NLS-1$
+            if (patient == null) {
+                patient = newNode(DicomDirLoader.RecordFactory.createRecord(RecordType.PATIENT, null, dataset, null,
+                    null));
+                roots.put("P" + pid, patient); //$NON-NLS-1$
+            }
+            Node study = patient.getChildren().get(styuid);
+            if (study == null) {
+                study = newNode(DicomDirLoader.RecordFactory.createRecord(RecordType.STUDY, null, dataset, null, null));
+                patient.getChildren().put(styuid, study);
+            }
+            Node series = study.getChildren().get(seruid);
+            if (series == null) {
+                series = newNode(DicomDirLoader.RecordFactory.createRecord(RecordType.SERIES, null, dataset, null,
+                    null));
+                series.icon = seriesIcon;
+                study.getChildren().put(seruid, series);
+            }
+            if (!series.getChildren().containsKey(iuid)) {
+                series.getChildren().put(iuid,
+                    newNode(DicomDirLoader.RecordFactory.createRecord(dataset, fmi, toFileIDs(destinationFile))));
+            }
+        } else {
+            if (!roots.containsKey("I" + miuid)) { //$NON-NLS-1$
+                roots.put("I" + miuid, //$NON-NLS-1$
+                    newNode(DicomDirLoader.RecordFactory.createRecord(dataset, fmi, toFileIDs(destinationFile))));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write all the records in the DICOMDIR file.
+     */
+    public synchronized void write() throws IOException {
+        DicomDirWriter writer = DicomDirLoader.open(file);
+        try {
+            for (Node node : roots.values()) {
+                if (node.record != null) {
+                    writer.addRootDirectoryRecord(node.record);
+                    writeLowerRecords(writer, node);
+                }
+            }
+        } finally {
+            // Commit DICOMDIR changes and close the file
+            writer.close();
+        }
+    }
+
+    private void writeLowerRecords(DicomDirWriter writer, Node parent) throws IOException {
+        for (Node node : parent.getChildren().values()) {
+            if (node.record != null) {
+                addIcon(node);
+                writer.addLowerDirectoryRecord(parent.record, node.record);
+                if (node.children != null) {
+                    writeLowerRecords(writer, node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the records to a DICOMDIR which is already open, e.g. written sequentially with the {@link DicomDirWriter}.
+     * Each record is looked up in the file first, so the records already written are not added again. The writer is
+     * not closed.
+     */
+    public synchronized void writeTo(DicomDirWriter writer) throws IOException {
+        for (Entry<String, Node> entry : roots.entrySet()) {
+            Node node = entry.getValue();
+            if (node.record == null) {
+                continue;
+            }
+            if (entry.getKey().startsWith("I")) { //$NON-NLS-1$
+                if (writer.findRootInstanceRecord(false,
+                    node.record.getString(Tag.ReferencedSOPInstanceUIDInFile)) == null) {
+                    writer.addRootDirectoryRecord(node.record);
+                }
+                continue;
+            }
+            Attributes patient = writer.findPatientRecord(node.record.getString(Tag.PatientID));
+            if (patient == null) {
+                patient = node.record;
+                writer.addRootDirectoryRecord(patient);
+            }
+            for (Node study : node.getChildren().values()) {
+                Attributes studyRec = writer.findStudyRecord(patient, study.record.getString(Tag.StudyInstanceUID));
+                if (studyRec == null) {
+                    studyRec = study.record;
+                    writer.addLowerDirectoryRecord(patient, studyRec);
+                }
+                for (Node series : study.getChildren().values()) {
+                    Attributes seriesRec =
+                        writer.findSeriesRecord(studyRec, series.record.getString(Tag.SeriesInstanceUID));
+                    if (seriesRec == null) {
+                        addIcon(series);
+                        seriesRec = series.record;
+                        writer.addLowerDirectoryRecord(studyRec, seriesRec);
+                    }
+                    for (Node instance : series.getChildren().values()) {
+                        if (writer.findLowerInstanceRecord(seriesRec, false,
+                            instance.record.getString(Tag.ReferencedSOPInstanceUIDInFile)) == null) {
+                            writer.addLowerDirectoryRecord(seriesRec, instance.record);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addIcon(Node node) throws IOException {
+        if (node.icon != null) {
+            /*
+             * Icon Image Sequence (0088,0200).This Icon Image is representative of the Series. It may or may not
+             * correspond to one of the images of the Series.
+             */
+            Attributes iconItem = getIconItem(node.icon);
+            if (iconItem != null) {
+                node.record.newSequence(Tag.IconImageSequence, 1).add(iconItem);
+            }
+        }
+    }
+
+    public String[] toFileIDs(File f) {
+        Path path = file.getAbsoluteFile().getParentFile().toPath().relativize(f.getAbsoluteFile().toPath());
+        String[] ids = new String[path.getNameCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = path.getName(i).toString();
+        }
+        return ids;
+    }
+
+    private Node newNode(Attributes record) {
+        recordCount++;
+        return new Node(record);
+    }
+
+    private static Attributes getIconItem(Future<Attributes> seriesIcon) throws IOException {
+        try {
+            return seriesIcon.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building the series icon"); //$NON-NLS-1$
+        } catch (ExecutionException e) {
+            LOGGER.error("Cannot build the series icon", e.getCause()); //$NON-NLS-1$
+            return null;
+        }
+    }
+
+    private static class Node {
+        private final Attributes record;
+        private Map<String, Node> children;
+        private Future<Attributes> icon;
+
+        Node(Attributes record) {
+            this.record = record;
+        }
+
+        Map<String, Node> getChildren() {
+            if (children == null) {
+                children = new LinkedHashMap<>();
+            }
+            return children;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.explorer.ObservableEvent;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.MediaSeries;
+import org.weasis.core.api.media.data.MediaSeriesGroup;
+import org.weasis.dicom.explorer.DicomModel;
+
+/**
+ * Feeds a progressive export with the instances of patients, studies or series which are still being loaded in the
+ * {@link DicomModel}.
+ * <p>
+ * The model is scanned at each event of the model: an instance is added to the feed once its file is in the local
+ * cache. The feed is finished when the loading of the selected series is complete, which is also checked regularly as
+ * a cancelled loading may not send a {@link ObservableEvent.BasicAction#LOADING_STOP} event. The series created after
+ * the end of the loading are not exported.
+ */
+public class DicomModelFeed implements PropertyChangeListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DicomModelFeed.class);
+
+    // Delay between two checks of the loading, in milliseconds
+    static final long LOADING_CHECK_DELAY = 1000L;
+
+    private final DicomModel model;
+    private final List<MediaSeriesGroup> selection;
+    private final ExportFeed feed = new ExportFeed();
+    // Media of each series already examined
+    private final Map<MediaSeries<?>, SeriesScan> scans = new HashMap<>();
+    private Timer loadingCheck;
+    private int nbAdded;
+
+    /**
+     * @param selection
+     *            patients, studies or series of the model (see {@link ExportItem#fromModel})
+     */
+    public DicomModelFeed(DicomModel model, Collection<? extends MediaSeriesGroup> selection) {
+        if (model == null || selection == null) {
+            throw new IllegalArgumentException("Model and selection cannot be null"); //$NON-NLS-1$
+        }
+        this.model = model;
+        this.selection = new ArrayList<>(selection);
+    }
+
+    public ExportFeed getFeed() {
+        return feed;
+    }
+
+    /**
+     * Add the instances already loaded and listen to the model. The feed is finished immediately when nothing is
+     * loading.
+     */
+    public void start() {
+        model.addPropertyChangeListener(this);
+        update(true);
+        synchronized (this) {
+            if (!feed.isFinished()) {
+                loadingCheck = new Timer("Export feed loading check", true); //$NON-NLS-1$
+                loadingCheck.schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        update(true);
+                    }
+                }, LOADING_CHECK_DELAY, LOADING_CHECK_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Stop listening to the model and finish the feed. The instances whose file is not in the cache are not exported.
+     */
+    public synchronized void stop() {
+        model.removePropertyChangeListener(this);
+        if (loadingCheck != null) {
+            loadingCheck.cancel();
+            loadingCheck = null;
+        }
+        if (!feed.isFinished()) {
+            int dropped = 0;
+            for (SeriesScan scan : scans.values()) {
+                dropped += scan.pending.size();
+            }
+            if (dropped > 0) {
+                LOGGER.warn("{} instance(s) not exported, their file is not in the cache", dropped); //$NON-NLS-1$
+            }
+            feed.finish(dropped);
+        }
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        if (evt instanceof ObservableEvent && !feed.isFinished()) {
+            ObservableEvent.BasicAction action = ((ObservableEvent) evt).getActionCommand();
+            update(action == ObservableEvent.BasicAction.LOADING_STOP);
+        }
+    }
+
+    private void update(boolean checkLoading) {
+        if (feed.isFinished()) {
+            return;
+        }
+        /*
+         * The media are copied without holding the lock of the feed: a loader can notify the model while holding the
+         * lock of a series. The loading is checked before copying, so a complete series is entirely copied.
+         */
+        List<SeriesNode> nodes = getSeries();
+        List<List<MediaElement>> medias = new ArrayList<>(nodes.size());
+        boolean loading = false;
+        for (SeriesNode node : nodes) {
+            loading |= isLoading(node.series);
+            synchronized (node.series) {
+                medias.add(new ArrayList<>(node.series.getMedias(null, null)));
+            }
+        }
+        addAvailable(nodes, medias, checkLoading && !loading);
+    }
+
+    private synchronized void addAvailable(List<SeriesNode> nodes, List<List<MediaElement>> medias,
+        boolean complete) {
+        if (feed.isFinished()) {
+            return;
+        }
+        for (int k = 0; k < nodes.size(); k++) {
+            SeriesNode node = nodes.get(k);
+            List<MediaElement> list = medias.get(k);
+            SeriesScan scan = scans.computeIfAbsent(node.series, s -> new SeriesScan());
+            // The media are appended to the series while loading, only the new ones are examined
+            for (int i = scan.examined; i < list.size(); i++) {
+                scan.pending.add(list.get(i));
+            }
+            scan.examined = Math.max(scan.examined, list.size());
+            for (Iterator<MediaElement> iter = scan.pending.iterator(); iter.hasNext();) {
+                MediaElement media = iter.next();
+                File file = IsoLayout.getSourceFile(media);
+                if (file != null && file.canRead()) {
+                    feed.add(ExportItem.ofMedia(node.patient, node.study, node.series, media));
+                    nbAdded++;
+                    iter.remove();
+                }
+            }
+        }
+        if (complete) {
+            LOGGER.info("Loading complete, {} instance(s) to export", nbAdded); //$NON-NLS-1$
+            stop();
+        }
+    }
+
+    /**
+     * @return true while the series is loaded
+     */
+    boolean isLoading(MediaSeries<?> series) {
+        return series.getSeriesLoader() != null;
+    }
+
+    /**
+     * @return the series of the selection in the model
+     */
+    List<SeriesNode> getSeries() {
+        List<SeriesNode> list = new ArrayList<>();
+        for (MediaSeriesGroup group : selection) {
+            if (group instanceof MediaSeries) {
+                MediaSeriesGroup study = model.getParent(group, DicomModel.study);
+                MediaSeriesGroup patient = model.getParent(group, DicomModel.patient);
+                if (study != null && patient != null) {
+                    list.add(new SeriesNode(patient, study, (MediaSeries<?>) group));
+                }
+            } else if (DicomModel.patient.getTagElement().equals(group.getTagID())) {
+                for (MediaSeriesGroup study : model.getChildren(group)) {
+                    addStudy(list, group, study);
+                }
+            } else if (DicomModel.study.getTagElement().equals(group.getTagID())) {
+                MediaSeriesGroup patient = model.getParent(group, DicomModel.patient);
+                if (patient != null) {
+                    addStudy(list, patient, group);
+                }
+            }
+        }
+        return list;
+    }
+
+    private void addStudy(List<SeriesNode> list, MediaSeriesGroup patient, MediaSeriesGroup study) {
+        for (MediaSeriesGroup series : model.getChildren(study)) {
+            if (series instanceof MediaSeries) {
+                list.add(new SeriesNode(patient, study, (MediaSeries<?>) series));
+            }
+        }
+    }
+
+    static class SeriesNode {
+        private final Object patient;
+        private final Object study;
+        private final MediaSeries<?> series;
+
+        SeriesNode(Object patient, Object study, MediaSeries<?> series) {
+            this.patient = patient;
+            this.study = study;
+            this.series = series;
+        }
+    }
+
+    /**
+     * Media of a series examined by the previous scans.
+     */
+    private static class SeriesScan {
+        private int examined;
+        // Examined media whose file is not yet in the cache, in the order of the series
+        private final List<MediaElement> pending = new ArrayList<>();
+    }
+}
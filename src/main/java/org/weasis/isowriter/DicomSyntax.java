@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import org.dcm4che3.data.UID;
+
+/**
+ * Transfer syntax of the DICOM images written in the image.
+ */
+public enum DicomSyntax {
+    ORIGINAL("Original", null),
+
+    UNCOMPRESSED("Uncompressed", UID.ExplicitVRLittleEndian),
+
+    JPEG_LS_LOSSLESS("JPEG-LS lossless", UID.JPEGLSLossless),
+
+    JPEG_2000_LOSSLESS("JPEG 2000 lossless", UID.JPEG2000LosslessOnly);
+
+    private final String title;
+    private final String transferSyntaxUID;
+
+    private DicomSyntax(String title, String transferSyntaxUID) {
+        this.title = title;
+        this.transferSyntaxUID = transferSyntaxUID;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the UID of the transfer syntax, null when the original files are kept
+     */
+    public String getTransferSyntaxUID() {
+        return transferSyntaxUID;
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+
+    public static DicomSyntax getDicomSyntax(String name) {
+        if (name != null) {
+            try {
+                return DicomSyntax.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                // Do nothing
+            }
+        }
+        return ORIGINAL;
+    }
+}
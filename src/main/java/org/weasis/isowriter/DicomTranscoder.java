@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.imageio.codec.Compressor;
+import org.dcm4che3.imageio.codec.Decompressor;
+import org.dcm4che3.imageio.codec.TransferSyntaxType;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.SafeClose;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the DICOM files in a single pass: converts the images to another transfer syntax, like the dcm2dcm tool of
+ * dcm4che, and de-identifies the datasets. The pixel data is streamed from the original file to the written file.
+ */
+final class DicomTranscoder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DicomTranscoder.class);
+
+    private DicomTranscoder() {
+    }
+
+    /**
+     * The dataset of a written file, without its pixel data.
+     */
+    static final class Output {
+        private final Attributes dataset;
+        private final String transferSyntax;
+
+        Output(Attributes dataset, String transferSyntax) {
+            this.dataset = dataset;
+            this.transferSyntax = transferSyntax;
+        }
+
+        Attributes getDataset() {
+            return dataset;
+        }
+
+        String getTransferSyntax() {
+            return transferSyntax;
+        }
+    }
+
+    /**
+     * @param source
+     *            the original DICOM file
+     * @param destination
+     *            the written file
+     * @param tsuid
+     *            the UID of the target transfer syntax of the images, null to keep the transfer syntax
+     * @param deidentifier
+     *            the de-identification of the dataset, can be null
+     * @return the written dataset, or null when the file is not written: there is nothing to change or it cannot be
+     *         written. The original file must not be used in this case when deidentifier is not null.
+     */
+    static Output write(File source, File destination, String tsuid, Deidentifier deidentifier) {
+        Compressor compressor = null;
+        DicomInputStream dis = null;
+        try {
+            dis = new DicomInputStream(source);
+            // The pixel data is read by the codecs or by the output stream from the original file
+            dis.setIncludeBulkData(IncludeBulkData.URI);
+            Attributes fmi = dis.readFileMetaInformation();
+            Attributes dataset = dis.readDataset(-1, -1);
+            String from = fmi == null ? dis.getTransferSyntax() : fmi.getString(Tag.TransferSyntaxUID, null);
+            if (from == null) {
+                throw new IOException("Unknown transfer syntax"); //$NON-NLS-1$
+            }
+            boolean convert = tsuid != null && !tsuid.equals(from) && dataset.contains(Tag.PixelData);
+            if (!convert && deidentifier == null) {
+                return null;
+            }
+            String to = convert ? tsuid : from;
+            if (deidentifier != null) {
+                deidentifier.apply(dataset);
+            }
+            if (convert && TransferSyntaxType.forUID(to) != TransferSyntaxType.NATIVE) {
+                // The compressor decodes a compressed source
+                compressor = new Compressor(dataset, from);
+                compressor.compress(to);
+            } else if (convert && TransferSyntaxType.forUID(from) != TransferSyntaxType.NATIVE) {
+                Decompressor.decompress(dataset, from);
+            }
+            try (DicomOutputStream dos = new DicomOutputStream(destination)) {
+                dos.writeDataset(dataset.createFileMetaInformation(to), dataset);
+            }
+            dataset.remove(Tag.PixelData);
+            return new Output(dataset, to);
+        } catch (Exception e) {
+            if (deidentifier == null) {
+                LOGGER.error("Cannot convert {} to {}, the original file is kept", source, tsuid, e); //$NON-NLS-1$
+            } else {
+                LOGGER.error("Cannot de-identify {}, the instance is not exported", source, e); //$NON-NLS-1$
+            }
+            destination.delete();
+            return null;
+        } finally {
+            SafeClose.close(compressor);
+            SafeClose.close(dis);
+        }
+    }
+
+    /**
+     * @return the dataset of a DICOM file written by a previous export, without its pixel data, or null when it
+     *         cannot be read
+     */
+    static Output read(File file) {
+        try (DicomInputStream dis = new DicomInputStream(file)) {
+            Attributes fmi = dis.readFileMetaInformation();
+            Attributes dataset = dis.readDataset(-1, Tag.PixelData);
+            return new Output(dataset, fmi == null ? dis.getTransferSyntax() : fmi.getString(Tag.TransferSyntaxUID));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read {}", file, e); //$NON-NLS-1$
+            return null;
+        }
+    }
+
+    /**
+     * @return the transfer syntax of a DICOM file, null when it cannot be read
+     */
+    static String getTransferSyntax(File file) {
+        try (DicomInputStream dis = new DicomInputStream(file)) {
+            Attributes fmi = dis.readFileMetaInformation();
+            return fmi == null ? dis.getTransferSyntax() : fmi.getString(Tag.TransferSyntaxUID, null);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read the transfer syntax of {}", file, e); //$NON-NLS-1$
+            return null;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.dicom.codec.TagD;
+
+/**
+ * Journal of the work done by an export, so an export restarted after a cancellation or a crash skips the files and
+ * the volumes already written.
+ * <p>
+ * The working directories of an export are kept in a folder named from the ISO image. The journal is written next to
+ * this folder (it must not be part of the image), one line per completed file or volume. A file which exists in the
+ * working directory without being in the journal, or with another size, is incomplete and deleted when the checkpoint
+ * is opened. The secret of the de-identification is also kept next to this folder, readable only by the owner.
+ */
+final class ExportCheckpoint {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportCheckpoint.class);
+
+    // Working directories not used since this delay are removed
+    static final long ORPHAN_DELAY = TimeUnit.DAYS.toMillis(3);
+
+    private static final String JOURNAL_EXTENSION = ".journal"; //$NON-NLS-1$
+    private static final String SECRET_EXTENSION = ".key"; //$NON-NLS-1$
+    private static final String SIGNATURE = "S"; //$NON-NLS-1$
+    private static final String FILE = "F"; //$NON-NLS-1$
+    private static final String VOLUME = "V"; //$NON-NLS-1$
+
+    private final File dir;
+    private final File journal;
+    private final File secretFile;
+    // Relative path => size
+    private final Map<String, Long> files = new HashMap<>();
+    // Volume number => size of the image
+    private final Map<Integer, Long> volumes = new HashMap<>();
+    private Writer writer;
+    private boolean persistent;
+    private String secret;
+
+    private ExportCheckpoint(File dir) {
+        this.dir = dir;
+        this.journal = new File(dir.getParentFile(), dir.getName() + JOURNAL_EXTENSION);
+        this.secretFile = new File(dir.getParentFile(), dir.getName() + SECRET_EXTENSION);
+    }
+
+    /**
+     * Open the checkpoint of an export. When the journal has been written for another selection or other options, the
+     * previous work is discarded.
+     *
+     * @param root
+     *            the folder containing the working directories
+     * @param exportFile
+     *            the ISO image
+     * @param signature
+     *            the signature of the selection and the options (see {@link #getSignature})
+     */
+    static ExportCheckpoint open(File root, File exportFile, String signature) throws IOException {
+        ExportCheckpoint checkpoint = new ExportCheckpoint(new File(root, getKey(exportFile)));
+        if (!signature.equals(checkpoint.read())) {
+            if (checkpoint.journal.exists()) {
+                LOGGER.info("The previous export of {} does not match, it is restarted", exportFile); //$NON-NLS-1$
+            }
+            checkpoint.files.clear();
+            checkpoint.volumes.clear();
+            FileUtil.recursiveDelete(checkpoint.dir);
+            checkpoint.journal.delete();
+            // The files de-identified with the previous secret are discarded
+            checkpoint.secretFile.delete();
+        } else if (!checkpoint.files.isEmpty() || !checkpoint.volumes.isEmpty()) {
+            LOGGER.info("Resume the export of {}: {} file(s) and {} volume(s) already written", exportFile, //$NON-NLS-1$
+                checkpoint.files.size(), checkpoint.volumes.size());
+        }
+        checkpoint.persistent = true;
+        checkpoint.dir.mkdirs();
+        checkpoint.verify(checkpoint.dir);
+        boolean newJournal = !checkpoint.journal.exists();
+        checkpoint.writer = Files.newBufferedWriter(checkpoint.journal.toPath(), StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (newJournal) {
+            checkpoint.append(SIGNATURE + " " + signature); //$NON-NLS-1$
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @param dir
+     *            the working directory of an export which cannot be resumed
+     * @return a checkpoint without journal
+     */
+    static ExportCheckpoint temporary(File dir) {
+        return new ExportCheckpoint(dir);
+    }
+
+    private static String getKey(File exportFile) {
+        File file;
+        try {
+            file = exportFile.getCanonicalFile();
+        } catch (IOException e) {
+            file = exportFile.getAbsoluteFile();
+        }
+        String name = FileUtil.getValidFileNameWithoutHTML(file.getName());
+        return name + "-" + Integer.toHexString(file.getPath().hashCode()); //$NON-NLS-1$
+    }
+
+    /**
+     * @return a signature of the items and of the options changing the content of the image
+     */
+    static String getSignature(Iterable<ExportItem> items, ExportOptions options) {
+        long hash = 17;
+        int count = 0;
+        for (ExportItem item : items) {
+            MediaElement media = item.getMedia();
+            String uid = media == null ? "PR" : TagD.getTagValue(media, Tag.SOPInstanceUID, String.class); //$NON-NLS-1$
+            hash = 31 * hash + (uid == null ? 0 : uid.hashCode());
+            hash = 31 * hash + (media == null || media.getKey() == null ? 0 : media.getKey().hashCode());
+            count++;
+        }
+        return count + ":" + Long.toHexString(hash) + ":" + options.isAddJpeg() + ":" + options.getJpegQuality() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + ":" + options.isAddViewer() + ":" + options.isCopySources() + ":" + options.getCapacity() + ":" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+            + options.getLayoutOrder() + ":" + options.getDicomSyntax().name() + ":" //$NON-NLS-1$ //$NON-NLS-2$
+            + options.isPresentationPerSeries() + ":" + getDeidentificationSignature(options) + ":" //$NON-NLS-1$ //$NON-NLS-2$
+            + options.getFileSystem().name();
+    }
+
+    private static String getDeidentificationSignature(ExportOptions options) {
+        if (!options.isDeidentify()) {
+            return Boolean.FALSE.toString();
+        }
+        // The files de-identified with another key or another profile cannot be reused. Without key in the options,
+        // the secret of the checkpoint is used and discarded with the previous work. The journal only contains an
+        // identifier of the key of the options, never the key itself.
+        File profile = options.getDeidentificationProfile();
+        String key = options.getDeidentificationKey();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+            md.update((key == null || key.isEmpty() ? "" : "K" + Deidentifier.getKeyId(key)) //$NON-NLS-1$ //$NON-NLS-2$
+                .getBytes(StandardCharsets.UTF_8));
+            if (profile != null) {
+                md.update((":" + profile.getAbsolutePath() + ":" + profile.lastModified()) //$NON-NLS-1$ //$NON-NLS-2$
+                    .getBytes(StandardCharsets.UTF_8));
+            }
+            return toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Cannot compute the signature", e); //$NON-NLS-1$
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder buffer = new StringBuilder();
+        for (byte b : bytes) {
+            buffer.append(String.format("%02x", b)); //$NON-NLS-1$
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * @return the random secret of the de-identification, created once for the export. It is kept with the working
+     *         directories, so a resumed export creates the same pseudonyms. A temporary checkpoint keeps it in memory.
+     */
+    synchronized String getSecret() {
+        if (secret == null) {
+            if (persistent && secretFile.canRead()) {
+                try {
+                    String value = new String(Files.readAllBytes(secretFile.toPath()), StandardCharsets.UTF_8).trim();
+                    secret = value.isEmpty() ? null : value;
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot read the secret of the export {}", secretFile, e); //$NON-NLS-1$
+                }
+            }
+            if (secret == null) {
+                byte[] bytes = new byte[32];
+                new SecureRandom().nextBytes(bytes);
+                secret = toHex(bytes);
+                if (persistent) {
+                    if (!files.isEmpty()) {
+                        LOGGER.warn("The secret of the export {} is lost, the files are written again", dir); //$NON-NLS-1$
+                        files.clear();
+                    }
+                    writeSecret();
+                }
+            }
+        }
+        return secret;
+    }
+
+    private void writeSecret() {
+        try {
+            Files.deleteIfExists(secretFile.toPath());
+            Files.createFile(secretFile.toPath());
+            // Readable only by the owner before writing the secret
+            secretFile.setReadable(false, false);
+            secretFile.setWritable(false, false);
+            secretFile.setReadable(true, true);
+            secretFile.setWritable(true, true);
+            Files.write(secretFile.toPath(), secret.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write the secret of the export {}, it cannot be resumed", secretFile, e); //$NON-NLS-1$
+        }
+    }
+
+    private String read() {
+        if (!journal.canRead()) {
+            return null;
+        }
+        String signature = null;
+        try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // The last line can be truncated by a crash
+                String[] values = line.split(" ", 3); //$NON-NLS-1$
+                if (values.length == 2 && SIGNATURE.equals(values[0])) {
+                    signature = values[1];
+                } else if (values.length == 3 && FILE.equals(values[0])) {
+                    files.put(values[2], Long.valueOf(values[1]));
+                } else if (values.length == 3 && VOLUME.equals(values[0])) {
+                    volumes.put(Integer.valueOf(values[1]), Long.valueOf(values[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warn("Cannot read the export journal {}", journal, e); //$NON-NLS-1$
+        }
+        return signature;
+    }
+
+    /**
+     * Delete the files which are not complete.
+     */
+    private void verify(File folder) {
+        File[] children = folder.listFiles();
+        if (children != null) {
+            for (File file : children) {
+                if (file.isDirectory()) {
+                    verify(file);
+                } else if (!isDone(file)) {
+                    files.remove(getRelativePath(file));
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param number
+     *            the number of the volume, starting at 1
+     * @return the working directory of the volume
+     */
+    File getVolumeDir(int number) {
+        return new File(dir, String.valueOf(number));
+    }
+
+    /**
+     * @return true when the file has been completely written by a previous export
+     */
+    synchronized boolean isDone(File file) {
+        Long size = files.get(getRelativePath(file));
+        return size != null && file.isFile() && file.length() == size;
+    }
+
+    /**
+     * Record a file completely written.
+     */
+    synchronized void setDone(File file) {
+        if (file.isFile()) {
+            String path = getRelativePath(file);
+            files.put(path, file.length());
+            append(FILE + " " + file.length() + " " + path); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * @return true when the image of the volume has been completely written by a previous export
+     */
+    synchronized boolean isVolumeDone(int number, File image) {
+        Long size = volumes.get(number);
+        return size != null && image.isFile() && image.length() == size;
+    }
+
+    /**
+     * Record an image completely written. The working directory of the volume is not needed anymore.
+     */
+    synchronized void setVolumeDone(int number, File image) {
+        volumes.put(number, image.length());
+        append(VOLUME + " " + number + " " + image.length()); //$NON-NLS-1$ //$NON-NLS-2$
+        FileUtil.recursiveDelete(getVolumeDir(number));
+    }
+
+    private void append(String line) {
+        if (writer != null) {
+            try {
+                writer.write(line);
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot write the export journal {}", journal, e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Close the journal. The working directories are kept to resume the export.
+     */
+    synchronized void close() {
+        FileUtil.safeClose(writer);
+        writer = null;
+    }
+
+    /**
+     * Remove the journal and the working directories when the export is complete.
+     */
+    synchronized void dispose() {
+        close();
+        FileUtil.recursiveDelete(dir);
+        journal.delete();
+        secretFile.delete();
+    }
+
+    private String getRelativePath(File file) {
+        return dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Remove the working directories of the exports which have not been used for a while, e.g. after a crash, except
+     * those of the pending jobs.
+     *
+     * @param root
+     *            the folder containing the working directories
+     * @param pending
+     *            the ISO images of the pending jobs
+     */
+    static void cleanOrphans(File root, Set<File> pending) {
+        File[] children = root.listFiles();
+        if (children == null) {
+            return;
+        }
+        Set<String> keys = new HashSet<>();
+        for (File file : pending) {
+            keys.add(getKey(file));
+        }
+        long limit = System.currentTimeMillis() - ORPHAN_DELAY;
+        for (File file : children) {
+            String name = file.getName();
+            if (name.endsWith(JOURNAL_EXTENSION)) {
+                name = name.substring(0, name.length() - JOURNAL_EXTENSION.length());
+            } else if (name.endsWith(SECRET_EXTENSION)) {
+                name = name.substring(0, name.length() - SECRET_EXTENSION.length());
+            }
+            // The journal is modified for each file written in the directory
+            long lastModified = Math.max(new File(root, name).lastModified(),
+                new File(root, name + JOURNAL_EXTENSION).lastModified());
+            if (!keys.contains(name) && lastModified < limit) {
+                LOGGER.info("Remove the orphan export directory {}", file); //$NON-NLS-1$
+                FileUtil.recursiveDelete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.dcm4che3.data.Tag;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.Series;
+import org.weasis.core.api.media.data.TagW;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.core.api.util.StringUtil;
+import org.weasis.core.ui.model.GraphicModel;
+import org.weasis.dicom.codec.DicomImageElement;
+import org.weasis.dicom.codec.FileExtractor;
+import org.weasis.dicom.codec.TagD;
+
+/**
+ * Estimates the size of the image and the duration of the export from the selection, without reading the pixel data.
+ * <p>
+ * The layout of the export is simulated to count the files and the directories, which gives the size of the
+ * directory records (ISO9660 with Rock Ridge, Joliet and DICOMDIR). Every extent is aligned to a sector. The duration
+ * is based on the throughput measured during the previous exports.
+ */
+public class ExportEstimator {
+
+    private static final String THROUGHPUT = "throughput"; //$NON-NLS-1$
+    private static final String THROUGHPUT_JPEG = "throughput_jpeg"; //$NON-NLS-1$
+    // Default throughput in bytes/s when no export has been measured
+    private static final long DEFAULT_THROUGHPUT = 40L * 1024L * 1024L;
+    private static final long DEFAULT_THROUGHPUT_JPEG = 15L * 1024L * 1024L;
+
+    // Space reserved on each volume for the directories which are not estimated
+    private static final long VOLUME_RESERVED_SIZE = 1024L * 1024L;
+    // System area (16 sectors), volume descriptors and terminator
+    private static final long ISO_HEADER_SIZE = 20L * VolumePlanner.SECTOR_SIZE;
+    // Directory record with Rock Ridge extensions and Joliet directory record
+    private static final long ISO_FILE_RECORD_SIZE = 160L;
+    private static final long JOLIET_FILE_RECORD_SIZE = 80L;
+    // '.' and '..' records
+    private static final long DIR_BASE_SIZE = 2 * 34L + 100L;
+    // Path table entry (4 tables: little and big endian for ISO9660 and Joliet)
+    private static final long PATH_TABLE_ENTRY_SIZE = 4 * 20L;
+    // UDF: reserved area, volume descriptors, anchors, file set descriptor (see UdfImageWriter)
+    private static final long UDF_HEADER_SIZE = 260L * VolumePlanner.SECTOR_SIZE;
+    // UDF: file entry of one sector and file identifier descriptor of each file or directory
+    private static final long UDF_FILE_ENTRY_SIZE = VolumePlanner.SECTOR_SIZE;
+    private static final long UDF_FID_SIZE = 64L;
+
+    private static final long DICOMDIR_HEADER_SIZE = 512L;
+    private static final long DICOMDIR_PATIENT_SIZE = 160L;
+    private static final long DICOMDIR_STUDY_SIZE = 260L;
+    // Series record with a 128x128 palette icon
+    private static final long DICOMDIR_SERIES_SIZE = 200L + 128L * 128L + 3L * 512L;
+    private static final long DICOMDIR_INSTANCE_SIZE = 420L;
+
+    // Compression of the JPEG images (quality 90) in bytes per 8-bit sample
+    private static final double JPEG_BYTES_PER_SAMPLE = 0.25;
+    // Size of a presentation state of one image, which is an upper bound when the images share a file
+    private static final long PR_SIZE = 4096L;
+
+    private final boolean addJpeg;
+    private final boolean addViewer;
+    // Size of the converted DICOM images compared to the original files
+    private final double dicomRatio;
+    // One presentation state per series instead of one per image
+    private final boolean presentationPerSeries;
+    private final boolean udf;
+    private final Set<String> uids = new HashSet<>();
+
+    public ExportEstimator(boolean addJpeg, boolean addViewer) {
+        this.addJpeg = addJpeg;
+        this.addViewer = addViewer;
+        this.dicomRatio = 1.0;
+        this.presentationPerSeries = false;
+        this.udf = false;
+    }
+
+    public ExportEstimator(ExportOptions options) {
+        this.addJpeg = options.isAddJpeg();
+        this.addViewer = options.isAddViewer();
+        this.dicomRatio =
+            options.getDicomSyntax() == DicomSyntax.ORIGINAL ? 1.0 : options.getDicomSyntaxRatio() / 100.0;
+        this.presentationPerSeries = options.isPresentationPerSeries();
+        this.udf = options.getFileSystem() == FileSystemType.UDF;
+    }
+
+    /**
+     * @return the estimated size of the whole selection
+     */
+    public Estimate estimate(List<ExportItem> items) {
+        uids.clear();
+        Estimate estimate = new Estimate(addJpeg);
+        Map<String, Integer> dirs = new HashMap<>();
+        Set<String> patients = new HashSet<>();
+        Set<String> studies = new HashSet<>();
+        Set<String> series = new HashSet<>();
+
+        for (ExportItem item : items) {
+            MediaElement media = item.getMedia();
+            if (media != null) {
+                long dicom = getDicomSize(media);
+                if (dicom > 0) {
+                    estimate.dicomSize += dicom;
+                    estimate.dicomCount++;
+                    estimate.fileCount++;
+                    addFile(dirs, IsoExporter.buildPath(media, false, true, true, item.getFolderNames()));
+                    patients.add((String) media.getTagValue(TagW.PatientPseudoUID));
+                    studies.add(TagD.getTagValue(media, Tag.StudyInstanceUID, String.class));
+                    series.add(TagD.getTagValue(media, Tag.SeriesInstanceUID, String.class));
+                }
+                long jpeg = getJpegSize(media);
+                if (jpeg > 0) {
+                    estimate.jpegSize += jpeg;
+                    estimate.jpegCount++;
+                    estimate.fileCount++;
+                    String jpegPath = IsoExporter.buildPath(media, true, item.getFolderNames());
+                    addFile(dirs, "JPEG" + File.separator + jpegPath); //$NON-NLS-1$
+                }
+            } else {
+                int nbImages = getPresentationImages(item);
+                if (nbImages > 0) {
+                    int nb = getPresentationFiles(nbImages);
+                    estimate.prSize += nbImages * PR_SIZE;
+                    estimate.fileCount += nb;
+                    estimate.dicomdirSize += nb * DICOMDIR_INSTANCE_SIZE;
+                }
+            }
+        }
+
+        estimate.dicomdirSize += DICOMDIR_HEADER_SIZE + patients.size() * DICOMDIR_PATIENT_SIZE
+            + studies.size() * DICOMDIR_STUDY_SIZE + series.size() * DICOMDIR_SERIES_SIZE
+            + estimate.dicomCount * DICOMDIR_INSTANCE_SIZE;
+        estimate.dicomdirSize = VolumePlanner.alignToSector(estimate.dicomdirSize);
+
+        if (addViewer) {
+            // From the entries of the archive, without checksum or extraction of the distribution
+            ViewerCache.Estimate viewer = ViewerCache.getEstimate();
+            estimate.viewerSize = viewer.getTreeSize();
+            viewer.getDirectories().forEach((dir, nbFiles) -> dirs.merge(dir, nbFiles, Integer::sum));
+        }
+
+        // Root directory and the directories of the tree
+        estimate.dirCount = dirs.size() + 1;
+        if (udf) {
+            long udfSize = UDF_HEADER_SIZE + UDF_FILE_ENTRY_SIZE + VolumePlanner.alignToSector(3 * UDF_FID_SIZE)
+                + estimate.fileCount * UDF_FILE_ENTRY_SIZE;
+            for (Integer nbFiles : dirs.values()) {
+                udfSize += UDF_FILE_ENTRY_SIZE + VolumePlanner.alignToSector((nbFiles + 1) * UDF_FID_SIZE);
+            }
+            estimate.isoOverhead = udfSize;
+            return estimate;
+        }
+        long isoSize = ISO_HEADER_SIZE + 2 * VolumePlanner.alignToSector(DIR_BASE_SIZE + 2 * ISO_FILE_RECORD_SIZE);
+        long pathTable = PATH_TABLE_ENTRY_SIZE;
+        for (Integer nbFiles : dirs.values()) {
+            isoSize += VolumePlanner.alignToSector(DIR_BASE_SIZE + nbFiles * ISO_FILE_RECORD_SIZE);
+            isoSize += VolumePlanner.alignToSector(DIR_BASE_SIZE + nbFiles * JOLIET_FILE_RECORD_SIZE);
+            pathTable += PATH_TABLE_ENTRY_SIZE;
+        }
+        estimate.isoOverhead = isoSize + 4 * VolumePlanner.alignToSector(pathTable / 4);
+        return estimate;
+    }
+
+    /**
+     * @return the size of an item in the image, including the directory records of its files. The multiframe files are
+     *         counted only once by a same estimator.
+     */
+    public long getItemSize(ExportItem item) {
+        MediaElement media = item.getMedia();
+        long size = 0L;
+        if (media != null) {
+            long dicom = getDicomSize(media);
+            if (dicom > 0) {
+                size += dicom + getFileRecordSize() + DICOMDIR_INSTANCE_SIZE;
+            }
+            long jpeg = getJpegSize(media);
+            if (jpeg > 0) {
+                size += jpeg + getFileRecordSize();
+            }
+        } else {
+            int nbImages = getPresentationImages(item);
+            size += nbImages * PR_SIZE
+                + getPresentationFiles(nbImages) * (getFileRecordSize() + DICOMDIR_INSTANCE_SIZE);
+        }
+        return size;
+    }
+
+    /**
+     * @return the size required on each volume independently of the selection
+     */
+    public long getVolumeOverhead() {
+        long size = VOLUME_RESERVED_SIZE + (udf ? UDF_HEADER_SIZE : ISO_HEADER_SIZE) + DICOMDIR_HEADER_SIZE;
+        if (addViewer) {
+            // Known from the archive, also when the distribution cannot be extracted
+            size += ViewerCache.getEstimate().getTreeSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the size of the records of a file in the directories
+     */
+    private long getFileRecordSize() {
+        return udf ? UDF_FILE_ENTRY_SIZE + UDF_FID_SIZE : ISO_FILE_RECORD_SIZE + JOLIET_FILE_RECORD_SIZE;
+    }
+
+    private long getDicomSize(MediaElement media) {
+        String iuid = TagD.getTagValue(media, Tag.SOPInstanceUID, String.class);
+        if (media instanceof DicomImageElement && !uids.add(iuid)) {
+            // Multiframe file already counted
+            return 0L;
+        }
+        File source = IsoLayout.getSourceFile(media);
+        if (source == null) {
+            return 0L;
+        }
+        // Only the images are converted
+        long size = media instanceof DicomImageElement ? (long) (source.length() * dicomRatio) : source.length();
+        return VolumePlanner.alignToSector(size);
+    }
+
+    private long getJpegSize(MediaElement media) {
+        if (!addJpeg) {
+            return 0L;
+        }
+        if (media instanceof DicomImageElement) {
+            Integer rows = TagD.getTagValue(media, Tag.Rows, Integer.class);
+            Integer columns = TagD.getTagValue(media, Tag.Columns, Integer.class);
+            Integer samples = TagD.getTagValue(media, Tag.SamplesPerPixel, Integer.class);
+            if (rows != null && columns != null) {
+                long nbSamples = (long) rows * columns * (samples == null ? 1 : samples);
+                return VolumePlanner.alignToSector((long) (nbSamples * JPEG_BYTES_PER_SAMPLE));
+            }
+        } else if (media instanceof FileExtractor) {
+            File file = ((FileExtractor) media).getExtractFile();
+            return file == null ? 0L : VolumePlanner.alignToSector(file.length());
+        }
+        return 0L;
+    }
+
+    /**
+     * @return the number of images with graphics
+     */
+    private static int getPresentationImages(ExportItem item) {
+        Series<?> series = item.getPresentationSource();
+        if (series != null) {
+            int nb = 0;
+            for (MediaElement dcm : series.getMedias(null, null)) {
+                GraphicModel grModel = (GraphicModel) dcm.getTagValue(TagW.PresentationModel);
+                if (grModel != null && grModel.hasSerializableGraphics()) {
+                    nb++;
+                }
+            }
+            return nb;
+        }
+        return 0;
+    }
+
+    private int getPresentationFiles(int nbImages) {
+        return presentationPerSeries ? Math.min(1, nbImages) : nbImages;
+    }
+
+    private static void addFile(Map<String, Integer> dirs, String path) {
+        // Register the directory and its parents
+        String dir = path;
+        dirs.merge(dir, 1, Integer::sum);
+        int index;
+        while ((index = dir.lastIndexOf(File.separatorChar)) > 0) {
+            dir = dir.substring(0, index);
+            dirs.putIfAbsent(dir, 0);
+        }
+    }
+
+    /**
+     * @return the measured throughput in bytes/s
+     */
+    public static long getThroughput(boolean jpeg) {
+        String value = ExportIsoFactory.EXPORT_PERSISTENCE.getProperty(jpeg ? THROUGHPUT_JPEG : THROUGHPUT);
+        if (StringUtil.hasText(value)) {
+            try {
+                long throughput = Long.parseLong(value.trim());
+                if (throughput > 0) {
+                    return throughput;
+                }
+            } catch (NumberFormatException e) {
+                // Use the default value
+            }
+        }
+        return jpeg ? DEFAULT_THROUGHPUT_JPEG : DEFAULT_THROUGHPUT;
+    }
+
+    /**
+     * Update the throughput with a moving average of the measured exports.
+     */
+    public static void recordThroughput(boolean jpeg, long bytes, long millis) {
+        if (bytes <= 0 || millis <= 0) {
+            return;
+        }
+        long measured = bytes * 1000L / millis;
+        Properties pref = ExportIsoFactory.EXPORT_PERSISTENCE;
+        String key = jpeg ? THROUGHPUT_JPEG : THROUGHPUT;
+        long throughput = pref.getProperty(key) == null ? measured : (getThroughput(jpeg) * 7 + measured * 3) / 10;
+        pref.setProperty(key, String.valueOf(Math.max(1L, throughput)));
+    }
+
+    public static class Estimate {
+        private final boolean jpeg;
+        private long dicomSize;
+        private long jpegSize;
+        private long prSize;
+        private long dicomdirSize;
+        private long viewerSize;
+        private long isoOverhead;
+        private int dicomCount;
+        private int jpegCount;
+        private int fileCount;
+        private int dirCount;
+
+        Estimate(boolean jpeg) {
+            this.jpeg = jpeg;
+        }
+
+        public long getDicomSize() {
+            return dicomSize;
+        }
+
+        public long getJpegSize() {
+            return jpegSize;
+        }
+
+        public long getPresentationSize() {
+            return prSize;
+        }
+
+        public long getDicomdirSize() {
+            return dicomdirSize;
+        }
+
+        public long getViewerSize() {
+            return viewerSize;
+        }
+
+        /**
+         * @return the size of the ISO9660 structures (volume descriptors, path tables and directory records)
+         */
+        public long getIsoOverhead() {
+            return isoOverhead;
+        }
+
+        public int getDicomCount() {
+            return dicomCount;
+        }
+
+        public int getJpegCount() {
+            return jpegCount;
+        }
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public int getDirectoryCount() {
+            return dirCount;
+        }
+
+        /**
+         * @return the estimated size of the image in bytes
+         */
+        public long getTotalSize() {
+            return dicomSize + jpegSize + prSize + dicomdirSize + viewerSize + isoOverhead;
+        }
+
+        /**
+         * @return the expected duration in milliseconds
+         */
+        public long getDuration() {
+            return getTotalSize() * 1000L / getThroughput(jpeg);
+        }
+
+        public String getSummary() {
+            StringBuilder buf = new StringBuilder();
+            buf.append("Estimated image size: ").append(FileUtil.formatSize(getTotalSize())); //$NON-NLS-1$
+            buf.append("\n  DICOM: ").append(FileUtil.formatSize(dicomSize)); //$NON-NLS-1$
+            if (jpeg) {
+                buf.append("\n  JPEG: ").append(FileUtil.formatSize(jpegSize)); //$NON-NLS-1$
+            }
+            if (prSize > 0) {
+                buf.append("\n  Presentation states: ").append(FileUtil.formatSize(prSize)); //$NON-NLS-1$
+            }
+            if (viewerSize > 0) {
+                buf.append("\n  Viewer: ").append(FileUtil.formatSize(viewerSize)); //$NON-NLS-1$
+            }
+            buf.append("\n  DICOMDIR and ISO9660 structures: ") //$NON-NLS-1$
+                .append(FileUtil.formatSize(dicomdirSize + isoOverhead));
+            buf.append("\n").append(fileCount).append(" files in ").append(dirCount).append(" directories"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            buf.append("\nExpected duration: ") //$NON-NLS-1$
+                .append(ExportProgress.formatDuration(Math.max(1L, getDuration() / 1000L)));
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Items of a progressive export, which are added while the export is running.
+ * <p>
+ * The producer adds the items as soon as their files are available and calls {@link #finish()} when there is nothing
+ * more to add, e.g. {@link DicomModelFeed} when the studies are loaded, or any loader adding instances over time. The
+ * export iterates once over the items, waiting for the next one until the feed is finished or the export is
+ * cancelled.
+ */
+public final class ExportFeed implements Iterable<ExportItem> {
+
+    private static final long POLL_DELAY = 200L;
+
+    private final BlockingQueue<ExportItem> queue = new LinkedBlockingQueue<>();
+    private volatile boolean finished;
+    private volatile int dropped;
+    private volatile BooleanSupplier cancelled = () -> false;
+    private boolean iterated;
+
+    /**
+     * Add an item whose file is available.
+     *
+     * @throws IllegalStateException
+     *             if the feed is finished
+     */
+    public synchronized void add(ExportItem item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Item cannot be null"); //$NON-NLS-1$
+        }
+        if (finished) {
+            throw new IllegalStateException("The export feed is finished"); //$NON-NLS-1$
+        }
+        queue.add(item);
+    }
+
+    /**
+     * Indicate that all the items have been added, the export is completed with the items already added.
+     */
+    public void finish() {
+        finish(0);
+    }
+
+    /**
+     * Indicate that all the items have been added, some items could not be added.
+     *
+     * @param dropped
+     *            the number of items which will never be added, e.g. files still missing at the end of the loading
+     */
+    public synchronized void finish(int dropped) {
+        if (!finished) {
+            this.dropped = dropped;
+            finished = true;
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the number of items which could not be added when the feed was finished
+     */
+    public int getDroppedCount() {
+        return dropped;
+    }
+
+    void setCancelled(BooleanSupplier cancelled) {
+        this.cancelled = cancelled == null ? () -> false : cancelled;
+    }
+
+    /**
+     * @return an iterator whose {@link Iterator#hasNext()} blocks until an item is added, the feed is finished or the
+     *         export is cancelled. The items can be iterated only once.
+     */
+    @Override
+    public synchronized Iterator<ExportItem> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("The export feed can be iterated only once"); //$NON-NLS-1$
+        }
+        iterated = true;
+        return new Iterator<ExportItem>() {
+            private ExportItem next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (cancelled.getAsBoolean()) {
+                        return false;
+                    }
+                    // Read the state before polling, so the last items are not lost
+                    boolean done = finished;
+                    try {
+                        next = queue.poll(POLL_DELAY, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    if (next == null && done) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public ExportItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ExportItem item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+}
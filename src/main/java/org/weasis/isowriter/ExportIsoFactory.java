@@ -7,6 +7,9 @@ import java.util.Properties;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.api.service.BundlePreferences;
@@ -24,13 +27,17 @@ public class ExportIsoFactory implements DicomExportFactory {
 
     public static final Properties EXPORT_PERSISTENCE = new Properties();
 
+    private static volatile File dataFolder;
+
+    private IsoExportService exportService;
+
     @Override
     public ExportDicom createDicomExportPage(Hashtable<String, Object> properties) {
         if (properties != null) {
             DicomModel dicomModel = (DicomModel) properties.get(DicomModel.class.getName());
             CheckTreeModel treeModel = (CheckTreeModel) properties.get(CheckTreeModel.class.getName());
             if (dicomModel != null && treeModel != null) {
-                return new IsoImageExport(dicomModel, treeModel);
+                return new IsoImageExport(dicomModel, treeModel, exportService);
             }
         }
         return null;
@@ -39,8 +46,8 @@ public class ExportIsoFactory implements DicomExportFactory {
     @Activate
     protected void activate(ComponentContext context) throws Exception {
         LOGGER.info("Export ISO image is activated");
-        FileUtil.readProperties(new File(BundlePreferences.getDataFolder(context.getBundleContext()),
-            "export.properties"), EXPORT_PERSISTENCE);//$NON-NLS-1$
+        dataFolder = BundlePreferences.getDataFolder(context.getBundleContext());
+        FileUtil.readProperties(new File(dataFolder, "export.properties"), EXPORT_PERSISTENCE);//$NON-NLS-1$
     }
 
     @Deactivate
@@ -48,6 +55,23 @@ public class ExportIsoFactory implements DicomExportFactory {
         LOGGER.info("Export ISO image is deactivated");
         FileUtil.storeProperties(new File(BundlePreferences.getDataFolder(context.getBundleContext()),
             "export.properties"), EXPORT_PERSISTENCE, null);//$NON-NLS-1$
+        dataFolder = null;
+    }
+
+    @Reference(service = IsoExportService.class, cardinality = ReferenceCardinality.MANDATORY,
+        policy = ReferencePolicy.STATIC, unbind = "unsetExportService")
+    protected void setExportService(IsoExportService exportService) {
+        this.exportService = exportService;
+    }
+
+    protected void unsetExportService(IsoExportService exportService) {
+        this.exportService = null;
+    }
 
+    /**
+     * @return the data folder of the bundle or null when the component is not activated
+     */
+    public static File getDataFolder() {
+        return dataFolder;
     }
 }
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.MediaSeries;
+import org.weasis.core.api.media.data.MediaSeriesGroup;
+import org.weasis.core.api.media.data.Series;
+import org.weasis.core.api.media.data.TagW;
+import org.weasis.core.api.util.LangUtil;
+import org.weasis.dicom.explorer.CheckTreeModel;
+import org.weasis.dicom.explorer.DicomModel;
+
+/**
+ * An element to export: a media of a series, or the presentation states of a series.
+ * <p>
+ * The patient, the study and the series give the location of the element in the image (and the names of the JPEG
+ * folders), like the nodes of the export tree.
+ */
+public final class ExportItem {
+
+    private final Object patient;
+    private final Object study;
+    private final MediaSeries<?> series;
+    private final MediaElement media;
+
+    private ExportItem(Object patient, Object study, MediaSeries<?> series, MediaElement media) {
+        if (patient == null || study == null || series == null) {
+            throw new IllegalArgumentException("Patient, study and series cannot be null"); //$NON-NLS-1$
+        }
+        this.patient = patient;
+        this.study = study;
+        this.series = series;
+        this.media = media;
+    }
+
+    public static ExportItem ofMedia(Object patient, Object study, MediaSeries<?> series, MediaElement media) {
+        if (media == null) {
+            throw new IllegalArgumentException("Media cannot be null"); //$NON-NLS-1$
+        }
+        return new ExportItem(patient, study, series, media);
+    }
+
+    /**
+     * @param series
+     *            the series containing the presentation states to save (see {@link TagW#ObjectToSave})
+     */
+    public static ExportItem ofPresentations(Object patient, Object study, MediaSeries<?> series) {
+        return new ExportItem(patient, study, series, null);
+    }
+
+    public Object getPatient() {
+        return patient;
+    }
+
+    public Object getStudy() {
+        return study;
+    }
+
+    public MediaSeries<?> getSeries() {
+        return series;
+    }
+
+    /**
+     * @return the media or null when the item contains the presentation states of the series
+     */
+    public MediaElement getMedia() {
+        return media;
+    }
+
+    /**
+     * @return the series of the images having presentation states to save or null
+     */
+    public Series<?> getPresentationSource() {
+        if (media == null && LangUtil.getNULLtoFalse((Boolean) series.getTagValue(TagW.ObjectToSave))) {
+            return (Series<?>) series.getTagValue(CheckTreeModel.SourceSeriesForPR);
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of the parent folders (patient, study and series)
+     */
+    public String[] getFolderNames() {
+        if (media == null) {
+            return new String[] { patient.toString(), study.toString() };
+        }
+        return new String[] { patient.toString(), study.toString(), series.toString() };
+    }
+
+    /**
+     * Build the items of all the media of the selection.
+     *
+     * @param selection
+     *            patients, studies or series of the model
+     */
+    public static List<ExportItem> fromModel(DicomModel model, Collection<? extends MediaSeriesGroup> selection) {
+        List<ExportItem> items = new ArrayList<>();
+        if (model == null || selection == null) {
+            return items;
+        }
+        for (MediaSeriesGroup group : selection) {
+            if (group instanceof MediaSeries) {
+                MediaSeriesGroup study = model.getParent(group, DicomModel.study);
+                MediaSeriesGroup patient = model.getParent(group, DicomModel.patient);
+                if (study != null && patient != null) {
+                    addSeries(items, patient, study, (MediaSeries<?>) group);
+                }
+            } else if (DicomModel.patient.getTagElement().equals(group.getTagID())) {
+                for (MediaSeriesGroup study : model.getChildren(group)) {
+                    addStudy(items, model, group, study);
+                }
+            } else if (DicomModel.study.getTagElement().equals(group.getTagID())) {
+                MediaSeriesGroup patient = model.getParent(group, DicomModel.patient);
+                if (patient != null) {
+                    addStudy(items, model, patient, group);
+                }
+            }
+        }
+        return items;
+    }
+
+    private static void addStudy(List<ExportItem> items, DicomModel model, MediaSeriesGroup patient,
+        MediaSeriesGroup study) {
+        for (MediaSeriesGroup series : model.getChildren(study)) {
+            if (series instanceof MediaSeries) {
+                addSeries(items, patient, study, (MediaSeries<?>) series);
+            }
+        }
+    }
+
+    private static void addSeries(List<ExportItem> items, MediaSeriesGroup patient, MediaSeriesGroup study,
+        MediaSeries<?> series) {
+        for (MediaElement media : series.getMedias(null, null)) {
+            items.add(ofMedia(patient, study, series, media));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An ISO export queued in the {@link ExportJobScheduler}.
+ */
+public final class ExportJob {
+
+    public enum State {
+        QUEUED, PAUSED, RUNNING, DONE, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != PAUSED && this != RUNNING;
+        }
+    }
+
+    private final int id;
+    private final List<ExportItem> items;
+    private final ExportFeed feed;
+    private final File exportFile;
+    private final ExportOptions options;
+    private final ExportProgress progress = new ExportProgress();
+    private final CompletableFuture<ExportResult> future = new CompletableFuture<>();
+
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelRequested;
+    private volatile Throwable error;
+    private volatile String warning;
+
+    ExportJob(int id, List<ExportItem> items, File exportFile, ExportOptions options) {
+        if (items == null || exportFile == null || options == null) {
+            throw new IllegalArgumentException("Items, export file and options cannot be null"); //$NON-NLS-1$
+        }
+        this.id = id;
+        this.items = new ArrayList<>(items);
+        this.feed = null;
+        this.exportFile = exportFile;
+        this.options = options;
+    }
+
+    ExportJob(int id, ExportFeed feed, File exportFile, ExportOptions options) {
+        if (feed == null || exportFile == null || options == null) {
+            throw new IllegalArgumentException("Feed, export file and options cannot be null"); //$NON-NLS-1$
+        }
+        this.id = id;
+        this.items = Collections.emptyList();
+        this.feed = feed;
+        this.exportFile = exportFile;
+        this.options = options;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the items of the export, empty for a progressive export (see {@link #getFeed()})
+     */
+    public List<ExportItem> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * @return the items added while the export is running, null when the items are known in advance
+     */
+    public ExportFeed getFeed() {
+        return feed;
+    }
+
+    public File getExportFile() {
+        return exportFile;
+    }
+
+    public ExportOptions getOptions() {
+        return options;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the exception when the state is {@link State#FAILED}
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return the difference between the job and the export which was submitted, e.g. the items which cannot be
+     *         restored after a restart, or null
+     */
+    public String getWarning() {
+        return warning;
+    }
+
+    void setWarning(String warning) {
+        this.warning = warning;
+    }
+
+    /**
+     * @return the result of the export. Cancelling the future cancels the job.
+     */
+    public CompletableFuture<ExportResult> getFuture() {
+        return future;
+    }
+
+    /**
+     * @return the message of the current stage of the export
+     */
+    public String getProgressMessage() {
+        return state == State.RUNNING ? progress.getMessage() : state.name();
+    }
+
+    /**
+     * @param maximum
+     *            the value of a complete export
+     * @return the progress between 0 and the maximum
+     */
+    public int getProgress(int maximum) {
+        return state == State.DONE ? maximum : progress.getProgress(maximum);
+    }
+
+    /**
+     * Cancel the job. A queued or paused job is not started, a running job stops at the next item.
+     */
+    public void cancel() {
+        cancelRequested = true;
+        if (state == State.QUEUED || state == State.PAUSED) {
+            setCancelled();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelRequested || future.isCancelled();
+    }
+
+    ExportProgress getExportProgress() {
+        return progress;
+    }
+
+    synchronized void setPaused() {
+        if (state == State.QUEUED) {
+            state = State.PAUSED;
+        }
+    }
+
+    synchronized boolean setQueued() {
+        if (state != State.PAUSED || isCancelled()) {
+            return false;
+        }
+        state = State.QUEUED;
+        return true;
+    }
+
+    synchronized boolean setRunning() {
+        if (state != State.QUEUED || isCancelled()) {
+            return false;
+        }
+        state = State.RUNNING;
+        return true;
+    }
+
+    synchronized void setDone(ExportResult result) {
+        state = result.isCancelled() ? State.CANCELLED : State.DONE;
+        future.complete(result);
+    }
+
+    synchronized void setFailed(Throwable t) {
+        error = t;
+        state = State.FAILED;
+        future.completeExceptionally(t);
+    }
+
+    synchronized void setCancelled() {
+        if (!state.isFinished()) {
+            state = State.CANCELLED;
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Export " + id + " " + exportFile.getName() + " (" + state + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+    }
+}
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.gui.util.AppProperties;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.MediaSeries;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.core.api.util.StringUtil;
+import org.weasis.dicom.codec.DicomMediaIO;
+import org.weasis.dicom.codec.TagD;
+
+/**
+ * Queue of the ISO exports.
+ * <p>
+ * The jobs run in parallel up to a maximum, and share the limits of decoding, disk writing and mastering. The queued
+ * jobs are saved in a file, so they can be restored after a restart. The restored jobs are paused until they are
+ * resumed.
+ */
+public class ExportJobScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportJobScheduler.class);
+
+    static final String MAX_JOBS = "export_max_jobs"; //$NON-NLS-1$
+    static final String DECODE_LIMIT = "export_decode_limit"; //$NON-NLS-1$
+    static final String DISK_LIMIT = "export_disk_limit"; //$NON-NLS-1$
+    static final String MASTERING_LIMIT = "export_mastering_limit"; //$NON-NLS-1$
+
+    private static final String NEXT_ID = "next_id"; //$NON-NLS-1$
+    private static final String JOBS = "jobs"; //$NON-NLS-1$
+    private static final String JOB = "job."; //$NON-NLS-1$
+
+    private final File jobsFile;
+    private final File workingRoot;
+    private final ExportLimits limits;
+    private final ExecutorService executor;
+    // Key of the de-identification of the preferences, which is not saved with the jobs
+    private final String deidentificationKey;
+    private final List<ExportJob> jobs = new ArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private volatile boolean shuttingDown;
+
+    /**
+     * @param jobsFile
+     *            the file of the queued jobs, or null when the jobs are not persisted
+     * @param pref
+     *            the preferences containing the limits
+     */
+    public ExportJobScheduler(File jobsFile, Properties pref) {
+        this.jobsFile = jobsFile;
+        // The working directories are kept until the export is complete, so they can be reused after a restart
+        this.workingRoot = jobsFile == null ? AppProperties.buildAccessibleTempDirectory("tmp", "burn") //$NON-NLS-1$ //$NON-NLS-2$
+            : new File(jobsFile.getParentFile(), "burn"); //$NON-NLS-1$
+        int processors = Runtime.getRuntime().availableProcessors();
+        int maxJobs = getLimit(pref, MAX_JOBS, 2);
+        this.limits = new ExportLimits(getLimit(pref, DECODE_LIMIT, processors), getLimit(pref, DISK_LIMIT, 1),
+            getLimit(pref, MASTERING_LIMIT, 1));
+        this.deidentificationKey = pref == null ? null : pref.getProperty(ExportOptions.DEIDENTIFY_KEY);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxJobs, r -> {
+            Thread t = new Thread(r, "ISO export job " + count.incrementAndGet()); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static int getLimit(Properties pref, String key, int defaultValue) {
+        long value = pref == null ? 0L : ExportOptions.getLong(pref, key);
+        return value > 0 ? (int) Math.min(Integer.MAX_VALUE, value) : defaultValue;
+    }
+
+    /**
+     * Queue an export.
+     *
+     * @return the job, which is started when a worker and the resources are available
+     */
+    public ExportJob submit(List<ExportItem> items, File exportFile, ExportOptions options) {
+        return queue(new ExportJob(nextId.getAndIncrement(), items, exportFile, getOptions(options)), true);
+    }
+
+    /**
+     * Queue a progressive export, which writes the items of the feed while they are added. The job is not saved, so
+     * it is not restored after a restart.
+     *
+     * @return the job, which is started when a worker and the resources are available
+     */
+    public ExportJob submit(ExportFeed feed, File exportFile, ExportOptions options) {
+        return queue(new ExportJob(nextId.getAndIncrement(), feed, exportFile, getOptions(options)), true);
+    }
+
+    private static ExportOptions getOptions(ExportOptions options) {
+        return options == null ? new ExportOptions() : options;
+    }
+
+    /**
+     * Start a job restored in the {@link ExportJob.State#PAUSED} state.
+     *
+     * @return false when the job is not paused or has been cancelled
+     */
+    public boolean resume(ExportJob job) {
+        if (shuttingDown || job == null || !job.setQueued()) {
+            return false;
+        }
+        save();
+        executor.execute(() -> run(job));
+        return true;
+    }
+
+    private ExportJob queue(ExportJob job, boolean start) {
+        if (shuttingDown) {
+            throw new IllegalStateException("The export scheduler is shut down"); //$NON-NLS-1$
+        }
+        if (!start) {
+            job.setPaused();
+        }
+        synchronized (jobs) {
+            jobs.add(job);
+        }
+        job.getFuture().whenComplete((r, t) -> {
+            save();
+            cleanOrphansWhenIdle();
+        });
+        save();
+        if (start) {
+            executor.execute(() -> run(job));
+        }
+        return job;
+    }
+
+    private void run(ExportJob job) {
+        if (!job.setRunning()) {
+            job.setCancelled();
+            return;
+        }
+        save();
+        try {
+            IsoExporter exporter = new IsoExporter(job.getOptions(), job.getExportProgress(), limits, workingRoot);
+            BooleanSupplier cancelled = () -> job.isCancelled() || Thread.currentThread().isInterrupted();
+            ExportFeed feed = job.getFeed();
+            job.setDone(feed == null ? exporter.export(job.getItems(), job.getExportFile(), cancelled)
+                : exporter.export(feed, job.getExportFile(), cancelled));
+        } catch (Exception e) {
+            LOGGER.error("Cannot export {}", job, e); //$NON-NLS-1$
+            job.setFailed(e);
+        }
+    }
+
+    /**
+     * @return the jobs in the order of submission
+     */
+    public List<ExportJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    /**
+     * Remove the finished jobs from the list.
+     */
+    public void purge() {
+        synchronized (jobs) {
+            jobs.removeIf(j -> j.getState().isFinished());
+        }
+    }
+
+    /**
+     * Stop all the jobs. The jobs which are not finished are kept in the file.
+     */
+    public void shutdown() {
+        save();
+        shuttingDown = true;
+        executor.shutdownNow();
+    }
+
+    private void save() {
+        if (jobsFile == null || shuttingDown) {
+            return;
+        }
+        // The snapshot is built and written under the same lock, so an older state cannot overwrite a newer one
+        synchronized (this) {
+            FileUtil.storeProperties(jobsFile, getSnapshot(), null);
+        }
+    }
+
+    private Properties getSnapshot() {
+        Properties props = new Properties();
+        props.setProperty(NEXT_ID, String.valueOf(nextId.get()));
+        StringBuilder ids = new StringBuilder();
+        for (ExportJob job : getJobs()) {
+            if (job.getState().isFinished() || job.getFeed() != null) {
+                continue;
+            }
+            String prefix = JOB + job.getId() + "."; //$NON-NLS-1$
+            props.setProperty(prefix + "file", job.getExportFile().getPath()); //$NON-NLS-1$
+            job.getOptions().store(props, prefix + "options."); //$NON-NLS-1$
+            // Number of items submitted, so a job restored without some of them is reported
+            props.setProperty(prefix + "items", String.valueOf(job.getItems().size())); //$NON-NLS-1$
+            int index = 0;
+            for (ExportItem item : job.getItems()) {
+                MediaElement media = item.getMedia();
+                // Same file as the export, the items without a source file cannot be restored (see restoreJobs)
+                File source = IsoLayout.getSourceFile(media);
+                if (source == null) {
+                    continue;
+                }
+                String itemPrefix = prefix + "item." + index + "."; //$NON-NLS-1$ //$NON-NLS-2$
+                props.setProperty(itemPrefix + "file", source.getPath()); //$NON-NLS-1$
+                Object key = media.getKey();
+                props.setProperty(itemPrefix + "frame", String.valueOf(key instanceof Integer ? key : 0)); //$NON-NLS-1$
+                props.setProperty(itemPrefix + "patient", item.getPatient().toString()); //$NON-NLS-1$
+                props.setProperty(itemPrefix + "study", item.getStudy().toString()); //$NON-NLS-1$
+                index++;
+            }
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(job.getId());
+        }
+        props.setProperty(JOBS, ids.toString());
+        return props;
+    }
+
+    /**
+     * Queue again the jobs saved before the last shutdown, in the {@link ExportJob.State#PAUSED} state.
+     * <p>
+     * Only the media are restored, the presentation states which were not saved in a file are lost. The restored jobs
+     * are started by {@link #resume(ExportJob)} and continue the work done before the shutdown. When some items
+     * cannot be restored, the job has a warning (see {@link ExportJob#getWarning()}) and starts again from the
+     * beginning without them, as the checkpoint of the previous selection does not match.
+     */
+    public void restore() {
+        if (jobsFile != null && jobsFile.canRead()) {
+            restoreJobs();
+        }
+        cleanOrphansWhenIdle();
+    }
+
+    /**
+     * Remove the working directories left by the exports which will not be resumed, when no job is queued or running.
+     */
+    private void cleanOrphansWhenIdle() {
+        if (shuttingDown) {
+            return;
+        }
+        Set<File> pending = new HashSet<>();
+        for (ExportJob job : getJobs()) {
+            ExportJob.State state = job.getState();
+            if (state == ExportJob.State.QUEUED || state == ExportJob.State.RUNNING) {
+                return;
+            }
+            if (state == ExportJob.State.PAUSED) {
+                pending.add(job.getExportFile());
+            }
+        }
+        ExportCheckpoint.cleanOrphans(workingRoot, pending);
+    }
+
+    private void restoreJobs() {
+        Properties props = new Properties();
+        FileUtil.readProperties(jobsFile, props);
+        nextId.set((int) Math.max(1L, ExportOptions.getLong(props, NEXT_ID)));
+        String ids = props.getProperty(JOBS);
+        if (!StringUtil.hasText(ids)) {
+            return;
+        }
+        for (String id : ids.split(",")) { //$NON-NLS-1$
+            String prefix = JOB + id.trim() + "."; //$NON-NLS-1$
+            String file = props.getProperty(prefix + "file"); //$NON-NLS-1$
+            if (!StringUtil.hasText(file)) {
+                continue;
+            }
+            List<ExportItem> items = restoreItems(props, prefix);
+            if (items.isEmpty()) {
+                LOGGER.warn("Cannot restore the export {}: no readable file", id); //$NON-NLS-1$
+                continue;
+            }
+            ExportOptions options = ExportOptions.fromPreferences(props, prefix + "options."); //$NON-NLS-1$
+            if (options.isDeidentify()) {
+                options.setDeidentificationKey(deidentificationKey);
+            }
+            ExportJob job = new ExportJob(nextId.getAndIncrement(), items, new File(file), options);
+            long submitted = ExportOptions.getLong(props, prefix + "items"); //$NON-NLS-1$
+            if (submitted > items.size()) {
+                job.setWarning((submitted - items.size()) + " of " + submitted //$NON-NLS-1$
+                    + " item(s) cannot be restored, the export starts again without them"); //$NON-NLS-1$
+                LOGGER.warn("Restored {}: {}", job, job.getWarning()); //$NON-NLS-1$
+            }
+            queue(job, false);
+            LOGGER.info("Restored {} with {} item(s)", job, items.size()); //$NON-NLS-1$
+        }
+    }
+
+    private static List<ExportItem> restoreItems(Properties props, String prefix) {
+        List<ExportItem> items = new ArrayList<>();
+        Map<String, MediaSeries<MediaElement>> seriesMap = new HashMap<>();
+        for (int i = 0;; i++) {
+            String itemPrefix = prefix + "item." + i + "."; //$NON-NLS-1$ //$NON-NLS-2$
+            String path = props.getProperty(itemPrefix + "file"); //$NON-NLS-1$
+            if (path == null) {
+                break;
+            }
+            File file = new File(path);
+            DicomMediaIO reader = file.canRead() ? new DicomMediaIO(file) : null;
+            if (reader == null || !reader.isReadableDicom()) {
+                LOGGER.warn("Cannot restore {}", path); //$NON-NLS-1$
+                continue;
+            }
+            MediaElement[] medias = reader.getMediaElement();
+            int frame = (int) ExportOptions.getLong(props, itemPrefix + "frame"); //$NON-NLS-1$
+            if (medias == null || frame >= medias.length) {
+                continue;
+            }
+            String seriesUID = TagD.getTagValue(reader, Tag.SeriesInstanceUID, String.class);
+            MediaSeries<MediaElement> series = seriesMap.get(seriesUID);
+            if (series == null) {
+                series = reader.getMediaSeries();
+                seriesMap.put(seriesUID, series);
+            }
+            series.addMedia(medias[frame]);
+            items.add(ExportItem.ofMedia(props.getProperty(itemPrefix + "patient", ""), //$NON-NLS-1$ //$NON-NLS-2$
+                props.getProperty(itemPrefix + "study", ""), series, medias[frame])); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return items;
+    }
+}
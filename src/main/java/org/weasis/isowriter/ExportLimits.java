@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Limits of the resources shared by all the exports running at the same time.
+ */
+final class ExportLimits {
+
+    enum Resource {
+        // Images decoded at the same time (JPEG and icons)
+        DECODE,
+        // Volumes written in their working directory at the same time
+        DISK,
+        // ISO images written at the same time
+        MASTERING
+    }
+
+    static final ExportLimits UNLIMITED = new ExportLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private static final long POLL_DELAY = 200L;
+
+    private final Semaphore[] semaphores;
+
+    ExportLimits(int decode, int disk, int mastering) {
+        this.semaphores = new Semaphore[] { new Semaphore(Math.max(1, decode), true),
+            new Semaphore(Math.max(1, disk), true), new Semaphore(Math.max(1, mastering), true) };
+    }
+
+    /**
+     * Wait for the resource until it is available or the export is cancelled.
+     *
+     * @return true if the resource has been acquired
+     */
+    boolean acquire(Resource resource, BooleanSupplier cancelled) {
+        Semaphore semaphore = semaphores[resource.ordinal()];
+        try {
+            while (!cancelled.getAsBoolean()) {
+                if (semaphore.tryAcquire(POLL_DELAY, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    void release(Resource resource) {
+        semaphores[resource.ordinal()].release();
+    }
+
+    int getAvailable(Resource resource) {
+        return semaphores[resource.ordinal()].availablePermits();
+    }
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.StringUtil;
+
+/**
+ * Options of an ISO export.
+ */
+public class ExportOptions {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportOptions.class);
+
+    /**
+     * When the data of the ISO image is forced to the storage device.
+     */
+    public enum SyncPolicy {
+        // Let the operating system write the data
+        NONE,
+        // Force the data when the image is complete
+        ON_CLOSE,
+        // Force the data regularly, which limits the amount of dirty pages when writing large images
+        PERIODIC;
+
+        public static SyncPolicy getSyncPolicy(String name) {
+            try {
+                return name == null ? NONE : SyncPolicy.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return NONE;
+            }
+        }
+    }
+
+    /**
+     * Order of the files in the image.
+     */
+    public enum LayoutOrder {
+        // Order of the selection, the DICOM files are named from their UID
+        SELECTION,
+        // The DICOM files of each series are named in the order of the instance numbers. In a UDF image, the DICOMDIR
+        // and the viewer launchers come first, then each series contiguously. In an ISO 9660 image, java-iso-tools
+        // places the file data itself in the order of the sorted directory records: only the names apply.
+        READ_OPTIMIZED;
+
+        public static LayoutOrder getLayoutOrder(String name) {
+            try {
+                return name == null ? SELECTION : LayoutOrder.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return SELECTION;
+            }
+        }
+    }
+
+    static final String ADD_JPEG = "add_jpeg"; //$NON-NLS-1$
+    static final String ADD_VIEWER = "add_viewer"; //$NON-NLS-1$
+    static final String JPEG_QUALITY = "jpeg_quality"; //$NON-NLS-1$
+    static final String ISO_DIRECT = "iso_direct"; //$NON-NLS-1$
+    static final String MEDIUM = "medium"; //$NON-NLS-1$
+    // In MB
+    static final String MEDIUM_CUSTOM_SIZE = "medium_custom_size"; //$NON-NLS-1$
+    static final String EXPORT_THREADS = "export_threads"; //$NON-NLS-1$
+    // In MB
+    static final String JPEG_MEMORY_BUDGET = "jpeg_memory_budget"; //$NON-NLS-1$
+    static final String ISO_SYNC = "iso_sync"; //$NON-NLS-1$
+    static final String ISO_LAYOUT = "iso_layout"; //$NON-NLS-1$
+    static final String ISO_FILE_SYSTEM = "iso_file_system"; //$NON-NLS-1$
+    static final String DICOM_SYNTAX = "dicom_syntax"; //$NON-NLS-1$
+    // Expected size of the converted DICOM images compared to the original size, in percent
+    static final String DICOM_SYNTAX_RATIO = "dicom_syntax_ratio"; //$NON-NLS-1$
+    static final String PR_PER_SERIES = "pr_per_series"; //$NON-NLS-1$
+    static final String DEDUPLICATE = "deduplicate"; //$NON-NLS-1$
+    static final String DEIDENTIFY = "deidentify"; //$NON-NLS-1$
+    // Path of the file of the de-identification profile
+    static final String DEIDENTIFY_PROFILE = "deidentify_profile"; //$NON-NLS-1$
+    // Secret of the pseudonyms and of the new UIDs
+    static final String DEIDENTIFY_KEY = "deidentify_key"; //$NON-NLS-1$
+
+    private boolean addJpeg = true;
+    private boolean addViewer = true;
+    private int jpegQuality = 90;
+    private boolean copySources = false;
+    private MediumType medium = MediumType.NONE;
+    private long customCapacity = MediumType.DVD.getCapacity();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long jpegMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+    private boolean rockRidge = true;
+    private boolean joliet = true;
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
+    private LayoutOrder layoutOrder = LayoutOrder.SELECTION;
+    private FileSystemType fileSystem = FileSystemType.ISO9660;
+    private DicomSyntax dicomSyntax = DicomSyntax.ORIGINAL;
+    private int dicomSyntaxRatio = 100;
+    private boolean presentationPerSeries = false;
+    private boolean deduplicate = false;
+    private boolean deidentify = false;
+    private File deidentificationProfile = null;
+    private String deidentificationKey = null;
+
+    /**
+     * @return the options saved in the preferences of the export
+     */
+    public static ExportOptions fromPreferences(Properties pref) {
+        return fromPreferences(pref, ""); //$NON-NLS-1$
+    }
+
+    /**
+     * @param prefix
+     *            the prefix of the keys
+     */
+    public static ExportOptions fromPreferences(Properties pref, String prefix) {
+        ExportOptions options = new ExportOptions();
+        options.setAddJpeg(Boolean.valueOf(pref.getProperty(prefix + ADD_JPEG, Boolean.TRUE.toString())));
+        options.setAddViewer(Boolean.valueOf(pref.getProperty(prefix + ADD_VIEWER, Boolean.TRUE.toString())));
+        options.setCopySources(!Boolean.valueOf(pref.getProperty(prefix + ISO_DIRECT, Boolean.TRUE.toString())));
+        options.setMedium(MediumType.getMediumType(pref.getProperty(prefix + MEDIUM)));
+        options.setSyncPolicy(SyncPolicy.getSyncPolicy(pref.getProperty(prefix + ISO_SYNC)));
+        options.setLayoutOrder(LayoutOrder.getLayoutOrder(pref.getProperty(prefix + ISO_LAYOUT)));
+        options.setFileSystem(FileSystemType.getFileSystemType(pref.getProperty(prefix + ISO_FILE_SYSTEM)));
+        options.setDicomSyntax(DicomSyntax.getDicomSyntax(pref.getProperty(prefix + DICOM_SYNTAX)));
+        options.setPresentationPerSeries(
+            Boolean.valueOf(pref.getProperty(prefix + PR_PER_SERIES, Boolean.FALSE.toString())));
+        options.setDeduplicate(Boolean.valueOf(pref.getProperty(prefix + DEDUPLICATE, Boolean.FALSE.toString())));
+        options.setDeidentify(Boolean.valueOf(pref.getProperty(prefix + DEIDENTIFY, Boolean.FALSE.toString())));
+        String profile = pref.getProperty(prefix + DEIDENTIFY_PROFILE);
+        options.setDeidentificationProfile(StringUtil.hasText(profile) ? new File(profile.trim()) : null);
+        options.setDeidentificationKey(pref.getProperty(prefix + DEIDENTIFY_KEY));
+        long quality = getLong(pref, prefix + JPEG_QUALITY);
+        if (quality > 0) {
+            options.setJpegQuality((int) quality);
+        }
+        long customSize = getLong(pref, prefix + MEDIUM_CUSTOM_SIZE);
+        if (customSize > 0) {
+            options.setCustomCapacity(customSize * 1024L * 1024L);
+        }
+        long nbThreads = getLong(pref, prefix + EXPORT_THREADS);
+        if (nbThreads > 0) {
+            options.setThreads((int) nbThreads);
+        }
+        long budget = getLong(pref, prefix + JPEG_MEMORY_BUDGET);
+        if (budget > 0) {
+            options.setJpegMemoryBudget(budget * 1024L * 1024L);
+        }
+        long ratio = getLong(pref, prefix + DICOM_SYNTAX_RATIO);
+        if (ratio > 0) {
+            options.setDicomSyntaxRatio((int) ratio);
+        }
+        return options;
+    }
+
+    /**
+     * Save the options, which can be read with {@link #fromPreferences(Properties, String)}. The key of the
+     * de-identification is a secret, it is never saved.
+     */
+    public void store(Properties pref, String prefix) {
+        pref.setProperty(prefix + ADD_JPEG, String.valueOf(addJpeg));
+        pref.setProperty(prefix + ADD_VIEWER, String.valueOf(addViewer));
+        pref.setProperty(prefix + ISO_DIRECT, String.valueOf(!copySources));
+        pref.setProperty(prefix + MEDIUM, medium.name());
+        pref.setProperty(prefix + JPEG_QUALITY, String.valueOf(jpegQuality));
+        pref.setProperty(prefix + ISO_SYNC, syncPolicy.name());
+        pref.setProperty(prefix + ISO_LAYOUT, layoutOrder.name());
+        pref.setProperty(prefix + ISO_FILE_SYSTEM, fileSystem.name());
+        pref.setProperty(prefix + DICOM_SYNTAX, dicomSyntax.name());
+        pref.setProperty(prefix + DICOM_SYNTAX_RATIO, String.valueOf(dicomSyntaxRatio));
+        pref.setProperty(prefix + PR_PER_SERIES, String.valueOf(presentationPerSeries));
+        pref.setProperty(prefix + DEDUPLICATE, String.valueOf(deduplicate));
+        pref.setProperty(prefix + DEIDENTIFY, String.valueOf(deidentify));
+        if (deidentificationProfile != null) {
+            pref.setProperty(prefix + DEIDENTIFY_PROFILE, deidentificationProfile.getPath());
+        }
+        pref.setProperty(prefix + MEDIUM_CUSTOM_SIZE, String.valueOf(Math.max(1L, customCapacity / (1024L * 1024L))));
+        pref.setProperty(prefix + EXPORT_THREADS, String.valueOf(threads));
+        pref.setProperty(prefix + JPEG_MEMORY_BUDGET, String.valueOf(Math.max(1L, jpegMemoryBudget / (1024L * 1024L))));
+    }
+
+    static long getLong(Properties pref, String key) {
+        String value = pref.getProperty(key);
+        if (StringUtil.hasText(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid value of {}: {}", key, value); //$NON-NLS-1$
+            }
+        }
+        return 0L;
+    }
+
+    public boolean isAddJpeg() {
+        return addJpeg;
+    }
+
+    public void setAddJpeg(boolean addJpeg) {
+        this.addJpeg = addJpeg;
+    }
+
+    public boolean isAddViewer() {
+        return addViewer;
+    }
+
+    public void setAddViewer(boolean addViewer) {
+        this.addViewer = addViewer;
+    }
+
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * @param jpegQuality
+     *            the quality of the JPEG images, between 1 and 100
+     */
+    public void setJpegQuality(int jpegQuality) {
+        this.jpegQuality = Math.max(1, Math.min(100, jpegQuality));
+    }
+
+    /**
+     * @return true when the sources are copied in a working directory before writing the image
+     */
+    public boolean isCopySources() {
+        return copySources;
+    }
+
+    public void setCopySources(boolean copySources) {
+        this.copySources = copySources;
+    }
+
+    public MediumType getMedium() {
+        return medium;
+    }
+
+    public void setMedium(MediumType medium) {
+        this.medium = medium == null ? MediumType.NONE : medium;
+    }
+
+    public long getCustomCapacity() {
+        return customCapacity;
+    }
+
+    /**
+     * @param customCapacity
+     *            the capacity in bytes of {@link MediumType#CUSTOM}
+     */
+    public void setCustomCapacity(long customCapacity) {
+        this.customCapacity = customCapacity;
+    }
+
+    /**
+     * @return the capacity of a volume in bytes, 0 when the export is not split
+     */
+    public long getCapacity() {
+        return medium == MediumType.CUSTOM ? customCapacity : medium.getCapacity();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public long getJpegMemoryBudget() {
+        return jpegMemoryBudget;
+    }
+
+    /**
+     * @param jpegMemoryBudget
+     *            the memory in bytes of the images decoded at the same time
+     */
+    public void setJpegMemoryBudget(long jpegMemoryBudget) {
+        this.jpegMemoryBudget = Math.max(1L, jpegMemoryBudget);
+    }
+
+    public boolean isRockRidge() {
+        return rockRidge;
+    }
+
+    public void setRockRidge(boolean rockRidge) {
+        this.rockRidge = rockRidge;
+    }
+
+    public boolean isJoliet() {
+        return joliet;
+    }
+
+    public void setJoliet(boolean joliet) {
+        this.joliet = joliet;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy == null ? SyncPolicy.NONE : syncPolicy;
+    }
+
+    public LayoutOrder getLayoutOrder() {
+        return layoutOrder;
+    }
+
+    public void setLayoutOrder(LayoutOrder layoutOrder) {
+        this.layoutOrder = layoutOrder == null ? LayoutOrder.SELECTION : layoutOrder;
+    }
+
+    /**
+     * @return the file system of the images, UDF is required for the files of 4 GB or more. The Rock Ridge and Joliet
+     *         options apply only to ISO 9660.
+     */
+    public FileSystemType getFileSystem() {
+        return fileSystem;
+    }
+
+    public void setFileSystem(FileSystemType fileSystem) {
+        this.fileSystem = fileSystem == null ? FileSystemType.ISO9660 : fileSystem;
+    }
+
+    public DicomSyntax getDicomSyntax() {
+        return dicomSyntax;
+    }
+
+    public void setDicomSyntax(DicomSyntax dicomSyntax) {
+        this.dicomSyntax = dicomSyntax == null ? DicomSyntax.ORIGINAL : dicomSyntax;
+    }
+
+    public int getDicomSyntaxRatio() {
+        return dicomSyntaxRatio;
+    }
+
+    /**
+     * @param dicomSyntaxRatio
+     *            the expected size in percent of the converted DICOM images compared to the original images, used to
+     *            estimate the size of the volumes
+     */
+    public void setDicomSyntaxRatio(int dicomSyntaxRatio) {
+        this.dicomSyntaxRatio = Math.max(1, dicomSyntaxRatio);
+    }
+
+    /**
+     * @return true when the graphics of a series are written in a single presentation state referencing all its
+     *         images, instead of one presentation state per image
+     */
+    public boolean isPresentationPerSeries() {
+        return presentationPerSeries;
+    }
+
+    public void setPresentationPerSeries(boolean presentationPerSeries) {
+        this.presentationPerSeries = presentationPerSeries;
+    }
+
+    /**
+     * @return true when the files having the same content are searched before mastering, the candidates of the same
+     *         size being read once more. A UDF image writes their content once; an ISO 9660 image still writes each
+     *         file, their size is only reported in the result.
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * @return true when the DICOM files are de-identified while they are written. The original files are never
+     *         referenced by the image, even when the sources are not copied.
+     */
+    public boolean isDeidentify() {
+        return deidentify;
+    }
+
+    public void setDeidentify(boolean deidentify) {
+        this.deidentify = deidentify;
+    }
+
+    /**
+     * @return the file of the de-identification profile, null for the default profile (see
+     *         {@link DeidentificationProfile})
+     */
+    public File getDeidentificationProfile() {
+        return deidentificationProfile;
+    }
+
+    public void setDeidentificationProfile(File deidentificationProfile) {
+        this.deidentificationProfile = deidentificationProfile;
+    }
+
+    /**
+     * @return the secret of the pseudonyms and of the new UIDs, or null when it is not set. Without key, a random
+     *         secret is created for each export and kept with its working files (see {@link ExportCheckpoint}): the
+     *         same patient has then different pseudonyms in two exports, but a resumed export keeps them.
+     */
+    public String getDeidentificationKey() {
+        return deidentificationKey;
+    }
+
+    /**
+     * @param deidentificationKey
+     *            the secret of the pseudonyms, the same key gives the same pseudonyms in all the exports
+     */
+    public void setDeidentificationKey(String deidentificationKey) {
+        this.deidentificationKey = StringUtil.hasText(deidentificationKey) ? deidentificationKey.trim() : null;
+    }
+}
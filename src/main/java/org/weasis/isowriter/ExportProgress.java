@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.FileUtil;
+
+/**
+ * Progress of an export, by stage.
+ * <p>
+ * The workers only increment counters. The message is polled at a bounded rate by the user interface, it also shows
+ * how long the export has not progressed, so a slow disk can be told apart from a blocked export.
+ */
+final class ExportProgress {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportProgress.class);
+
+    static final int REFRESH_DELAY = 200;
+    // Delay in ms without progress before showing the export as stalled
+    private static final long STALL_DELAY = 5000L;
+    private static final long STALL_LOG_DELAY = 60000L;
+
+    enum Stage {
+        DICOM("DICOM"), JPEG("JPEG"), VIEWER("Viewer"), MASTERING("Image");
+
+        private final String title;
+
+        private Stage(String title) {
+            this.title = title;
+        }
+
+        @Override
+        public String toString() {
+            return title;
+        }
+    }
+
+    private final AtomicLong[] items = new AtomicLong[Stage.values().length];
+    private final AtomicLong[] bytes = new AtomicLong[Stage.values().length];
+    private final long[] totalItems = new long[Stage.values().length];
+    private final AtomicLong lastProgress = new AtomicLong();
+
+    private volatile Stage stage = Stage.DICOM;
+    private volatile String volume = ""; //$NON-NLS-1$
+    private volatile long totalBytes;
+    private volatile long stageStart;
+
+    // Rate computed when polling the message
+    private long lastBytes;
+    private long lastTime;
+    private double rate;
+    private boolean stallLogged;
+
+    ExportProgress() {
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new AtomicLong();
+            bytes[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Start a volume. The totals come from the estimate of the volume.
+     */
+    void start(String volumeName, ExportEstimator.Estimate estimate) {
+        // Log the last stage of the previous volume
+        setStage(Stage.DICOM);
+        for (int i = 0; i < items.length; i++) {
+            items[i].set(0L);
+            bytes[i].set(0L);
+        }
+        totalItems[Stage.DICOM.ordinal()] = estimate.getDicomCount();
+        totalItems[Stage.JPEG.ordinal()] = estimate.getJpegCount();
+        totalItems[Stage.VIEWER.ordinal()] = estimate.getViewerSize() > 0 ? 1 : 0;
+        totalItems[Stage.MASTERING.ordinal()] = 1;
+        // The data are written once in the working directory or referenced, then once in the image
+        totalBytes = estimate.getDicomSize() + estimate.getJpegSize() + estimate.getViewerSize()
+            + estimate.getTotalSize();
+        volume = volumeName == null ? "" : volumeName; //$NON-NLS-1$
+        synchronized (this) {
+            lastBytes = 0L;
+            lastTime = System.currentTimeMillis();
+            rate = 0.0;
+            stallLogged = false;
+        }
+    }
+
+    void setStage(Stage stage) {
+        if (this.stage != stage) {
+            logStage(this.stage);
+        }
+        this.stage = stage;
+        this.stageStart = System.currentTimeMillis();
+        lastProgress.set(stageStart);
+    }
+
+    void add(Stage stage, long size) {
+        add(stage, 1L, size);
+    }
+
+    void add(Stage stage, long count, long size) {
+        items[stage.ordinal()].addAndGet(count);
+        bytes[stage.ordinal()].addAndGet(size);
+        lastProgress.set(System.currentTimeMillis());
+    }
+
+    void stop() {
+        logStage(stage);
+    }
+
+    long getItems(Stage s) {
+        return items[s.ordinal()].get();
+    }
+
+    long getBytes(Stage s) {
+        return bytes[s.ordinal()].get();
+    }
+
+    /**
+     * @return the progress of the current volume, between 0 and maximum
+     */
+    int getProgress(int maximum) {
+        long total = totalBytes;
+        return total > 0 ? (int) Math.min(maximum, getBytes() * maximum / total) : 0;
+    }
+
+    private long getBytes() {
+        long total = 0L;
+        for (AtomicLong b : bytes) {
+            total += b.get();
+        }
+        return total;
+    }
+
+    private void logStage(Stage s) {
+        long elapsed = System.currentTimeMillis() - stageStart;
+        long size = bytes[s.ordinal()].get();
+        LOGGER.info("{} {}: {} items, {} in {} ms ({}/s)", volume, s, items[s.ordinal()].get(), //$NON-NLS-1$
+            FileUtil.formatSize(size), elapsed, FileUtil.formatSize(elapsed > 0 ? size * 1000.0 / elapsed : 0.0));
+    }
+
+    /**
+     * @return the description of the progress, the throughput is computed since the previous call
+     */
+    synchronized String getMessage() {
+        long now = System.currentTimeMillis();
+        long done = getBytes();
+        if (now > lastTime) {
+            double current = (done - lastBytes) * 1000.0 / (now - lastTime);
+            // Smooth the rate over the last seconds
+            rate = rate <= 0.0 ? current : rate * 0.8 + current * 0.2;
+            lastBytes = done;
+            lastTime = now;
+        }
+
+        StringBuilder buf = new StringBuilder(volume);
+        if (buf.length() > 0) {
+            buf.append(" - "); //$NON-NLS-1$
+        }
+        Stage s = stage;
+        if (s == Stage.DICOM || s == Stage.JPEG) {
+            appendItems(buf, Stage.DICOM);
+            if (totalItems[Stage.JPEG.ordinal()] > 0) {
+                buf.append(", "); //$NON-NLS-1$
+                appendItems(buf, Stage.JPEG);
+            }
+        } else if (s == Stage.VIEWER) {
+            buf.append(s);
+        } else {
+            buf.append(s).append(' ').append(FileUtil.formatSize(bytes[s.ordinal()].get()));
+        }
+        buf.append(", ").append(FileUtil.formatSize(rate)).append("/s"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        long idle = now - lastProgress.get();
+        if (idle > STALL_DELAY) {
+            buf.append(", no progress for ").append(idle / 1000L).append(" s"); //$NON-NLS-1$ //$NON-NLS-2$
+            if (idle > STALL_LOG_DELAY && !stallLogged) {
+                stallLogged = true;
+                LOGGER.warn("{} {}: no progress for {} s", volume, s, idle / 1000L); //$NON-NLS-1$
+            }
+        } else {
+            stallLogged = false;
+            long total = totalBytes;
+            if (rate > 0.0 && total > done) {
+                buf.append(", ETA ").append(formatDuration((long) ((total - done) / rate))); //$NON-NLS-1$
+            }
+        }
+        return buf.toString();
+    }
+
+    private void appendItems(StringBuilder buf, Stage s) {
+        buf.append(s).append(' ').append(items[s.ordinal()].get()).append('/').append(totalItems[s.ordinal()]);
+    }
+
+    static String formatDuration(long seconds) {
+        StringBuilder buf = new StringBuilder();
+        if (seconds >= 3600) {
+            buf.append(seconds / 3600).append(" h "); //$NON-NLS-1$
+        }
+        if (seconds >= 60) {
+            buf.append((seconds % 3600) / 60).append(" min "); //$NON-NLS-1$
+        }
+        buf.append(seconds % 60).append(" s"); //$NON-NLS-1$
+        return buf.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result and statistics of an ISO export.
+ */
+public class ExportResult {
+
+    private final List<File> images = new ArrayList<>();
+    private boolean cancelled;
+    private long dicomCount;
+    private long jpegCount;
+    private long dataSize;
+    private long imageSize;
+    private long duplicateSize;
+    private long droppedCount;
+    private long duration;
+
+    void addImage(File image) {
+        images.add(image);
+        imageSize += image.length();
+    }
+
+    void addStatistics(ExportProgress progress) {
+        dicomCount += progress.getItems(ExportProgress.Stage.DICOM);
+        jpegCount += progress.getItems(ExportProgress.Stage.JPEG);
+        for (ExportProgress.Stage stage : ExportProgress.Stage.values()) {
+            if (stage != ExportProgress.Stage.MASTERING) {
+                dataSize += progress.getBytes(stage);
+            }
+        }
+    }
+
+    /**
+     * Add an image written in a stream.
+     */
+    void addStreamedImage(long size) {
+        imageSize += size;
+    }
+
+    void addDuplicateSize(long size) {
+        duplicateSize += size;
+    }
+
+    void addDroppedCount(long count) {
+        droppedCount += count;
+    }
+
+    void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * @return the ISO images, one for each volume. The list is empty when the image has been written in a stream.
+     */
+    public List<File> getImages() {
+        return Collections.unmodifiableList(images);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the number of DICOM files written in the images
+     */
+    public long getDicomCount() {
+        return dicomCount;
+    }
+
+    /**
+     * @return the number of JPEG files written in the images
+     */
+    public long getJpegCount() {
+        return jpegCount;
+    }
+
+    /**
+     * @return the size in bytes of the files added to the images
+     */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * @return the total size in bytes of the images
+     */
+    public long getImageSize() {
+        return imageSize;
+    }
+
+    /**
+     * @return the size in bytes of the files whose content is identical to another file of the same image, 0 when they
+     *         are not searched (see {@link ExportOptions#isDeduplicate()}). This size is saved in the UDF images.
+     */
+    public long getDuplicateSize() {
+        return duplicateSize;
+    }
+
+    /**
+     * @return the number of items of a progressive export which have never been available, e.g. instances whose file
+     *         was not in the cache at the end of the loading (see {@link ExportFeed#getDroppedCount()})
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the duration of the export in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+        return images.size() + " image(s), " + dicomCount + " DICOM, " + jpegCount + " JPEG, " + imageSize //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + " bytes (" + duplicateSize + " duplicated) in " + duration + " ms" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + (droppedCount > 0 ? ", " + droppedCount + " not available" : "") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + (cancelled ? " (cancelled)" : ""); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
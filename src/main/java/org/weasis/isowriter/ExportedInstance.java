@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+import org.dcm4che3.data.Attributes;
+import org.weasis.core.api.media.data.MediaElement;
+
+/**
+ * A DICOM file written in the export and waiting for its DICOMDIR record.
+ */
+final class ExportedInstance {
+    private final MediaElement media;
+    private final Attributes dataset;
+    private final String fileID;
+    private final File destinationFile;
+    private final Future<Attributes> seriesIcon;
+    private final String transferSyntax;
+
+    ExportedInstance(MediaElement media, String fileID, File destinationFile, Future<Attributes> seriesIcon) {
+        this(media, null, fileID, destinationFile, seriesIcon, null);
+    }
+
+    ExportedInstance(MediaElement media, String fileID, File destinationFile, Future<Attributes> seriesIcon,
+        String transferSyntax) {
+        this(media, null, fileID, destinationFile, seriesIcon, transferSyntax);
+    }
+
+    ExportedInstance(Attributes dataset, String fileID, File destinationFile) {
+        this(null, dataset, fileID, destinationFile, null, null);
+    }
+
+    ExportedInstance(Attributes dataset, String fileID, File destinationFile, Future<Attributes> seriesIcon,
+        String transferSyntax) {
+        this(null, dataset, fileID, destinationFile, seriesIcon, transferSyntax);
+    }
+
+    private ExportedInstance(MediaElement media, Attributes dataset, String fileID, File destinationFile,
+        Future<Attributes> seriesIcon, String transferSyntax) {
+        this.media = media;
+        this.dataset = dataset;
+        this.fileID = fileID;
+        this.destinationFile = destinationFile;
+        this.seriesIcon = seriesIcon;
+        this.transferSyntax = transferSyntax;
+    }
+
+    public MediaElement getMedia() {
+        return media;
+    }
+
+    public Attributes getDataset() {
+        return dataset;
+    }
+
+    public String getFileID() {
+        return fileID;
+    }
+
+    public File getDestinationFile() {
+        return destinationFile;
+    }
+
+    /**
+     * @return the icon of the series record, which may still be in progress (can be null)
+     */
+    public Future<Attributes> getSeriesIcon() {
+        return seriesIcon;
+    }
+
+    /**
+     * @return the transfer syntax of the written file when it has been converted, otherwise null
+     */
+    public String getTransferSyntax() {
+        return transferSyntax;
+    }
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+/**
+ * File system of the images.
+ */
+public enum FileSystemType {
+    // ISO 9660 level 1 with Rock Ridge and Joliet, the files are smaller than 4 GB
+    ISO9660("ISO 9660"),
+
+    // UDF 1.02 without ISO 9660 structures, no limit on the size of the files
+    UDF("UDF 1.02");
+
+    private final String title;
+
+    private FileSystemType(String title) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+
+    public static FileSystemType getFileSystemType(String name) {
+        if (name != null) {
+            try {
+                return FileSystemType.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                // Do nothing
+            }
+        }
+        return ISO9660;
+    }
+}
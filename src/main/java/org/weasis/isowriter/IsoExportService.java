@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.weasis.core.api.media.data.MediaSeriesGroup;
+import org.weasis.dicom.explorer.DicomModel;
+
+/**
+ * Service building ISO images without user interface, e.g. from scripts or batch jobs.
+ * <p>
+ * The exports are queued and run in background. Cancelling the future stops the export at the next item.
+ */
+public interface IsoExportService {
+
+    /**
+     * Queue an export in the scheduler of the service.
+     *
+     * @param items
+     *            the items to export, in the order of the image
+     * @param exportFile
+     *            the ISO image. When the selection is split, the number of the volume is added to the name.
+     * @param options
+     *            the options of the export
+     * @return the job, which gives the state, the progress and the result of the export
+     */
+    ExportJob submit(List<ExportItem> items, File exportFile, ExportOptions options);
+
+    /**
+     * Queue an export of a selection which is still being loaded in the model, e.g. studies retrieved from a PACS. The
+     * instances are written as soon as their files are in the cache and the image is mastered when the loading is
+     * complete (see {@link DicomModelFeed}). The image is not split and the job is not restored after a restart.
+     *
+     * @param model
+     *            the model containing the selection
+     * @param selection
+     *            patients, studies or series to export
+     * @param exportFile
+     *            the ISO image
+     * @param options
+     *            the options of the export
+     * @return the job, which gives the state, the progress and the result of the export
+     */
+    ExportJob submitWhileLoading(DicomModel model, Collection<? extends MediaSeriesGroup> selection, File exportFile,
+        ExportOptions options);
+
+    /**
+     * @return the queued, running and finished jobs
+     */
+    List<ExportJob> getJobs();
+
+    /**
+     * Start a job restored in the {@link ExportJob.State#PAUSED} state. The jobs which were not finished at the last
+     * shutdown are restored paused, so they do not start without the approval of the user.
+     *
+     * @return false when the job is not paused or has been cancelled
+     */
+    boolean resume(ExportJob job);
+
+    /**
+     * @param items
+     *            the items to export, in the order of the image
+     * @param exportFile
+     *            the ISO image. When the selection is split, the number of the volume is added to the name.
+     * @param options
+     *            the options of the export
+     * @return the result of the export
+     */
+    Future<ExportResult> export(List<ExportItem> items, File exportFile, ExportOptions options);
+
+    /**
+     * @param model
+     *            the model containing the selection
+     * @param selection
+     *            patients, studies or series to export
+     * @param exportFile
+     *            the ISO image. When the selection is split, the number of the volume is added to the name.
+     * @param options
+     *            the options of the export
+     * @return the result of the export
+     */
+    Future<ExportResult> export(DicomModel model, Collection<? extends MediaSeriesGroup> selection, File exportFile,
+        ExportOptions options);
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.media.data.MediaSeriesGroup;
+import org.weasis.core.api.service.BundlePreferences;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.dicom.explorer.DicomModel;
+
+@org.osgi.service.component.annotations.Component(service = IsoExportService.class, immediate = true)
+public class IsoExportServiceImpl implements IsoExportService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IsoExportServiceImpl.class);
+
+    private static final String JOBS_FILE = "export-jobs.properties"; //$NON-NLS-1$
+
+    private volatile ExportJobScheduler scheduler;
+
+    @Override
+    public ExportJob submit(List<ExportItem> items, File exportFile, ExportOptions options) {
+        if (items == null || exportFile == null) {
+            throw new IllegalArgumentException("Items and export file cannot be null"); //$NON-NLS-1$
+        }
+        ExportJobScheduler jobScheduler = scheduler;
+        if (jobScheduler == null) {
+            throw new IllegalStateException("The ISO export service is not activated"); //$NON-NLS-1$
+        }
+        return jobScheduler.submit(items, exportFile, options);
+    }
+
+    @Override
+    public ExportJob submitWhileLoading(DicomModel model, Collection<? extends MediaSeriesGroup> selection,
+        File exportFile, ExportOptions options) {
+        if (model == null || selection == null || exportFile == null) {
+            throw new IllegalArgumentException("Model, selection and export file cannot be null"); //$NON-NLS-1$
+        }
+        ExportJobScheduler jobScheduler = scheduler;
+        if (jobScheduler == null) {
+            throw new IllegalStateException("The ISO export service is not activated"); //$NON-NLS-1$
+        }
+        DicomModelFeed modelFeed = new DicomModelFeed(model, selection);
+        ExportJob job = jobScheduler.submit(modelFeed.getFeed(), exportFile, options);
+        // Stop listening to the model when the job is cancelled or fails
+        job.getFuture().whenComplete((r, t) -> modelFeed.stop());
+        modelFeed.start();
+        return job;
+    }
+
+    @Override
+    public List<ExportJob> getJobs() {
+        ExportJobScheduler jobScheduler = scheduler;
+        return jobScheduler == null ? Collections.emptyList() : jobScheduler.getJobs();
+    }
+
+    @Override
+    public boolean resume(ExportJob job) {
+        ExportJobScheduler jobScheduler = scheduler;
+        return jobScheduler != null && jobScheduler.resume(job);
+    }
+
+    @Override
+    public Future<ExportResult> export(List<ExportItem> items, File exportFile, ExportOptions options) {
+        return submit(items, exportFile, options).getFuture();
+    }
+
+    @Override
+    public Future<ExportResult> export(DicomModel model, Collection<? extends MediaSeriesGroup> selection,
+        File exportFile, ExportOptions options) {
+        return export(ExportItem.fromModel(model, selection), exportFile, options);
+    }
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        // The queued jobs are saved next to export.properties
+        File dataFolder = BundlePreferences.getDataFolder(context.getBundleContext());
+        Properties pref = new Properties();
+        FileUtil.readProperties(new File(dataFolder, "export.properties"), pref); //$NON-NLS-1$
+        ExportJobScheduler jobScheduler = new ExportJobScheduler(new File(dataFolder, JOBS_FILE), pref);
+        scheduler = jobScheduler;
+        jobScheduler.restore();
+        LOGGER.info("ISO export service is activated"); //$NON-NLS-1$
+    }
+
+    @Deactivate
+    protected void deactivate(ComponentContext context) {
+        ExportJobScheduler jobScheduler = scheduler;
+        scheduler = null;
+        if (jobScheduler != null) {
+            jobScheduler.shutdown();
+        }
+        LOGGER.info("ISO export service is deactivated"); //$NON-NLS-1$
+    }
+}
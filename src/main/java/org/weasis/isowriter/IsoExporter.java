@@ -0,0 +1,1386 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.operator.SubsampleAverageDescriptor;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.UIDUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.gui.util.AppProperties;
+import org.weasis.core.api.image.util.ImageFiler;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.MediaSeries;
+import org.weasis.core.api.media.data.Series;
+import org.weasis.core.api.media.data.TagW;
+import org.weasis.core.api.media.data.Thumbnail;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.core.api.util.ResourceUtil;
+import org.weasis.core.api.util.StringUtil;
+import org.weasis.core.api.util.StringUtil.Suffix;
+import org.weasis.core.ui.model.GraphicModel;
+import org.weasis.dicom.codec.DcmMediaReader;
+import org.weasis.dicom.codec.DicomImageElement;
+import org.weasis.dicom.codec.DicomSeries;
+import org.weasis.dicom.codec.FileExtractor;
+import org.weasis.dicom.codec.TagD;
+import org.weasis.dicom.explorer.pr.DicomPrSerializer;
+import org.weasis.isowriter.VolumePlanner.Volume;
+
+import com.github.stephenc.javaisotools.iso9660.ConfigException;
+import com.github.stephenc.javaisotools.iso9660.ISO9660RootDirectory;
+import com.github.stephenc.javaisotools.iso9660.impl.CreateISO;
+import com.github.stephenc.javaisotools.iso9660.impl.ISO9660Config;
+import com.github.stephenc.javaisotools.joliet.impl.JolietConfig;
+import com.github.stephenc.javaisotools.rockridge.impl.RockRidgeConfig;
+import com.github.stephenc.javaisotools.sabre.DataReference;
+import com.github.stephenc.javaisotools.sabre.HandlerException;
+import com.github.stephenc.javaisotools.sabre.StreamHandler;
+
+/**
+ * Builds the ISO images of a selection, without any user interface.
+ * <p>
+ * The selection is split into volumes according to the capacity of the medium. Each volume has its own DICOMDIR,
+ * JPEG images and viewer.
+ */
+public class IsoExporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IsoExporter.class);
+
+    private final ExportOptions options;
+    private final ExportProgress progress;
+    private final ExportLimits limits;
+    private final File workingRoot;
+
+    public IsoExporter(ExportOptions options) {
+        this(options, new ExportProgress(), ExportLimits.UNLIMITED,
+            AppProperties.buildAccessibleTempDirectory("tmp", "burn")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * @param workingRoot
+     *            the folder of the working directories, which are kept until the export is complete
+     */
+    IsoExporter(ExportOptions options, ExportProgress progress, ExportLimits limits, File workingRoot) {
+        if (options == null || progress == null || limits == null || workingRoot == null) {
+            throw new IllegalArgumentException("Options, progress, limits and working folder cannot be null"); //$NON-NLS-1$
+        }
+        this.options = options;
+        this.progress = progress;
+        this.limits = limits;
+        this.workingRoot = workingRoot;
+    }
+
+    public ExportOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Export the items in one or several ISO images.
+     * <p>
+     * When a previous export of the same selection to the same file has been cancelled or interrupted, the files and
+     * the volumes already written are reused.
+     *
+     * @param items
+     *            the items to export, in the order of the selection
+     * @param exportFile
+     *            the ISO image. When the selection is split, the number of the volume is added to the name.
+     * @param cancelled
+     *            indicates when the export must be stopped
+     * @return the result of the export
+     */
+    public ExportResult export(List<ExportItem> items, File exportFile, BooleanSupplier cancelled)
+        throws IOException {
+        long start = System.currentTimeMillis();
+        ExportResult result = new ExportResult();
+        List<List<ExportItem>> volumes = planVolumes(items);
+        ExportCheckpoint checkpoint =
+            ExportCheckpoint.open(workingRoot, exportFile, ExportCheckpoint.getSignature(items, options));
+        try {
+            for (int i = 0; i < volumes.size(); i++) {
+                if (cancelled.getAsBoolean()) {
+                    result.setCancelled(true);
+                    break;
+                }
+                List<ExportItem> volume = volumes.get(i);
+                File volumeFile = volumes.size() == 1 ? exportFile : getVolumeFile(exportFile, i + 1);
+                if (checkpoint.isVolumeDone(i + 1, volumeFile)) {
+                    LOGGER.info("The image {} has already been written", volumeFile); //$NON-NLS-1$
+                    result.addImage(volumeFile);
+                    continue;
+                }
+                ExportEstimator.Estimate estimate = new ExportEstimator(options).estimate(volume);
+                String volumeName = volumes.size() == 1 ? "" : "Volume " + (i + 1) + "/" + volumes.size(); //$NON-NLS-1$
+                progress.start(volumeName, estimate);
+                long startTime = System.currentTimeMillis();
+                // Each volume has its own DICOMDIR and viewer
+                File volumeDir = checkpoint.getVolumeDir(i + 1);
+                volumeDir.mkdirs();
+                IsoLayout layout = new IsoLayout(volumeDir, options.isCopySources());
+                ViewerCache.Distribution viewer = null;
+                try {
+                    if (!limits.acquire(ExportLimits.Resource.DISK, cancelled)) {
+                        result.setCancelled(true);
+                        break;
+                    }
+                    try {
+                        writeMedia(layout, volume, checkpoint, cancelled);
+                        if (options.isAddViewer()) {
+                            progress.setStage(ExportProgress.Stage.VIEWER);
+                            viewer = addViewer(layout);
+                        }
+                        deduplicate(layout, result, cancelled);
+                    } finally {
+                        limits.release(ExportLimits.Resource.DISK);
+                    }
+                    if (cancelled.getAsBoolean() || !limits.acquire(ExportLimits.Resource.MASTERING, cancelled)) {
+                        result.setCancelled(true);
+                        break;
+                    }
+                    File image;
+                    try {
+                        progress.setStage(ExportProgress.Stage.MASTERING);
+                        image = makeISO(layout, volumeFile, cancelled);
+                    } finally {
+                        limits.release(ExportLimits.Resource.MASTERING);
+                    }
+                    if (cancelled.getAsBoolean()) {
+                        // Remove the incomplete image
+                        volumeFile.delete();
+                        result.setCancelled(true);
+                        break;
+                    }
+                    if (image == null) {
+                        volumeFile.delete();
+                        throw new IOException("Cannot write the ISO image " + volumeFile); //$NON-NLS-1$
+                    }
+                    result.addImage(image);
+                    checkpoint.setVolumeDone(i + 1, image);
+                    ExportEstimator.recordThroughput(options.isAddJpeg(), image.length(),
+                        System.currentTimeMillis() - startTime);
+                } finally {
+                    ViewerCache.release(viewer);
+                    result.addStatistics(progress);
+                }
+            }
+        } finally {
+            progress.stop();
+            if (result.isCancelled() || cancelled.getAsBoolean()) {
+                // Keep the work done to resume the export
+                checkpoint.close();
+            } else {
+                // Complete, or failed: the same export would fail again, the working directory is not kept
+                checkpoint.dispose();
+            }
+            result.setDuration(System.currentTimeMillis() - start);
+        }
+        LOGGER.info("ISO export of {}: {}", exportFile, result); //$NON-NLS-1$
+        return result;
+    }
+
+    /**
+     * Export the items in a single ISO image written sequentially in a stream, e.g. the input of a burner process or
+     * an upload. The image is never written backwards and is not stored in a file.
+     *
+     * @param items
+     *            the items to export, in the order of the selection
+     * @param output
+     *            the stream of the image, which is not closed
+     * @param cancelled
+     *            indicates when the export must be stopped
+     * @return the result of the export
+     * @throws IOException
+     *             if the items cannot be written or if they do not fit in one medium
+     */
+    public ExportResult export(List<ExportItem> items, OutputStream output, BooleanSupplier cancelled)
+        throws IOException {
+        return export(items, Channels.newChannel(output), cancelled);
+    }
+
+    /**
+     * Export the items in a single ISO image written sequentially in a channel.
+     *
+     * @see #export(List, OutputStream, BooleanSupplier)
+     */
+    public ExportResult export(List<ExportItem> items, WritableByteChannel output, BooleanSupplier cancelled)
+        throws IOException {
+        if (output == null) {
+            throw new IllegalArgumentException("Output cannot be null"); //$NON-NLS-1$
+        }
+        if (planVolumes(items).size() > 1) {
+            throw new IOException("The selection does not fit on one medium, it cannot be streamed"); //$NON-NLS-1$
+        }
+        long start = System.currentTimeMillis();
+        ExportResult result = new ExportResult();
+        progress.start("", new ExportEstimator(options).estimate(items)); //$NON-NLS-1$
+        // Nothing to resume without a file, the working directory is temporary
+        ExportCheckpoint checkpoint = ExportCheckpoint.temporary(FileUtil.createTempDir(workingRoot));
+        IsoLayout layout = new IsoLayout(checkpoint.getVolumeDir(1), options.isCopySources());
+        layout.getWorkingDir().mkdirs();
+        ViewerCache.Distribution viewer = null;
+        try {
+            if (!limits.acquire(ExportLimits.Resource.DISK, cancelled)) {
+                result.setCancelled(true);
+                return result;
+            }
+            try {
+                writeMedia(layout, items, checkpoint, cancelled);
+                if (options.isAddViewer()) {
+                    progress.setStage(ExportProgress.Stage.VIEWER);
+                    viewer = addViewer(layout);
+                }
+                deduplicate(layout, result, cancelled);
+            } finally {
+                limits.release(ExportLimits.Resource.DISK);
+            }
+            if (cancelled.getAsBoolean() || !limits.acquire(ExportLimits.Resource.MASTERING, cancelled)) {
+                result.setCancelled(true);
+                return result;
+            }
+            long size;
+            try {
+                progress.setStage(ExportProgress.Stage.MASTERING);
+                size = makeISO(layout, output, cancelled);
+            } finally {
+                limits.release(ExportLimits.Resource.MASTERING);
+            }
+            if (cancelled.getAsBoolean()) {
+                result.setCancelled(true);
+            } else if (size < 0) {
+                throw new IOException("Cannot write the ISO image in the stream"); //$NON-NLS-1$
+            } else {
+                result.addStreamedImage(size);
+            }
+        } finally {
+            ViewerCache.release(viewer);
+            progress.stop();
+            result.addStatistics(progress);
+            checkpoint.dispose();
+            result.setDuration(System.currentTimeMillis() - start);
+        }
+        LOGGER.info("ISO export in a stream: {}", result); //$NON-NLS-1$
+        return result;
+    }
+
+    /**
+     * Export the items of a feed in a single ISO image while they are added, e.g. while the studies are loaded. The
+     * image is mastered when the feed is finished.
+     * <p>
+     * The size of the selection is not known in advance: the export is not split into volumes, the files are written
+     * in the order of arrival and the export cannot be resumed.
+     *
+     * @param feed
+     *            the items to export, iterated once
+     * @param exportFile
+     *            the ISO image
+     * @param cancelled
+     *            indicates when the export must be stopped
+     * @return the result of the export
+     */
+    public ExportResult export(ExportFeed feed, File exportFile, BooleanSupplier cancelled) throws IOException {
+        if (feed == null || exportFile == null) {
+            throw new IllegalArgumentException("Feed and export file cannot be null"); //$NON-NLS-1$
+        }
+        if (options.getCapacity() > 0) {
+            LOGGER.warn("A progressive export cannot be split, {} is written in a single image", exportFile); //$NON-NLS-1$
+        }
+        long start = System.currentTimeMillis();
+        ExportResult result = new ExportResult();
+        feed.setCancelled(cancelled);
+        progress.start("", new ExportEstimator(options).estimate(Collections.emptyList())); //$NON-NLS-1$
+        ExportCheckpoint checkpoint = ExportCheckpoint.temporary(FileUtil.createTempDir(workingRoot));
+        IsoLayout layout = new IsoLayout(checkpoint.getVolumeDir(1), options.isCopySources());
+        layout.getWorkingDir().mkdirs();
+        ViewerCache.Distribution viewer = null;
+        try {
+            if (!limits.acquire(ExportLimits.Resource.DISK, cancelled)) {
+                result.setCancelled(true);
+                return result;
+            }
+            try {
+                writeMedia(layout, feed, Collections.emptyList(), checkpoint, cancelled);
+                if (options.isAddViewer() && !cancelled.getAsBoolean()) {
+                    progress.setStage(ExportProgress.Stage.VIEWER);
+                    viewer = addViewer(layout);
+                }
+                deduplicate(layout, result, cancelled);
+            } finally {
+                limits.release(ExportLimits.Resource.DISK);
+            }
+            if (cancelled.getAsBoolean() || !limits.acquire(ExportLimits.Resource.MASTERING, cancelled)) {
+                result.setCancelled(true);
+                return result;
+            }
+            File image;
+            try {
+                progress.setStage(ExportProgress.Stage.MASTERING);
+                image = makeISO(layout, exportFile, cancelled);
+            } finally {
+                limits.release(ExportLimits.Resource.MASTERING);
+            }
+            if (cancelled.getAsBoolean()) {
+                result.setCancelled(true);
+                exportFile.delete();
+            } else if (image == null) {
+                exportFile.delete();
+                throw new IOException("Cannot write the ISO image " + exportFile); //$NON-NLS-1$
+            } else {
+                result.addImage(image);
+            }
+        } finally {
+            ViewerCache.release(viewer);
+            result.addDroppedCount(feed.getDroppedCount());
+            progress.stop();
+            result.addStatistics(progress);
+            checkpoint.dispose();
+            result.setDuration(System.currentTimeMillis() - start);
+        }
+        LOGGER.info("Progressive ISO export: {}", result); //$NON-NLS-1$
+        return result;
+    }
+
+    /**
+     * Search the files having the same content, only when it is requested by the options as the candidates are read
+     * again. They are written once in a UDF image and only reported in an ISO 9660 image.
+     */
+    private void deduplicate(IsoLayout layout, ExportResult result, BooleanSupplier cancelled) {
+        if (!options.isDeduplicate()) {
+            return;
+        }
+        long duplicateSize = layout.deduplicate(cancelled);
+        if (duplicateSize > 0) {
+            if (options.getFileSystem() == FileSystemType.UDF) {
+                LOGGER.info("{} of identical files are written once", FileUtil.formatSize(duplicateSize)); //$NON-NLS-1$
+            } else {
+                LOGGER.info("The image contains {} of identical files", FileUtil.formatSize(duplicateSize)); //$NON-NLS-1$
+            }
+            result.addDuplicateSize(duplicateSize);
+        }
+    }
+
+    private List<List<ExportItem>> planVolumes(List<ExportItem> items) throws IOException {
+        long capacity = options.getCapacity();
+        if (capacity <= 0) {
+            return Collections.singletonList(items);
+        }
+        ExportEstimator estimator = new ExportEstimator(options);
+        long overhead = estimator.getVolumeOverhead();
+        if (capacity <= overhead) {
+            throw new IOException(getCapacityError(capacity, overhead));
+        }
+        List<Volume> volumes = new VolumePlanner(capacity, overhead).plan(items, estimator::getItemSize);
+        LOGGER.info("The export is split into {} volume(s)", volumes.size()); //$NON-NLS-1$
+        List<List<ExportItem>> list = new ArrayList<>(volumes.size());
+        for (Volume volume : volumes) {
+            list.add(volume.getItems());
+        }
+        return list;
+    }
+
+    /**
+     * @return the message when the capacity of the medium is smaller than the size required on each volume
+     */
+    static String getCapacityError(long capacity, long overhead) {
+        return "The capacity of the medium (" + FileUtil.formatSize(capacity) //$NON-NLS-1$
+            + ") is too small for the viewer and the DICOMDIR of each image (" + FileUtil.formatSize(overhead) + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    static File getVolumeFile(File file, int number) {
+        String name = file.getName();
+        int index = name.lastIndexOf('.');
+        String volumeName = index > 0 ? name.substring(0, index) + "-" + number + name.substring(index) //$NON-NLS-1$
+            : name + "-" + number; //$NON-NLS-1$
+        return new File(file.getParentFile(), volumeName);
+    }
+
+    /**
+     * @return the distribution extracted in the cache, to release when the image is written, or null when it is
+     *         extracted in the working directory
+     */
+    private ViewerCache.Distribution addViewer(IsoLayout layout) throws IOException {
+        // The distribution extracted in the cache is referenced without copy, with the sizes recorded in the cache
+        ViewerCache.Distribution viewer = ViewerCache.acquire();
+        if (viewer != null) {
+            layout.addTree(viewer.getDirectory(), viewer.getFiles(), "");
+            progress.add(ExportProgress.Stage.VIEWER, viewer.getTreeSize());
+            return viewer;
+        }
+        URL url = ResourceUtil.getResourceURL(ViewerCache.DISTRIBUTION, this.getClass());
+        if (url == null) {
+            LOGGER.error("Cannot find the embedded portable distribution");
+            return null;
+        }
+        File viewerDir = new File(layout.getWorkingDir(), ".viewer"); //$NON-NLS-1$
+        viewerDir.mkdirs();
+        FileUtil.unzip(url.openStream(), viewerDir);
+        layout.addTree(viewerDir, "");
+        progress.add(ExportProgress.Stage.VIEWER, VolumePlanner.getTreeSize(viewerDir));
+        return null;
+    }
+
+    private void writeMedia(IsoLayout layout, List<ExportItem> items, ExportCheckpoint checkpoint,
+        BooleanSupplier cancelled) throws IOException {
+        writeMedia(layout, items, items, checkpoint, cancelled);
+    }
+
+    /**
+     * @param items
+     *            the items to write, which can be added during the iteration (see {@link ExportFeed})
+     * @param selection
+     *            the items known before the iteration, which can be empty
+     */
+    private void writeMedia(IsoLayout layout, Iterable<ExportItem> items, List<ExportItem> selection,
+        ExportCheckpoint checkpoint, BooleanSupplier cancelled) throws IOException {
+        boolean addJpeg = options.isAddJpeg();
+        int jpegQuality = options.getJpegQuality();
+        boolean presentationPerSeries = options.isPresentationPerSeries();
+        Deidentifier deidentifier = getDeidentifier(checkpoint);
+        boolean keepNames = false;
+        boolean writeDicomdir = true;
+        boolean cdCompatible = true;
+        // Keep the names of the tree for the JPEG folders, unless they identify the patient
+        boolean keepJpegNames = deidentifier == null;
+
+        File writeDir = layout.getWorkingDir();
+        File jpegDir = layout.getFile("JPEG"); //$NON-NLS-1$
+
+        DicomDirBuilder dicomdir = null;
+        try {
+
+            if (writeDicomdir) {
+                File dcmdirFile = new File(writeDir, "DICOMDIR"); //$NON-NLS-1$
+                dicomdir = new DicomDirBuilder(dcmdirFile);
+                layout.addGenerated(dcmdirFile);
+            }
+            final DicomDirBuilder dicomdirBuilder = dicomdir;
+
+            Set<MediaElement> selectedImages = new HashSet<>();
+            for (ExportItem item : selection) {
+                if (item.getMedia() instanceof DicomImageElement) {
+                    selectedImages.add(item.getMedia());
+                }
+            }
+            boolean readOptimized = options.getLayoutOrder() == ExportOptions.LayoutOrder.READ_OPTIMIZED;
+            // The ISO 9660 writer ignores the order of the layout, only the names of the instances apply
+            layout.setReadOptimized(readOptimized && options.getFileSystem() == FileSystemType.UDF);
+            Map<String, String> orderedNames = readOptimized
+                ? getOrderedFileNames(selection, keepNames, writeDicomdir, cdCompatible) : Collections.emptyMap();
+
+            // Each media is visited once: the workers write the DICOM file, render the JPEG and build the series
+            // icon from the same decoded image. The DICOMDIR records are collected only by the current thread, in
+            // the order of the selection.
+            MemoryBudget budget = new MemoryBudget(options.getJpegMemoryBudget());
+            Map<DicomSeries, CompletableFuture<Attributes>> icons = new HashMap<>();
+            Set<MediaElement> rendered = new HashSet<>();
+            try (OrderedExecutor<List<ExportedInstance>> executor =
+                new OrderedExecutor<>("Burn DICOM", options.getThreads(), instances -> { //$NON-NLS-1$
+                    for (ExportedInstance instance : instances) {
+                        writeInDicomDir(dicomdirBuilder, instance);
+                    }
+                })) {
+                Set<String> uids = new HashSet<>();
+                for (ExportItem item : items) {
+                    if (cancelled.getAsBoolean()) {
+                        return;
+                    }
+
+                    MediaElement media = item.getMedia();
+                    String[] folderNames = item.getFolderNames();
+
+                    CompletableFuture<Attributes> icon = null;
+                    if (writeDicomdir && media != null && item.getSeries() instanceof DicomSeries) {
+                        DicomSeries series = (DicomSeries) item.getSeries();
+                        icon = icons.get(series);
+                        if (icon == null) {
+                            icon = new CompletableFuture<>();
+                            icons.put(series, icon);
+                            String seriesUID = SeriesIconCache.getKey(series);
+                            Attributes cachedIcon = SeriesIconCache.get(seriesUID);
+                            DicomImageElement midImage = series.getMedia(MediaSeries.MEDIA_POSITION.MIDDLE, null, null);
+                            // Submit the icon before the first instance of the series, which needs it for the series
+                            // record
+                            if (cachedIcon != null) {
+                                // Built by a previous export
+                                icon.complete(cachedIcon);
+                            } else if (addJpeg && midImage != null && selectedImages.contains(midImage)) {
+                                icon.thenAccept(a -> SeriesIconCache.put(seriesUID, a));
+                                rendered.add(midImage);
+                                File jpegFile =
+                                    getJpegFile(midImage, folderNames, jpegDir, keepJpegNames, deidentifier);
+                                submitImage(executor, budget, midImage, null, null, null, jpegFile, jpegQuality, icon,
+                                    deidentifier, layout, checkpoint, cancelled);
+                            } else {
+                                icon.thenAccept(a -> SeriesIconCache.put(seriesUID, a));
+                                CompletableFuture<Attributes> seriesIcon = icon;
+                                executor.submit(() -> {
+                                    try {
+                                        seriesIcon.complete(buildSeriesIcon(series, midImage, cancelled));
+                                    } finally {
+                                        seriesIcon.complete(null);
+                                    }
+                                    return Collections.emptyList();
+                                });
+                            }
+                        }
+                    }
+
+                    if (media instanceof DicomImageElement) {
+                        DicomImageElement img = (DicomImageElement) media;
+                        String iuid = TagD.getTagValue(img, Tag.SOPInstanceUID, String.class);
+                        File dicomFile = null;
+                        // Write only once the file for multiframe
+                        if (uids.add(iuid)) {
+                            String orderedName = orderedNames.get(iuid);
+                            if (orderedName != null) {
+                                iuid = orderedName;
+                            } else if (!keepNames) {
+                                iuid = deidentifier == null ? makeFileIDs(iuid) : deidentifier.getFileID(iuid);
+                            }
+                            String path =
+                                buildPath(img, keepNames, writeDicomdir, cdCompatible, folderNames, deidentifier);
+                            dicomFile = new File(new File(writeDir, path), iuid);
+                        }
+                        File jpegFile = addJpeg && rendered.add(img)
+                            ? getJpegFile(img, folderNames, jpegDir, keepJpegNames, deidentifier) : null;
+                        submitImage(executor, budget, img, dicomFile, iuid, icon, jpegFile, jpegQuality, null,
+                            deidentifier, layout, checkpoint, cancelled);
+                    } else if (media != null) {
+                        MediaElement dcm = media;
+                        String iuid = TagD.getTagValue(dcm, Tag.SOPInstanceUID, String.class);
+                        // The same instance can be selected in several series
+                        if (!uids.add(iuid)) {
+                            continue;
+                        }
+                        String orderedName = orderedNames.get(iuid);
+                        if (orderedName != null) {
+                            iuid = orderedName;
+                        } else if (!keepNames) {
+                            iuid = deidentifier == null ? makeFileIDs(iuid) : deidentifier.getFileID(iuid);
+                        }
+
+                        String path = buildPath(dcm, keepNames, writeDicomdir, cdCompatible, folderNames, deidentifier);
+                        File destinationFile = new File(new File(writeDir, path), iuid);
+                        String fileID = iuid;
+                        Future<Attributes> seriesIcon = icon;
+                        executor.submit(() -> {
+                            destinationFile.getParentFile().mkdirs();
+                            if (deidentifier != null) {
+                                // The transfer syntax of the export applies only to the images
+                                return writeDeidentified(dcm, destinationFile, fileID, seriesIcon, null, deidentifier,
+                                    layout, checkpoint, cancelled);
+                            }
+                            if (checkpoint.isDone(destinationFile)) {
+                                // Written by a previous export
+                                layout.addGenerated(destinationFile);
+                                progress.add(ExportProgress.Stage.DICOM, destinationFile.length());
+                                return Collections
+                                    .singletonList(new ExportedInstance(dcm, fileID, destinationFile, seriesIcon));
+                            }
+                            if (layout.addMedia(dcm, destinationFile)) {
+                                checkpoint.setDone(destinationFile);
+                                progress.add(ExportProgress.Stage.DICOM, getWrittenSize(dcm, destinationFile));
+                                return Collections
+                                    .singletonList(new ExportedInstance(dcm, fileID, destinationFile, seriesIcon));
+                            }
+                            return Collections.emptyList();
+                        });
+
+                        // The extracted documents and videos cannot be de-identified
+                        if (addJpeg && deidentifier == null && dcm instanceof FileExtractor) {
+                            File fileSrc = ((FileExtractor) dcm).getExtractFile();
+                            if (fileSrc != null) {
+                                // Get instance number instead SOPInstanceUID to handle multiframe
+                                String instance = getinstanceFileName(dcm);
+                                if (!keepJpegNames) {
+                                    instance = makeFileIDs(instance);
+                                }
+                                File jpegDestinationDir = new File(jpegDir, buildPath(dcm, keepJpegNames, folderNames));
+                                jpegDestinationDir.mkdirs();
+
+                                File jpegFile =
+                                    new File(jpegDestinationDir, instance + FileUtil.getExtension(fileSrc.getName()));
+                                layout.addReference(jpegFile, fileSrc);
+                                progress.add(ExportProgress.Stage.JPEG, fileSrc.length());
+                            }
+                        }
+                    } else {
+                        Series<?> series = item.getPresentationSource();
+                        if (series != null) {
+                            String seriesInstanceUID = UIDUtils.createUID();
+                            executor.submit(() -> {
+                                List<ExportedInstance> prs = new ArrayList<>();
+                                if (presentationPerSeries) {
+                                    ExportedInstance pr = writeSeriesPR(series.getMedias(null, null), keepNames,
+                                        writeDir, writeDicomdir, cdCompatible, folderNames, seriesInstanceUID,
+                                        deidentifier, layout);
+                                    if (pr != null) {
+                                        prs.add(pr);
+                                        progress.add(ExportProgress.Stage.DICOM, 0L, pr.getDestinationFile().length());
+                                    }
+                                    return prs;
+                                }
+                                for (MediaElement dcm : series.getMedias(null, null)) {
+                                    GraphicModel grModel = (GraphicModel) dcm.getTagValue(TagW.PresentationModel);
+                                    if (grModel != null && grModel.hasSerializableGraphics()) {
+                                        String path = buildPath(dcm, keepNames, writeDicomdir, cdCompatible,
+                                            folderNames, deidentifier);
+                                        ExportedInstance pr = writePR(dcm, keepNames, new File(writeDir, path),
+                                            seriesInstanceUID, deidentifier, layout);
+                                        if (pr != null) {
+                                            prs.add(pr);
+                                            progress.add(ExportProgress.Stage.DICOM, 0L,
+                                                pr.getDestinationFile().length());
+                                        }
+                                    }
+                                }
+                                return prs;
+                            });
+                        }
+                    }
+                }
+                executor.finish();
+            }
+            // An incomplete DICOMDIR is never written, a resumed export builds it again
+            if (dicomdir != null && !cancelled.getAsBoolean()) {
+                dicomdir.write();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting DICOM"); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @return the de-identification of the export, null when the files are not de-identified
+     * @throws IOException
+     *             when the profile cannot be read, the export is stopped
+     */
+    private Deidentifier getDeidentifier(ExportCheckpoint checkpoint) throws IOException {
+        if (!options.isDeidentify()) {
+            return null;
+        }
+        DeidentificationProfile profile = DeidentificationProfile.load(options.getDeidentificationProfile());
+        String key = options.getDeidentificationKey();
+        // Without shared key, the secret of the export is kept with its working files to resume it
+        return new Deidentifier(profile, key == null ? checkpoint.getSecret() : key);
+    }
+
+    /**
+     * Name the DICOM files of each series folder in the order of the instance numbers, so the files of a series are
+     * contiguous and sorted in the image.
+     *
+     * @return the file names by SOP instance UID
+     */
+    private static Map<String, String> getOrderedFileNames(List<ExportItem> items, boolean keepNames,
+        boolean writeDicomdir, boolean cdCompatible) {
+        Map<String, Map<String, Integer>> folders = new HashMap<>();
+        for (ExportItem item : items) {
+            MediaElement media = item.getMedia();
+            String uid = media == null ? null : TagD.getTagValue(media, Tag.SOPInstanceUID, String.class);
+            if (uid != null) {
+                String folder = buildPath(media, keepNames, writeDicomdir, cdCompatible, item.getFolderNames());
+                Integer number = TagD.getTagValue(media, Tag.InstanceNumber, Integer.class);
+                folders.computeIfAbsent(folder, k -> new HashMap<>()).putIfAbsent(uid,
+                    number == null ? Integer.MAX_VALUE : number);
+            }
+        }
+        Map<String, String> names = new HashMap<>();
+        for (Map<String, Integer> instances : folders.values()) {
+            List<Map.Entry<String, Integer>> list = new ArrayList<>(instances.entrySet());
+            list.sort(Map.Entry.<String, Integer> comparingByValue()
+                .thenComparing(Map.Entry.<String, Integer> comparingByKey()));
+            for (int i = 0; i < list.size(); i++) {
+                // 8 characters at most for the CD compatibility
+                names.put(list.get(i).getKey(), String.format("I%07d", i + 1)); //$NON-NLS-1$
+            }
+        }
+        return names;
+    }
+
+    private static File getJpegFile(DicomImageElement img, String[] folderNames, File jpegDir, boolean keepNames,
+        Deidentifier deidentifier) {
+        // Get instance number instead SOPInstanceUID to handle multiframe
+        String instance = getinstanceFileName(img);
+        if (deidentifier != null) {
+            // The instance number does not identify the patient, unlike the SOPInstanceUID
+            if (TagD.getTagValue(img, Tag.InstanceNumber, Integer.class) == null) {
+                instance = deidentifier.getFileID(instance);
+            }
+            return new File(new File(jpegDir, buildDeidentifiedPath(img, false, deidentifier)),
+                instance + ".jpg"); //$NON-NLS-1$
+        }
+        if (!keepNames) {
+            instance = makeFileIDs(instance);
+        }
+        return new File(new File(jpegDir, buildPath(img, keepNames, folderNames)), instance + ".jpg"); //$NON-NLS-1$
+    }
+
+    private void submitImage(OrderedExecutor<List<ExportedInstance>> executor, MemoryBudget budget,
+        DicomImageElement img, File dicomFile, String fileID, Future<Attributes> seriesIcon, File jpegFile,
+        int jpegQuality, CompletableFuture<Attributes> icon, Deidentifier deidentifier, IsoLayout layout,
+        ExportCheckpoint checkpoint, BooleanSupplier cancelled) throws IOException, InterruptedException {
+        if (dicomFile == null && jpegFile == null) {
+            return;
+        }
+        // The number of images decoded at the same time is limited by the memory budget
+        long memory = jpegFile == null || checkpoint.isDone(jpegFile) ? 0L : MemoryBudget.estimateDecodedSize(img);
+        if (memory > 0) {
+            budget.acquire(memory);
+        }
+        executor.submit(() -> {
+            try {
+                return exportImage(img, dicomFile, fileID, seriesIcon, jpegFile, jpegQuality, icon, deidentifier,
+                    layout, checkpoint, cancelled);
+            } finally {
+                if (memory > 0) {
+                    budget.release(memory);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the DICOM file and the JPEG image of a media. When icon is not null, the icon of the series is built from
+     * the same decoded image. The files written by a previous export are not written again. Nothing is decoded once
+     * the export is cancelled.
+     */
+    private List<ExportedInstance> exportImage(DicomImageElement img, File dicomFile, String fileID,
+        Future<Attributes> seriesIcon, File jpegFile, int jpegQuality, CompletableFuture<Attributes> icon,
+        Deidentifier deidentifier, IsoLayout layout, ExportCheckpoint checkpoint, BooleanSupplier cancelled) {
+        List<ExportedInstance> result = Collections.emptyList();
+        String tsuid = options.getDicomSyntax().getTransferSyntaxUID();
+        if (dicomFile != null) {
+            dicomFile.getParentFile().mkdirs();
+            if (deidentifier != null) {
+                result = writeDeidentified(img, dicomFile, fileID, seriesIcon, tsuid, deidentifier, layout, checkpoint,
+                    cancelled);
+            } else if (checkpoint.isDone(dicomFile)) {
+                layout.addGenerated(dicomFile);
+                progress.add(ExportProgress.Stage.DICOM, dicomFile.length());
+                // The file may have been copied without conversion
+                String written =
+                    tsuid != null && tsuid.equals(DicomTranscoder.getTransferSyntax(dicomFile)) ? tsuid : null;
+                result = Collections.singletonList(new ExportedInstance(img, fileID, dicomFile, seriesIcon, written));
+            } else if (tsuid != null && IsoLayout.isOriginalContent(img, IsoLayout.getSourceFile(img))
+                && write(img, dicomFile, tsuid, null, cancelled) != null) {
+                // Transcoded from the file, the element is serialized by addMedia() when it differs from the file
+                layout.addGenerated(dicomFile);
+                checkpoint.setDone(dicomFile);
+                progress.add(ExportProgress.Stage.DICOM, dicomFile.length());
+                result = Collections.singletonList(new ExportedInstance(img, fileID, dicomFile, seriesIcon, tsuid));
+            } else if (cancelled.getAsBoolean()) {
+                // Not converted, the file is not written without the conversion
+                return result;
+            } else if (layout.addMedia(img, dicomFile)) {
+                checkpoint.setDone(dicomFile);
+                progress.add(ExportProgress.Stage.DICOM, getWrittenSize(img, dicomFile));
+                result = Collections.singletonList(new ExportedInstance(img, fileID, dicomFile, seriesIcon));
+            } else {
+                LOGGER.error("Cannot export DICOM file: {}", img.getFileCache().getOriginalFile()); //$NON-NLS-1$
+            }
+        }
+        if (jpegFile != null && checkpoint.isDone(jpegFile)) {
+            layout.addGenerated(jpegFile);
+            progress.add(ExportProgress.Stage.JPEG, jpegFile.length());
+            if (icon != null) {
+                try {
+                    if (limits.acquire(ExportLimits.Resource.DECODE, cancelled)) {
+                        try {
+                            icon.complete(mkIconItem(img));
+                        } finally {
+                            limits.release(ExportLimits.Resource.DECODE);
+                        }
+                    }
+                } finally {
+                    icon.complete(null);
+                }
+            }
+        } else if (jpegFile != null) {
+            if (!limits.acquire(ExportLimits.Resource.DECODE, cancelled)) {
+                if (icon != null) {
+                    icon.complete(null);
+                }
+                return result;
+            }
+            try {
+                jpegFile.getParentFile().mkdirs();
+                RenderedImage image = img.getImage(null);
+                if (image != null) {
+                    image = img.getRenderedImage(image);
+                }
+                if (image != null) {
+                    if (ImageFiler.writeJPG(jpegFile, image, jpegQuality / 100.0f)) {
+                        layout.addGenerated(jpegFile);
+                        checkpoint.setDone(jpegFile);
+                    }
+                    progress.add(ExportProgress.Stage.JPEG, jpegFile.length());
+                    if (icon != null) {
+                        icon.complete(mkIconItem(img, image));
+                    }
+                } else {
+                    LOGGER.error("Cannot export DICOM file to jpeg: {}", img.getFileCache().getOriginalFile()); //$NON-NLS-1$
+                }
+            } finally {
+                limits.release(ExportLimits.Resource.DECODE);
+                if (icon != null) {
+                    icon.complete(null);
+                }
+                // Prevent to many files open on Linux (Ubuntu => 1024) and close image stream
+                img.removeImageFromCache();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Convert the DICOM file of a media to the transfer syntax of the export and de-identify it. The conversion
+     * decodes the pixel data and shares the limit of decoding with the JPEG images.
+     *
+     * @param tsuid
+     *            the target transfer syntax, null to keep the transfer syntax
+     * @return null when the file is not written (see {@link DicomTranscoder#write}) or when the export is cancelled
+     *         while waiting for the decoding
+     */
+    private DicomTranscoder.Output write(MediaElement media, File destinationFile, String tsuid,
+        Deidentifier deidentifier, BooleanSupplier cancelled) {
+        File source = IsoLayout.getSourceFile(media);
+        if (source == null) {
+            LOGGER.error("Cannot find the file of {}", media.getName()); //$NON-NLS-1$
+            return null;
+        }
+        if (tsuid == null) {
+            return DicomTranscoder.write(source, destinationFile, null, deidentifier);
+        }
+        if (!limits.acquire(ExportLimits.Resource.DECODE, cancelled)) {
+            return null;
+        }
+        try {
+            return DicomTranscoder.write(source, destinationFile, tsuid, deidentifier);
+        } finally {
+            limits.release(ExportLimits.Resource.DECODE);
+        }
+    }
+
+    /**
+     * Write the de-identified DICOM file of a media in a single pass: the identified dataset is never written. The
+     * DICOMDIR record is built from the de-identified dataset.
+     */
+    private List<ExportedInstance> writeDeidentified(MediaElement media, File dicomFile, String fileID,
+        Future<Attributes> seriesIcon, String tsuid, Deidentifier deidentifier, IsoLayout layout,
+        ExportCheckpoint checkpoint, BooleanSupplier cancelled) {
+        DicomTranscoder.Output output;
+        if (checkpoint.isDone(dicomFile)) {
+            // Written by a previous export
+            output = DicomTranscoder.read(dicomFile);
+        } else {
+            output = write(media, dicomFile, tsuid, deidentifier, cancelled);
+            if (output != null) {
+                checkpoint.setDone(dicomFile);
+            }
+        }
+        if (output == null) {
+            return Collections.emptyList();
+        }
+        layout.addGenerated(dicomFile);
+        progress.add(ExportProgress.Stage.DICOM, dicomFile.length());
+        return Collections.singletonList(new ExportedInstance(output.getDataset(), fileID, dicomFile, seriesIcon,
+            output.getTransferSyntax()));
+    }
+
+    /**
+     * Build the icon from the thumbnail of the series when possible, otherwise by decoding the middle image.
+     *
+     * @return the icon, null when it cannot be built or when the export is cancelled
+     */
+    private Attributes buildSeriesIcon(DicomSeries series, DicomImageElement midImage, BooleanSupplier cancelled) {
+        Attributes icon = SeriesIconCache.fromThumbnail(series, midImage);
+        if (icon == null && limits.acquire(ExportLimits.Resource.DECODE, cancelled)) {
+            try {
+                icon = mkIconItem(midImage);
+            } finally {
+                limits.release(ExportLimits.Resource.DECODE);
+            }
+        }
+        return icon;
+    }
+
+    private static long getWrittenSize(MediaElement media, File destinationFile) {
+        // In direct mode, the source file is only referenced
+        if (destinationFile.isFile()) {
+            return destinationFile.length();
+        }
+        File source = IsoLayout.getSourceFile(media);
+        return source == null ? 0L : source.length();
+    }
+
+    static ExportedInstance writePR(MediaElement img, boolean keepNames, File destinationDir,
+        String seriesInstanceUID, IsoLayout layout) {
+        return writePR(img, keepNames, destinationDir, seriesInstanceUID, null, layout);
+    }
+
+    /**
+     * @param deidentifier
+     *            the de-identification of the image, can be null
+     */
+    static ExportedInstance writePR(MediaElement img, boolean keepNames, File destinationDir,
+        String seriesInstanceUID, Deidentifier deidentifier, IsoLayout layout) {
+        Attributes imgAttributes = getImageAttributes(img, deidentifier);
+        if (imgAttributes != null) {
+            GraphicModel grModel = (GraphicModel) img.getTagValue(TagW.PresentationModel);
+            if (grModel != null && grModel.hasSerializableGraphics()) {
+                String prUid = UIDUtils.createUID();
+                File outputFile = new File(destinationDir, keepNames ? prUid : makeFileIDs(prUid));
+                destinationDir.mkdirs();
+                Attributes prAttributes =
+                    DicomPrSerializer.writePresentation(grModel, imgAttributes, outputFile, seriesInstanceUID, prUid);
+                if (prAttributes != null) {
+                    if (layout != null) {
+                        layout.addGenerated(outputFile);
+                    }
+                    return new ExportedInstance(prAttributes, outputFile.getName(), outputFile);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the graphics of all the images in a single presentation state, which has one DICOMDIR record.
+     *
+     * @return the presentation state or null when no image has graphics
+     */
+    private static ExportedInstance writeSeriesPR(List<? extends MediaElement> medias, boolean keepNames,
+        File writeDir, boolean writeDicomdir, boolean cdCompatible, String[] folderNames, String seriesInstanceUID,
+        Deidentifier deidentifier, IsoLayout layout) {
+        String prUid = UIDUtils.createUID();
+        File outputFile = null;
+        File scratchFile = null;
+        List<Attributes> presentations = new ArrayList<>();
+        try {
+            for (MediaElement dcm : medias) {
+                Attributes imgAttributes = getImageAttributes(dcm, deidentifier);
+                GraphicModel grModel = (GraphicModel) dcm.getTagValue(TagW.PresentationModel);
+                if (imgAttributes != null && grModel != null && grModel.hasSerializableGraphics()) {
+                    if (outputFile == null) {
+                        File destinationDir = new File(writeDir,
+                            buildPath(dcm, keepNames, writeDicomdir, cdCompatible, folderNames, deidentifier));
+                        destinationDir.mkdirs();
+                        outputFile = new File(destinationDir, keepNames ? prUid : makeFileIDs(prUid));
+                        // The serializer writes a single image in a file, outside the image
+                        scratchFile = File.createTempFile("pr", ".dcm", writeDir.getParentFile()); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                    Attributes pr = DicomPrSerializer.writePresentation(grModel, imgAttributes, scratchFile,
+                        seriesInstanceUID, prUid);
+                    if (pr != null) {
+                        presentations.add(pr);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot create the presentation state of the series {}", seriesInstanceUID, e); //$NON-NLS-1$
+            return null;
+        } finally {
+            if (scratchFile != null) {
+                scratchFile.delete();
+            }
+        }
+        Attributes merged = PresentationStateMerger.merge(presentations);
+        if (merged == null) {
+            return null;
+        }
+        // Written once in the image
+        try (DicomOutputStream dos = new DicomOutputStream(outputFile)) {
+            dos.writeDataset(merged.createFileMetaInformation(UID.ExplicitVRLittleEndian), merged);
+        } catch (IOException e) {
+            LOGGER.error("Cannot write the presentation state {}", outputFile, e); //$NON-NLS-1$
+            outputFile.delete();
+            return null;
+        }
+        layout.addGenerated(outputFile);
+        return new ExportedInstance(merged, outputFile.getName(), outputFile);
+    }
+
+    /**
+     * @return the attributes of the image referenced by its presentation states. When de-identified, the presentation
+     *         states have the patient, the study and the UIDs of the de-identified image.
+     */
+    private static Attributes getImageAttributes(MediaElement img, Deidentifier deidentifier) {
+        Attributes attributes = img.getMediaReader() instanceof DcmMediaReader
+            ? ((DcmMediaReader) img.getMediaReader()).getDicomObject() : null;
+        if (attributes == null || deidentifier == null) {
+            return attributes;
+        }
+        // The attributes of the media are shared with the viewer
+        return deidentifier.apply(new Attributes(attributes));
+    }
+
+    static boolean writeInDicomDir(DicomDirBuilder dicomdir, ExportedInstance instance) {
+        if (instance.getMedia() != null) {
+            return writeInDicomDir(dicomdir, instance.getMedia(), instance.getSeriesIcon(), instance.getFileID(),
+                instance.getDestinationFile(), instance.getTransferSyntax());
+        }
+        return dicomdir != null && dicomdir.add(instance.getDataset(), instance.getSeriesIcon(),
+            instance.getFileID(), instance.getDestinationFile(), instance.getTransferSyntax());
+    }
+
+    private static boolean writeInDicomDir(DicomDirBuilder dicomdir, MediaElement img, Future<Attributes> seriesIcon,
+        String iuid, File destinationFile, String transferSyntax) {
+        if (dicomdir != null) {
+            if (!(img.getMediaReader() instanceof DcmMediaReader)
+                || ((DcmMediaReader) img.getMediaReader()).getDicomObject() == null) {
+                LOGGER.error("Cannot export DICOM file: ", img.getFileCache().getOriginalFile()); //$NON-NLS-1$
+                return false;
+            }
+            return dicomdir.add(((DcmMediaReader) img.getMediaReader()).getDicomObject(), seriesIcon, iuid,
+                destinationFile, transferSyntax);
+        }
+        return false;
+    }
+
+    private static String getinstanceFileName(MediaElement img) {
+        Integer instance = TagD.getTagValue(img, Tag.InstanceNumber, Integer.class);
+        if (instance != null) {
+            String val = instance.toString();
+            if (val.length() < 5) {
+                char[] chars = new char[5 - val.length()];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = '0';
+                }
+
+                return new String(chars) + val;
+
+            } else {
+                return val;
+            }
+        }
+        return TagD.getTagValue(img, Tag.SOPInstanceUID, String.class);
+    }
+
+    /**
+     * @param folderNames
+     *            the names of the patient, the study and the series (see {@link ExportItem#getFolderNames()})
+     */
+    public static String buildPath(MediaElement img, boolean keepNames, boolean writeDicomdir, boolean cdCompatible,
+        String[] folderNames) {
+        StringBuilder buffer = new StringBuilder();
+        // Cannot keep folders names with DICOMDIR (could be not valid)
+        if (keepNames && !writeDicomdir) {
+            for (String name : folderNames) {
+                buffer.append(buildFolderName(name, 30));
+                buffer.append(File.separator);
+            }
+        } else {
+            if (cdCompatible) {
+                buffer.append("DICOM"); //$NON-NLS-1$
+                buffer.append(File.separator);
+            }
+            buffer.append(makeFileIDs((String) img.getTagValue(TagW.PatientPseudoUID)));
+            buffer.append(File.separator);
+            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.StudyInstanceUID, String.class)));
+            buffer.append(File.separator);
+            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.SeriesInstanceUID, String.class)));
+        }
+        return buffer.toString();
+    }
+
+    private static String buildPath(MediaElement img, boolean keepNames, boolean writeDicomdir, boolean cdCompatible,
+        String[] folderNames, Deidentifier deidentifier) {
+        if (deidentifier == null) {
+            return buildPath(img, keepNames, writeDicomdir, cdCompatible, folderNames);
+        }
+        return buildDeidentifiedPath(img, cdCompatible, deidentifier);
+    }
+
+    /**
+     * Build the folders from the pseudonyms of the patient, of the study and of the series: the hashes of the original
+     * values could be matched with the identified data.
+     */
+    private static String buildDeidentifiedPath(MediaElement img, boolean cdCompatible, Deidentifier deidentifier) {
+        StringBuilder buffer = new StringBuilder();
+        if (cdCompatible) {
+            buffer.append("DICOM"); //$NON-NLS-1$
+            buffer.append(File.separator);
+        }
+        buffer.append(deidentifier.getFileID((String) img.getTagValue(TagW.PatientPseudoUID)));
+        buffer.append(File.separator);
+        buffer.append(deidentifier.getFileID(TagD.getTagValue(img, Tag.StudyInstanceUID, String.class)));
+        buffer.append(File.separator);
+        buffer.append(deidentifier.getFileID(TagD.getTagValue(img, Tag.SeriesInstanceUID, String.class)));
+        return buffer.toString();
+    }
+
+    /**
+     * @param folderNames
+     *            the names of the patient, the study and the series (see {@link ExportItem#getFolderNames()})
+     */
+    public static String buildPath(MediaElement img, boolean keepNames, String[] folderNames) {
+        StringBuilder buffer = new StringBuilder();
+        if (keepNames) {
+            if (folderNames.length > 2) {
+                buffer.append(buildFolderName(folderNames[0], 30));
+                buffer.append(File.separator);
+                buffer.append(buildFolderName(folderNames[1], 30));
+                buffer.append(File.separator);
+                buffer.append(buildFolderName(folderNames[2], 25));
+                buffer.append('-');
+                // Hash of UID to guaranty the unique behavior of the name.
+                buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.SeriesInstanceUID, String.class)));
+            }
+        } else {
+            buffer.append(makeFileIDs((String) img.getTagValue(TagW.PatientPseudoUID)));
+            buffer.append(File.separator);
+            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.StudyInstanceUID, String.class)));
+            buffer.append(File.separator);
+            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.SeriesInstanceUID, String.class)));
+        }
+        return buffer.toString();
+    }
+
+    private static String buildFolderName(String str, int length) {
+        String value = FileUtil.getValidFileNameWithoutHTML(str);
+        return StringUtil.getTruncatedString(value, length, Suffix.NO);
+    }
+
+    public static String makeFileIDs(String uid) {
+        if (uid != null) {
+            return Integer.toHexString(uid.hashCode());
+        }
+        return null;
+    }
+
+    /**
+     * Write the image of a layout in a file.
+     *
+     * @return the image or null if the image cannot be written
+     */
+    File makeISO(IsoLayout layout, File exportFile, BooleanSupplier cancelled) {
+        // ISO file
+        File outfile = exportFile;
+        ChannelStreamHandler imageHandler = null;
+        try {
+            imageHandler = new ChannelStreamHandler(outfile, options.getSyncPolicy());
+            writeISO(layout, new ProgressStreamHandler(imageHandler, progress, cancelled));
+            return outfile;
+        } catch (ConfigException | HandlerException | IOException e) {
+            LOGGER.error("Error when building ISO", e);
+        } finally {
+            if (imageHandler != null) {
+                // Release the file when the image is not complete
+                imageHandler.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the image sequentially in two passes, the first one only computes the layout. A UDF image is written in a
+     * single pass as its layout is computed before writing.
+     *
+     * @return the size of the image or -1 if the image cannot be written
+     */
+    long makeISO(IsoLayout layout, WritableByteChannel output, BooleanSupplier cancelled) {
+        try {
+            SequentialStreamHandler handler = new SequentialStreamHandler(output);
+            if (options.getFileSystem() != FileSystemType.UDF) {
+                writeISO(layout, handler);
+            }
+            handler.startWriting();
+            writeISO(layout, new ProgressStreamHandler(handler, progress, cancelled));
+            return handler.getSize();
+        } catch (ConfigException | HandlerException e) {
+            LOGGER.error("Error when streaming ISO", e);
+        }
+        return -1L;
+    }
+
+    /**
+     * Write the image of a layout in a stream handler, also used by the benchmarks to compare the handlers.
+     */
+    void writeISO(IsoLayout layout, StreamHandler streamHandler) throws ConfigException, HandlerException {
+        if (options.getFileSystem() == FileSystemType.UDF) {
+            new UdfImageWriter(layout.getFiles(), "DICOM", layout.getCreationTime()).write(streamHandler); //$NON-NLS-1$
+            return;
+        }
+        // The size of a file is stored in 32 bits and a file cannot have several extents at the level 1
+        for (Map.Entry<String, DataReference> file : layout.getFiles()) {
+            if (file.getValue().getLength() > 0xFFFFFFFFL) {
+                throw new HandlerException("File of 4 GB or more, select the UDF file system: " + file.getKey()); //$NON-NLS-1$
+            }
+        }
+
+        // Directory hierarchy, starting from the root. An image without the files is never written.
+        ISO9660RootDirectory root = layout.buildRootDirectory();
+
+        // ISO9660 support
+        ISO9660Config iso9660Config = new ISO9660Config();
+        iso9660Config.allowASCII(false);
+        iso9660Config.setInterchangeLevel(1);
+        iso9660Config.restrictDirDepthTo8(true);
+        iso9660Config.setPublisher("Weasis");
+        iso9660Config.setVolumeID("DICOM");
+        iso9660Config.setDataPreparer("DICOM");
+        iso9660Config.forceDotDelimiter(false);
+
+        RockRidgeConfig rrConfig = null;
+
+        if (options.isRockRidge()) {
+            // Rock Ridge support
+            rrConfig = new RockRidgeConfig();
+            rrConfig.setMkisofsCompatibility(false);
+            rrConfig.hideMovedDirectoriesStore(true);
+            rrConfig.forcePortableFilenameCharacterSet(true);
+        }
+
+        JolietConfig jolietConfig = null;
+        if (options.isJoliet()) {
+            // Joliet support
+            jolietConfig = new JolietConfig();
+            jolietConfig.setPublisher("Weasis");
+            jolietConfig.setVolumeID("DICOM");
+            jolietConfig.setDataPreparer("DICOM");
+            jolietConfig.forceDotDelimiter(false);
+        }
+
+        // Create ISO
+        CreateISO iso = new CreateISO(streamHandler, root);
+        iso.process(iso9660Config, rrConfig, jolietConfig, null);
+    }
+
+    public static Attributes mkIconItem(DicomImageElement image) {
+        if (image == null) {
+            return null;
+        }
+        Attributes iconItem = null;
+        PlanarImage imgPl = image.getImage(null);
+        if (imgPl != null) {
+            iconItem = mkIconItem(image, image.getRenderedImage(imgPl));
+        }
+        // Prevent to many files open on Linux (Ubuntu => 1024) and close image stream
+        image.removeImageFromCache();
+        return iconItem;
+    }
+
+    /**
+     * Build the icon from an image already rendered (e.g. for the JPEG export).
+     */
+    public static Attributes mkIconItem(DicomImageElement image, RenderedImage img) {
+        if (image == null || img == null) {
+            return null;
+        }
+        final double scale = Math.min(128 / (double) img.getHeight(), 128 / (double) img.getWidth());
+        final PlanarImage thumb = scale < 1.0
+            ? SubsampleAverageDescriptor.create(img, scale, scale, Thumbnail.DownScaleQualityHints).getRendering()
+            : PlanarImage.wrapRenderedImage(img);
+        BufferedImage thumbnail = thumb.getAsBufferedImage();
+        if (thumbnail == null) {
+            return null;
+        }
+        int w = thumbnail.getWidth();
+        int h = thumbnail.getHeight();
+
+        String pmi = TagD.getTagValue(image, Tag.PhotometricInterpretation, String.class);
+        BufferedImage bi = thumbnail;
+        if (thumbnail.getColorModel().getColorSpace().getType() != ColorSpace.TYPE_GRAY) {
+            bi = convertBI(thumbnail, BufferedImage.TYPE_BYTE_INDEXED);
+            pmi = "PALETTE COLOR"; //$NON-NLS-1$
+        }
+
+        // The pixels are the indexes of the palette or the rendered gray values
+        byte[] iconPixelData = getBytePixels(bi.getRaster(), w, h);
+        Attributes iconItem = new Attributes();
+
+        if ("PALETTE COLOR".equals(pmi)) { //$NON-NLS-1$
+            IndexColorModel cm = (IndexColorModel) bi.getColorModel();
+            int[] lutDesc = { cm.getMapSize(), 0, 8 };
+            byte[] r = new byte[lutDesc[0]];
+            byte[] g = new byte[lutDesc[0]];
+            byte[] b = new byte[lutDesc[0]];
+            cm.getReds(r);
+            cm.getGreens(g);
+            cm.getBlues(b);
+            iconItem.setInt(Tag.RedPaletteColorLookupTableDescriptor, VR.US, lutDesc);
+            iconItem.setInt(Tag.GreenPaletteColorLookupTableDescriptor, VR.US, lutDesc);
+            iconItem.setInt(Tag.BluePaletteColorLookupTableDescriptor, VR.US, lutDesc);
+            iconItem.setBytes(Tag.RedPaletteColorLookupTableData, VR.OW, r);
+            iconItem.setBytes(Tag.GreenPaletteColorLookupTableData, VR.OW, g);
+            iconItem.setBytes(Tag.BluePaletteColorLookupTableData, VR.OW, b);
+        } else {
+            pmi = "MONOCHROME2"; //$NON-NLS-1$
+        }
+        iconItem.setString(Tag.PhotometricInterpretation, VR.CS, pmi);
+        iconItem.setInt(Tag.Rows, VR.US, h);
+        iconItem.setInt(Tag.Columns, VR.US, w);
+        iconItem.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        iconItem.setInt(Tag.BitsAllocated, VR.US, 8);
+        iconItem.setInt(Tag.BitsStored, VR.US, 8);
+        iconItem.setInt(Tag.HighBit, VR.US, 7);
+        iconItem.setBytes(Tag.PixelData, VR.OW, iconPixelData);
+        return iconItem;
+    }
+
+    /**
+     * Copy the first band of a raster in bytes, without a per-pixel access to the image.
+     */
+    private static byte[] getBytePixels(Raster raster, int w, int h) {
+        if (raster.getTransferType() == DataBuffer.TYPE_BYTE && raster.getNumDataElements() == 1) {
+            return (byte[]) raster.getDataElements(raster.getMinX(), raster.getMinY(), w, h, new byte[w * h]);
+        }
+        int[] samples = raster.getSamples(raster.getMinX(), raster.getMinY(), w, h, 0, new int[w * h]);
+        // Keep the most significant bits when the samples have more than 8 bits
+        int shift = Math.max(0, raster.getSampleModel().getSampleSize(0) - 8);
+        byte[] pixels = new byte[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            pixels[i] = (byte) (samples[i] >> shift);
+        }
+        return pixels;
+    }
+
+    private static BufferedImage convertBI(BufferedImage src, int imageType) {
+        BufferedImage dst = new BufferedImage(src.getWidth(), src.getHeight(), imageType);
+        Graphics2D big = dst.createGraphics();
+        try {
+            big.drawImage(src, 0, 0, null);
+        } finally {
+            big.dispose();
+        }
+        return dst;
+    }
+}
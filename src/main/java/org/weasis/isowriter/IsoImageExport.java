@@ -12,103 +12,89 @@ package org.weasis.isowriter;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
-import java.awt.Graphics2D;
+import java.awt.FlowLayout;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
-import java.awt.color.ColorSpace;
-import java.awt.image.BufferedImage;
-import java.awt.image.IndexColorModel;
-import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import javax.media.jai.PlanarImage;
-import javax.media.jai.operator.SubsampleAverageDescriptor;
 import javax.swing.Box;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Tag;
-import org.dcm4che3.data.UID;
-import org.dcm4che3.data.VR;
 import org.dcm4che3.media.DicomDirWriter;
-import org.dcm4che3.media.RecordType;
-import org.dcm4che3.util.UIDUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.api.explorer.ObservableEvent;
 import org.weasis.core.api.gui.util.AbstractItemDialogPage;
-import org.weasis.core.api.gui.util.AppProperties;
 import org.weasis.core.api.gui.util.FileFormatFilter;
-import org.weasis.core.api.image.util.ImageFiler;
 import org.weasis.core.api.media.data.MediaElement;
 import org.weasis.core.api.media.data.MediaSeries;
 import org.weasis.core.api.media.data.Series;
-import org.weasis.core.api.media.data.TagW;
-import org.weasis.core.api.media.data.Thumbnail;
-import org.weasis.core.api.util.FileUtil;
-import org.weasis.core.api.util.LangUtil;
-import org.weasis.core.api.util.ResourceUtil;
-import org.weasis.core.api.util.StringUtil;
-import org.weasis.core.api.util.StringUtil.Suffix;
-import org.weasis.core.ui.model.GraphicModel;
 import org.weasis.dicom.codec.DcmMediaReader;
 import org.weasis.dicom.codec.DicomImageElement;
-import org.weasis.dicom.codec.DicomSeries;
-import org.weasis.dicom.codec.FileExtractor;
-import org.weasis.dicom.codec.TagD;
 import org.weasis.dicom.explorer.CheckTreeModel;
-import org.weasis.dicom.explorer.DicomDirLoader;
 import org.weasis.dicom.explorer.DicomModel;
 import org.weasis.dicom.explorer.ExplorerTask;
 import org.weasis.dicom.explorer.ExportDicom;
 import org.weasis.dicom.explorer.ExportTree;
-import org.weasis.dicom.explorer.pr.DicomPrSerializer;
-
-import com.github.stephenc.javaisotools.iso9660.ConfigException;
-import com.github.stephenc.javaisotools.iso9660.ISO9660RootDirectory;
-import com.github.stephenc.javaisotools.iso9660.impl.CreateISO;
-import com.github.stephenc.javaisotools.iso9660.impl.ISO9660Config;
-import com.github.stephenc.javaisotools.iso9660.impl.ISOImageFileHandler;
-import com.github.stephenc.javaisotools.joliet.impl.JolietConfig;
-import com.github.stephenc.javaisotools.rockridge.impl.RockRidgeConfig;
-import com.github.stephenc.javaisotools.sabre.HandlerException;
-import com.github.stephenc.javaisotools.sabre.StreamHandler;
 
 public class IsoImageExport extends AbstractItemDialogPage implements ExportDicom {
     private static final Logger LOGGER = LoggerFactory.getLogger(IsoImageExport.class);
 
     private static final String LAST_FOLDER = "last_folder";
-    private static final String ADD_JPEG = "add_jpeg";
-    private static final String ADD_VIEWER = "add_viewer";
+    private static final int PROGRESS_MAXIMUM = 1000;
+    private static final long JOB_POLL_DELAY = 500L;
 
     private final JCheckBox checkBoxAddWeasisViewer = new JCheckBox("Add Weasis viewer");
     private final JCheckBox checkBoxAddJpeg = new JCheckBox("Add JPEG images");
-    private final JCheckBox checkBoxCompression = new JCheckBox("Uncompressed DICOMs");
+    private final JLabel labelMedium = new JLabel("Split on:");
+    private final JComboBox<MediumType> comboMedium = new JComboBox<>(MediumType.values());
+    private final JLabel labelSyntax = new JLabel("DICOM images:");
+    private final JComboBox<DicomSyntax> comboSyntax = new JComboBox<>(DicomSyntax.values());
+    private final JCheckBox checkBoxDeidentify = new JCheckBox("De-identify the patients");
+    private final JLabel labelFileSystem = new JLabel("File system:");
+    private final JComboBox<FileSystemType> comboFileSystem = new JComboBox<>(FileSystemType.values());
     private final DicomModel dicomModel;
     private final ExportTree exportTree;
+    private final IsoExportService exportService;
     private File outputFile;
 
     private final Component horizontalStrut = Box.createHorizontalStrut(20);
 
-    public IsoImageExport(DicomModel dicomModel, CheckTreeModel treeModel) {
+    public IsoImageExport(DicomModel dicomModel, CheckTreeModel treeModel, IsoExportService exportService) {
         super("Burn CD/DVD");
+        if (exportService == null) {
+            throw new IllegalArgumentException("Export service cannot be null"); //$NON-NLS-1$
+        }
         this.dicomModel = dicomModel;
+        this.exportService = exportService;
         this.exportTree = new ExportTree(treeModel);
         initGUI();
         initialize(true);
+        // After the dialog is shown
+        SwingUtilities.invokeLater(this::askResumeJobs);
     }
 
     public void initGUI() {
@@ -140,13 +126,51 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
         gbcHorizontalStrut.gridy = 0;
         panel.add(horizontalStrut, gbcHorizontalStrut);
 
-        GridBagConstraints gbccheckBoxCompression = new GridBagConstraints();
-        gbccheckBoxCompression.anchor = GridBagConstraints.NORTHWEST;
-        gbccheckBoxCompression.insets = new Insets(0, 0, 5, 5);
-        gbccheckBoxCompression.gridx = 0;
-        gbccheckBoxCompression.gridy = 1;
-        // TODO Add it in Weasis 2.0 plugin
-        // panel.add(checkBoxCompression, gbc_checkBoxCompression);
+        JPanel panelMedium = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        panelMedium.add(labelMedium);
+        panelMedium.add(comboMedium);
+        comboMedium.addActionListener(e -> {
+            if (comboMedium.getSelectedItem() == MediumType.CUSTOM && comboMedium.isShowing()) {
+                askCustomMediumSize();
+            }
+        });
+        GridBagConstraints gbcPanelMedium = new GridBagConstraints();
+        gbcPanelMedium.anchor = GridBagConstraints.NORTHWEST;
+        gbcPanelMedium.insets = new Insets(0, 0, 5, 5);
+        gbcPanelMedium.gridwidth = 2;
+        gbcPanelMedium.gridx = 0;
+        gbcPanelMedium.gridy = 1;
+        panel.add(panelMedium, gbcPanelMedium);
+
+        JPanel panelSyntax = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        panelSyntax.add(labelSyntax);
+        panelSyntax.add(comboSyntax);
+        GridBagConstraints gbcPanelSyntax = new GridBagConstraints();
+        gbcPanelSyntax.anchor = GridBagConstraints.NORTHWEST;
+        gbcPanelSyntax.insets = new Insets(0, 0, 5, 5);
+        gbcPanelSyntax.gridwidth = 2;
+        gbcPanelSyntax.gridx = 0;
+        gbcPanelSyntax.gridy = 2;
+        panel.add(panelSyntax, gbcPanelSyntax);
+
+        GridBagConstraints gbcCheckBoxDeidentify = new GridBagConstraints();
+        gbcCheckBoxDeidentify.anchor = GridBagConstraints.NORTHWEST;
+        gbcCheckBoxDeidentify.insets = new Insets(0, 0, 5, 5);
+        gbcCheckBoxDeidentify.gridwidth = 2;
+        gbcCheckBoxDeidentify.gridx = 0;
+        gbcCheckBoxDeidentify.gridy = 3;
+        panel.add(checkBoxDeidentify, gbcCheckBoxDeidentify);
+
+        JPanel panelFileSystem = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        panelFileSystem.add(labelFileSystem);
+        panelFileSystem.add(comboFileSystem);
+        GridBagConstraints gbcPanelFileSystem = new GridBagConstraints();
+        gbcPanelFileSystem.anchor = GridBagConstraints.NORTHWEST;
+        gbcPanelFileSystem.insets = new Insets(0, 0, 5, 5);
+        gbcPanelFileSystem.gridwidth = 2;
+        gbcPanelFileSystem.gridx = 0;
+        gbcPanelFileSystem.gridy = 4;
+        panel.add(panelFileSystem, gbcPanelFileSystem);
 
         add(exportTree, BorderLayout.CENTER);
     }
@@ -154,11 +178,44 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     protected void initialize(boolean afirst) {
         if (afirst) {
             Properties pref = ExportIsoFactory.EXPORT_PERSISTENCE;
-            checkBoxAddJpeg.setSelected(Boolean.valueOf(pref.getProperty(ADD_JPEG, "true")));
-            checkBoxAddWeasisViewer.setSelected(Boolean.valueOf(pref.getProperty(ADD_VIEWER, "true")));
+            ExportOptions options = ExportOptions.fromPreferences(pref);
+            checkBoxAddJpeg.setSelected(options.isAddJpeg());
+            checkBoxAddWeasisViewer.setSelected(options.isAddViewer());
+            comboMedium.setSelectedItem(options.getMedium());
+            comboSyntax.setSelectedItem(options.getDicomSyntax());
+            checkBoxDeidentify.setSelected(options.isDeidentify());
+            comboFileSystem.setSelectedItem(options.getFileSystem());
+        }
+    }
+
+    private void askCustomMediumSize() {
+        Properties pref = ExportIsoFactory.EXPORT_PERSISTENCE;
+        Object value = JOptionPane.showInputDialog(this, "Capacity of the medium (MB):", MediumType.CUSTOM.getTitle(),
+            JOptionPane.QUESTION_MESSAGE, null, null,
+            String.valueOf(ExportOptions.fromPreferences(pref).getCustomCapacity() / (1024L * 1024L)));
+        if (value != null) {
+            try {
+                long size = Long.parseLong(value.toString().trim());
+                if (size > 0) {
+                    pref.setProperty(ExportOptions.MEDIUM_CUSTOM_SIZE, String.valueOf(size));
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid medium size: {}", value); //$NON-NLS-1$
+            }
         }
     }
 
+    private ExportOptions getExportOptions() {
+        ExportOptions options = ExportOptions.fromPreferences(ExportIsoFactory.EXPORT_PERSISTENCE);
+        options.setAddJpeg(checkBoxAddJpeg.isSelected());
+        options.setAddViewer(checkBoxAddWeasisViewer.isSelected());
+        options.setMedium((MediumType) comboMedium.getSelectedItem());
+        options.setDicomSyntax((DicomSyntax) comboSyntax.getSelectedItem());
+        options.setDeidentify(checkBoxDeidentify.isSelected());
+        options.setFileSystem((FileSystemType) comboFileSystem.getSelectedItem());
+        return options;
+    }
+
     public void resetSettingsToDefault() {
         initialize(false);
     }
@@ -182,52 +239,209 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     }
 
     @Override
-    public void exportDICOM(final CheckTreeModel model, JProgressBar info) throws IOException {
+    public void exportDICOM(final CheckTreeModel model, final JProgressBar info) throws IOException {
+        final ExportOptions options = getExportOptions();
+        final List<ExportItem> items = getExportItems(model);
+        final ExportEstimator estimator = new ExportEstimator(options);
+        // The estimate reads the size of every source file and the entries of the viewer archive
+        SwingWorker<ExportEstimator.Estimate, Void> estimateTask = new SwingWorker<ExportEstimator.Estimate, Void>() {
+            private long overhead;
+
+            @Override
+            protected ExportEstimator.Estimate doInBackground() {
+                overhead = estimator.getVolumeOverhead();
+                return estimator.estimate(items);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    if (confirmEstimate(get(), overhead, options)) {
+                        startExport(items, options, info);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | IOException e) {
+                    LOGGER.error("Cannot export the image", e); //$NON-NLS-1$
+                }
+            }
+        };
+        estimateTask.execute();
+    }
+
+    private void startExport(final List<ExportItem> items, final ExportOptions options, final JProgressBar info)
+        throws IOException {
         browseImgFile();
         if (outputFile != null) {
             final File exportFile = outputFile.getCanonicalFile();
+            final ExportJob job = exportService.submit(items, exportFile, options);
+            final Timer timer = new Timer(ExportProgress.REFRESH_DELAY, e -> updateProgress(info, job));
             ExplorerTask task = new ExplorerTask("Exporting...", false) {
 
                 @Override
                 protected Boolean doInBackground() throws Exception {
                     dicomModel.firePropertyChange(
                         new ObservableEvent(ObservableEvent.BasicAction.LOADING_START, dicomModel, null, this));
-                    File exportDir = FileUtil.createTempDir(AppProperties.buildAccessibleTempDirectory("tmp", "burn"));
-                    writeDicom(this, exportDir, model);
-                    if (checkBoxAddJpeg.isSelected()) {
-                        writeJpeg(this, new File(exportDir, "JPEG"), model, true, 90);
-                    }
-                    if (checkBoxAddWeasisViewer.isSelected()) {
-                        URL url = ResourceUtil.getResourceURL("lib/weasis-distributions.zip", this.getClass());
-                        if (url == null) {
-                            LOGGER.error("Cannot find the embedded portable distribution");
-                        } else {
-                            FileUtil.unzip(url.openStream(), exportDir);
+                    // The job runs in the scheduler of the service, the task only follows it
+                    while (true) {
+                        if (isCancelled()) {
+                            job.cancel();
+                        }
+                        try {
+                            return !job.getFuture().get(JOB_POLL_DELAY, TimeUnit.MILLISECONDS).isCancelled();
+                        } catch (TimeoutException e) {
+                            // Still running
+                        } catch (CancellationException e) {
+                            return false;
+                        } catch (InterruptedException e) {
+                            job.cancel();
+                            Thread.currentThread().interrupt();
+                            return false;
                         }
                     }
-                    if (this.isCancelled()) {
-                        return false;
-                    }
-                    makeISO(exportDir, exportFile, true, true);
-
-                    return true;
                 }
 
                 @Override
                 protected void done() {
+                    timer.stop();
+                    if (info != null) {
+                        info.setString(null);
+                        info.setStringPainted(false);
+                    }
                     Properties pref = ExportIsoFactory.EXPORT_PERSISTENCE;
-                    pref.setProperty(ADD_JPEG, String.valueOf(checkBoxAddJpeg.isSelected()));
-                    pref.setProperty(ADD_VIEWER, String.valueOf(checkBoxAddWeasisViewer.isSelected()));
+                    pref.setProperty(ExportOptions.ADD_JPEG, String.valueOf(checkBoxAddJpeg.isSelected()));
+                    pref.setProperty(ExportOptions.ADD_VIEWER, String.valueOf(checkBoxAddWeasisViewer.isSelected()));
+                    pref.setProperty(ExportOptions.MEDIUM, ((MediumType) comboMedium.getSelectedItem()).name());
+                    pref.setProperty(ExportOptions.DICOM_SYNTAX, ((DicomSyntax) comboSyntax.getSelectedItem()).name());
+                    pref.setProperty(ExportOptions.DEIDENTIFY, String.valueOf(checkBoxDeidentify.isSelected()));
+                    pref.setProperty(ExportOptions.ISO_FILE_SYSTEM,
+                        ((FileSystemType) comboFileSystem.getSelectedItem()).name());
+                    if (job.getState() == ExportJob.State.FAILED) {
+                        Throwable error = job.getError();
+                        JOptionPane.showMessageDialog(IsoImageExport.this,
+                            "Cannot export " + exportFile.getName() //$NON-NLS-1$
+                                + (error == null || error.getMessage() == null ? "" : ":\n" + error.getMessage()), //$NON-NLS-1$ //$NON-NLS-2$
+                            IsoImageExport.this.getTitle(), JOptionPane.ERROR_MESSAGE);
+                    }
 
                     dicomModel.firePropertyChange(
                         new ObservableEvent(ObservableEvent.BasicAction.LOADING_STOP, dicomModel, null, this));
                 }
 
             };
+            if (info != null) {
+                info.setMinimum(0);
+                info.setMaximum(PROGRESS_MAXIMUM);
+                info.setValue(0);
+                info.setIndeterminate(false);
+                info.setStringPainted(true);
+            }
+            timer.start();
             task.execute();
         }
     }
 
+    /**
+     * Ask whether the exports interrupted by the last shutdown are started again. The jobs stay paused when the user
+     * does not answer.
+     */
+    private void askResumeJobs() {
+        List<ExportJob> paused = new ArrayList<>();
+        for (ExportJob job : exportService.getJobs()) {
+            if (job.getState() == ExportJob.State.PAUSED) {
+                paused.add(job);
+            }
+        }
+        if (paused.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder("Exports interrupted by the last shutdown:"); //$NON-NLS-1$
+        for (ExportJob job : paused) {
+            message.append("\n  ").append(job.getExportFile().getPath()); //$NON-NLS-1$
+            if (job.getWarning() != null) {
+                message.append("\n    ").append(job.getWarning()); //$NON-NLS-1$
+            }
+        }
+        message.append("\n\nResume them? \"No\" discards them."); //$NON-NLS-1$
+        int response = JOptionPane.showConfirmDialog(this, message.toString(), getTitle(),
+            JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+        for (ExportJob job : paused) {
+            if (response == JOptionPane.YES_OPTION) {
+                exportService.resume(job);
+            } else if (response == JOptionPane.NO_OPTION) {
+                job.cancel();
+            }
+        }
+    }
+
+    private static void updateProgress(JProgressBar info, ExportJob job) {
+        String message = job.getProgressMessage();
+        if (info != null) {
+            info.setValue(job.getProgress(PROGRESS_MAXIMUM));
+            info.setString(message);
+        }
+    }
+
+    /**
+     * @return the checked media and presentation states, in the order of the tree
+     */
+    private List<ExportItem> getExportItems(CheckTreeModel model) {
+        List<ExportItem> items = new ArrayList<>();
+        synchronized (exportTree) {
+            for (TreePath path : model.getCheckingPaths()) {
+                // root / patient / study / series / instance
+                if (path.getPathCount() < 4) {
+                    continue;
+                }
+                Object patient = ((DefaultMutableTreeNode) path.getPathComponent(1)).getUserObject();
+                Object study = ((DefaultMutableTreeNode) path.getPathComponent(2)).getUserObject();
+                Object series = ((DefaultMutableTreeNode) path.getPathComponent(3)).getUserObject();
+                if (!(series instanceof MediaSeries)) {
+                    continue;
+                }
+                Object object = ((DefaultMutableTreeNode) path.getLastPathComponent()).getUserObject();
+                if (object instanceof MediaElement) {
+                    items.add(ExportItem.ofMedia(patient, study, (MediaSeries<?>) series, (MediaElement) object));
+                } else if (object == series && object instanceof Series) {
+                    ExportItem item = ExportItem.ofPresentations(patient, study, (MediaSeries<?>) series);
+                    if (item.getPresentationSource() != null) {
+                        items.add(item);
+                    }
+                }
+            }
+        }
+        return items;
+    }
+
+    private boolean confirmEstimate(ExportEstimator.Estimate estimate, long overhead, ExportOptions options) {
+        if (estimate.getFileCount() == 0) {
+            JOptionPane.showMessageDialog(this, "No file to export", getTitle(), JOptionPane.WARNING_MESSAGE);
+            return false;
+        }
+        long capacity = options.getCapacity();
+        if (capacity > 0 && capacity <= overhead) {
+            JOptionPane.showMessageDialog(this, IsoExporter.getCapacityError(capacity, overhead), getTitle(),
+                JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        LOGGER.info("Export estimate: {} bytes, {} files, {} ms", estimate.getTotalSize(), estimate.getFileCount(), //$NON-NLS-1$
+            estimate.getDuration());
+
+        StringBuilder message = new StringBuilder(estimate.getSummary());
+        int type = JOptionPane.INFORMATION_MESSAGE;
+        if (capacity > 0 && estimate.getTotalSize() > capacity) {
+            long nbVolumes = (estimate.getTotalSize() + capacity - 1) / capacity;
+            message.append("\n\nThe selection does not fit on one medium, it will be split into at least "); //$NON-NLS-1$
+            message.append(nbVolumes).append(" images."); //$NON-NLS-1$
+            type = JOptionPane.WARNING_MESSAGE;
+        } else if (capacity <= 0 && estimate.getTotalSize() > MediumType.DVD.getCapacity()) {
+            message.append("\n\nThe image is too large for a DVD. Select a medium to split it."); //$NON-NLS-1$
+            type = JOptionPane.WARNING_MESSAGE;
+        }
+        return JOptionPane.showConfirmDialog(this, message.toString(), getTitle(), JOptionPane.OK_CANCEL_OPTION,
+            type) == JOptionPane.OK_OPTION;
+    }
+
     public void browseImgFile() {
         String lastFolder = ExportIsoFactory.EXPORT_PERSISTENCE.getProperty(LAST_FOLDER, null);
         if (lastFolder == null) {
@@ -253,511 +467,68 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
         }
     }
 
-    private static String getinstanceFileName(MediaElement img) {
-        Integer instance = TagD.getTagValue(img, Tag.InstanceNumber, Integer.class);
-        if (instance != null) {
-            String val = instance.toString();
-            if (val.length() < 5) {
-                char[] chars = new char[5 - val.length()];
-                for (int i = 0; i < chars.length; i++) {
-                    chars[i] = '0';
-                }
-
-                return new String(chars) + val;
-
-            } else {
-                return val;
-            }
-        }
-        return TagD.getTagValue(img, Tag.SOPInstanceUID, String.class);
-    }
-
-    private void writeJpeg(ExplorerTask task, File exportDir, CheckTreeModel model, boolean keepNames,
-        int jpegQuality) {
-
-        try {
-            synchronized (exportTree) {
-                ArrayList<String> seriesGph = new ArrayList<>();
-                TreePath[] paths = model.getCheckingPaths();
-                for (TreePath treePath : paths) {
-                    DefaultMutableTreeNode node = (DefaultMutableTreeNode) treePath.getLastPathComponent();
-                    if (node.getUserObject() instanceof Series) {
-                        MediaSeries<?> s = (MediaSeries<?>) node.getUserObject();
-                        if (LangUtil.getNULLtoFalse((Boolean) s.getTagValue(TagW.ObjectToSave))) {
-                            Series<?> series = (Series<?>) s.getTagValue(CheckTreeModel.SourceSeriesForPR);
-                            if (series != null) {
-                                seriesGph.add((String) series.getTagValue(TagD.get(Tag.SeriesInstanceUID)));
-                            }
-                        }
-                    }
-                }
-
-                for (TreePath treePath : paths) {
-                    if (task.isCancelled()) {
-                        return;
-                    }
-
-                    DefaultMutableTreeNode node = (DefaultMutableTreeNode) treePath.getLastPathComponent();
-
-                    if (node.getUserObject() instanceof DicomImageElement) {
-                        DicomImageElement img = (DicomImageElement) node.getUserObject();
-                        // Get instance number instead SOPInstanceUID to handle multiframe
-                        String instance = getinstanceFileName(img);
-                        if (!keepNames) {
-                            instance = makeFileIDs(instance);
-                        }
-                        String path = buildPath(img, keepNames, node);
-                        File destinationDir = new File(exportDir, path);
-                        destinationDir.mkdirs();
-
-                        RenderedImage image = img.getImage(null);
-                        if (image != null) {
-                            image = img.getRenderedImage(image);
-                        }
-                        if (image != null) {
-                            ImageFiler.writeJPG(new File(destinationDir, instance + ".jpg"), image, //$NON-NLS-1$
-                                jpegQuality / 100.0f);
-                        } else {
-                            LOGGER.error("Cannot export DICOM file to jpeg: {}", img.getFileCache().getOriginalFile()); //$NON-NLS-1$
-                        }
-                        // Prevent to many files open on Linux (Ubuntu => 1024) and close image stream
-                        img.removeImageFromCache();
-                    } else if (node.getUserObject() instanceof MediaElement
-                        && node.getUserObject() instanceof FileExtractor) {
-                        MediaElement dcm = (MediaElement) node.getUserObject();
-                        File fileSrc = ((FileExtractor) dcm).getExtractFile();
-                        if (fileSrc != null) {
-                            // Get instance number instead SOPInstanceUID to handle multiframe
-                            String instance = getinstanceFileName(dcm);
-                            if (!keepNames) {
-                                instance = makeFileIDs(instance);
-                            }
-                            String path = buildPath(dcm, keepNames, node);
-                            File destinationDir = new File(exportDir, path);
-                            destinationDir.mkdirs();
-
-                            File destinationFile =
-                                new File(destinationDir, instance + FileUtil.getExtension(fileSrc.getName()));
-                            FileUtil.nioCopyFile(fileSrc, destinationFile);
-                        }
-                    }
-                }
-
-            }
-        } catch (Exception e) {
-            LOGGER.error("Cannot extract media from DICOM", e); //$NON-NLS-1$
-        }
-    }
-
-    private void writeDicom(ExplorerTask task, File exportDir, CheckTreeModel model) throws IOException {
-        boolean keepNames = false;
-        boolean writeDicomdir = true;
-        boolean cdCompatible = true;
-
-        File writeDir = exportDir;
-
-        DicomDirWriter writer = null;
-        try {
-
-            if (writeDicomdir) {
-                File dcmdirFile = new File(writeDir, "DICOMDIR"); //$NON-NLS-1$
-                writer = DicomDirLoader.open(dcmdirFile);
-            }
-
-            synchronized (exportTree) {
-                ArrayList<String> uids = new ArrayList<>();
-                TreePath[] paths = model.getCheckingPaths();
-                for (TreePath treePath : paths) {
-                    if (task.isCancelled()) {
-                        return;
-                    }
-
-                    DefaultMutableTreeNode node = (DefaultMutableTreeNode) treePath.getLastPathComponent();
-
-                    if (node.getUserObject() instanceof DicomImageElement) {
-                        DicomImageElement img = (DicomImageElement) node.getUserObject();
-                        String iuid = TagD.getTagValue(img, Tag.SOPInstanceUID, String.class);
-                        int index = uids.indexOf(iuid);
-                        if (index == -1) {
-                            uids.add(iuid);
-                        } else {
-                            // Write only once the file for multiframe
-                            continue;
-                        }
-                        if (!keepNames) {
-                            iuid = makeFileIDs(iuid);
-                        }
-
-                        String path = buildPath(img, keepNames, writeDicomdir, cdCompatible, node);
-                        File destinationDir = new File(writeDir, path);
-                        destinationDir.mkdirs();
-
-                        File destinationFile = new File(destinationDir, iuid);
-                        if (img.saveToFile(destinationFile)) {
-                            writeInDicomDir(writer, img, node, iuid, destinationFile);
-                        } else {
-                            LOGGER.error("Cannot export DICOM file: {}", img.getFileCache().getOriginalFile()); //$NON-NLS-1$
-                        }
-                    } else if (node.getUserObject() instanceof MediaElement) {
-                        MediaElement dcm = (MediaElement) node.getUserObject();
-                        String iuid = TagD.getTagValue(dcm, Tag.SOPInstanceUID, String.class);
-                        if (!keepNames) {
-                            iuid = makeFileIDs(iuid);
-                        }
-
-                        String path = buildPath(dcm, keepNames, writeDicomdir, cdCompatible, node);
-                        File destinationDir = new File(writeDir, path);
-                        destinationDir.mkdirs();
-
-                        File destinationFile = new File(destinationDir, iuid);
-                        if (dcm.saveToFile(destinationFile)) {
-                            writeInDicomDir(writer, dcm, node, iuid, destinationFile);
-                        }
-                    } else if (node.getUserObject() instanceof Series) {
-                        MediaSeries<?> s = (MediaSeries<?>) node.getUserObject();
-                        if (LangUtil.getNULLtoFalse((Boolean) s.getTagValue(TagW.ObjectToSave))) {
-                            Series<?> series = (Series<?>) s.getTagValue(CheckTreeModel.SourceSeriesForPR);
-                            if (series != null) {
-                                String seriesInstanceUID = UIDUtils.createUID();
-                                for (MediaElement dcm : series.getMedias(null, null)) {
-                                    GraphicModel grModel = (GraphicModel) dcm.getTagValue(TagW.PresentationModel);
-                                    if (grModel != null && grModel.hasSerializableGraphics()) {
-                                        String path = buildPath(dcm, keepNames, writeDicomdir, cdCompatible, node);
-                                        buildAndWritePR(dcm, keepNames, new File(writeDir, path), writer, node,
-                                            seriesInstanceUID);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        } catch (IOException e) {
-            throw e;
-        } catch (Exception e) {
-            LOGGER.error("Cannot export DICOM", e); //$NON-NLS-1$
-        } finally {
-            if (writer != null) {
-                // Commit DICOMDIR changes and close the file
-                writer.close();
+    /**
+     * @deprecated the DICOMDIR records are collected in a {@link DicomDirBuilder}, use
+     *             {@link #buildAndWritePR(MediaElement, boolean, File, DicomDirBuilder, String)}. The node is not used
+     *             anymore.
+     */
+    @Deprecated
+    public static Attributes buildAndWritePR(MediaElement img, boolean keepNames, File destinationDir,
+        DicomDirWriter writer, DefaultMutableTreeNode node, String seriesInstanceUID) {
+        DicomDirBuilder dicomdir = writer == null ? null : new DicomDirBuilder(writer.getFile());
+        Attributes imgAttributes = buildAndWritePR(img, keepNames, destinationDir, dicomdir, seriesInstanceUID);
+        if (dicomdir != null) {
+            try {
+                dicomdir.writeTo(writer);
+            } catch (IOException e) {
+                LOGGER.error("Writing DICOMDIR", e); //$NON-NLS-1$
             }
         }
+        return imgAttributes;
     }
 
     public static Attributes buildAndWritePR(MediaElement img, boolean keepNames, File destinationDir,
-        DicomDirWriter writer, DefaultMutableTreeNode node, String seriesInstanceUID) {
+        DicomDirBuilder dicomdir, String seriesInstanceUID) {
         Attributes imgAttributes = img.getMediaReader() instanceof DcmMediaReader
             ? ((DcmMediaReader) img.getMediaReader()).getDicomObject() : null;
-        if (imgAttributes != null) {
-            GraphicModel grModel = (GraphicModel) img.getTagValue(TagW.PresentationModel);
-            if (grModel != null && grModel.hasSerializableGraphics()) {
-                String prUid = UIDUtils.createUID();
-                File outputFile = new File(destinationDir, keepNames ? prUid : makeFileIDs(prUid));
-                destinationDir.mkdirs();
-                Attributes prAttributes =
-                    DicomPrSerializer.writePresentation(grModel, imgAttributes, outputFile, seriesInstanceUID, prUid);
-                if (prAttributes != null) {
-                    try {
-                        writeInDicomDir(writer, prAttributes, node, outputFile.getName(), outputFile);
-                    } catch (IOException e) {
-                        LOGGER.error("Writing DICOMDIR", e); //$NON-NLS-1$
-                    }
-                }
-            }
+        ExportedInstance pr = IsoExporter.writePR(img, keepNames, destinationDir, seriesInstanceUID, null);
+        if (pr != null) {
+            IsoExporter.writeInDicomDir(dicomdir, pr);
         }
         return imgAttributes;
     }
 
     public static String buildPath(MediaElement img, boolean keepNames, boolean writeDicomdir, boolean cdCompatible,
         DefaultMutableTreeNode node) {
-        StringBuilder buffer = new StringBuilder();
-        // Cannot keep folders names with DICOMDIR (could be not valid)
-        if (keepNames && !writeDicomdir) {
-            TreeNode[] objects = node.getPath();
-            if (objects.length > 2) {
-                for (int i = 1; i < objects.length - 1; i++) {
-                    buffer.append(buildFolderName(objects[i].toString(), 30));
-                    buffer.append(File.separator);
-                }
-            }
-        } else {
-            if (cdCompatible) {
-                buffer.append("DICOM"); //$NON-NLS-1$
-                buffer.append(File.separator);
-            }
-            buffer.append(makeFileIDs((String) img.getTagValue(TagW.PatientPseudoUID)));
-            buffer.append(File.separator);
-            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.StudyInstanceUID, String.class)));
-            buffer.append(File.separator);
-            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.SeriesInstanceUID, String.class)));
+        TreeNode[] objects = node.getPath();
+        // Names of the parent nodes, without the root
+        String[] names = new String[Math.max(0, objects.length - 2)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = objects[i + 1].toString();
         }
-        return buffer.toString();
+        return IsoExporter.buildPath(img, keepNames, writeDicomdir, cdCompatible, names);
     }
 
     public static String buildPath(MediaElement img, boolean keepNames, DefaultMutableTreeNode node) {
-        StringBuilder buffer = new StringBuilder();
-        if (keepNames) {
-            TreeNode[] objects = node.getPath();
-            if (objects.length > 3) {
-                buffer.append(buildFolderName(objects[1].toString(), 30));
-                buffer.append(File.separator);
-                buffer.append(buildFolderName(objects[2].toString(), 30));
-                buffer.append(File.separator);
-                buffer.append(buildFolderName(objects[3].toString(), 25));
-                buffer.append('-');
-                // Hash of UID to guaranty the unique behavior of the name.
-                buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.SeriesInstanceUID, String.class)));
-            }
-        } else {
-            buffer.append(makeFileIDs((String) img.getTagValue(TagW.PatientPseudoUID)));
-            buffer.append(File.separator);
-            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.StudyInstanceUID, String.class)));
-            buffer.append(File.separator);
-            buffer.append(makeFileIDs(TagD.getTagValue(img, Tag.SeriesInstanceUID, String.class)));
-        }
-        return buffer.toString();
-    }
-
-    private static String buildFolderName(String str, int length) {
-        String value = FileUtil.getValidFileNameWithoutHTML(str);
-        return StringUtil.getTruncatedString(value, length, Suffix.NO);
-    }
-
-    private static boolean writeInDicomDir(DicomDirWriter writer, MediaElement img, DefaultMutableTreeNode node,
-        String iuid, File destinationFile) throws IOException {
-        if (writer != null) {
-            if (!(img.getMediaReader() instanceof DcmMediaReader)
-                || ((DcmMediaReader) img.getMediaReader()).getDicomObject() == null) {
-                LOGGER.error("Cannot export DICOM file: ", img.getFileCache().getOriginalFile()); //$NON-NLS-1$
-                return false;
-            }
-            return writeInDicomDir(writer, ((DcmMediaReader) img.getMediaReader()).getDicomObject(), node, iuid,
-                destinationFile);
-        }
-        return false;
-    }
-
-    private static boolean writeInDicomDir(DicomDirWriter writer, Attributes dataset, DefaultMutableTreeNode node,
-        String iuid, File destinationFile) throws IOException {
-        if (writer != null && dataset != null) {
-            Attributes fmi = dataset.createFileMetaInformation(UID.ImplicitVRLittleEndian);
-
-            String miuid = fmi.getString(Tag.MediaStorageSOPInstanceUID, null);
-
-            String pid = dataset.getString(Tag.PatientID, null);
-            String styuid = dataset.getString(Tag.StudyInstanceUID, null);
-            String seruid = dataset.getString(Tag.SeriesInstanceUID, null);
-
-            if (styuid != null && seruid != null) {
-                if (pid == null) {
-                    pid = styuid;
-                    dataset.setString(Tag.PatientID, VR.LO, pid);
-                }
-                Attributes patRec = writer.findPatientRecord(pid);
-                if (patRec == null) {
-                    patRec = DicomDirLoader.RecordFactory.createRecord(RecordType.PATIENT, null, dataset, null, null);
-                    writer.addRootDirectoryRecord(patRec);
-                }
-                Attributes studyRec = writer.findStudyRecord(patRec, styuid);
-                if (studyRec == null) {
-                    studyRec = DicomDirLoader.RecordFactory.createRecord(RecordType.STUDY, null, dataset, null, null);
-                    writer.addLowerDirectoryRecord(patRec, studyRec);
-                }
-                Attributes seriesRec = writer.findSeriesRecord(studyRec, seruid);
-                if (seriesRec == null) {
-                    seriesRec = DicomDirLoader.RecordFactory.createRecord(RecordType.SERIES, null, dataset, null, null);
-                    /*
-                     * Icon Image Sequence (0088,0200).This Icon Image is representative of the Series. It may or may
-                     * not correspond to one of the images of the Series.
-                     */
-                    if (seriesRec != null && node.getParent() instanceof DefaultMutableTreeNode) {
-                        Object userObject = ((DefaultMutableTreeNode) node.getParent()).getUserObject();
-                        if (userObject instanceof DicomSeries) {
-                            DicomImageElement midImage =
-                                ((DicomSeries) userObject).getMedia(MediaSeries.MEDIA_POSITION.MIDDLE, null, null);
-                            Attributes iconItem = mkIconItem(midImage);
-                            if (iconItem != null) {
-                                seriesRec.newSequence(Tag.IconImageSequence, 1).add(iconItem);
-                            }
-                        }
-                    }
-                    writer.addLowerDirectoryRecord(studyRec, seriesRec);
-                }
-                Attributes instRec;
-                if (writer.findLowerInstanceRecord(seriesRec, false, iuid) == null) {
-                    instRec =
-                        DicomDirLoader.RecordFactory.createRecord(dataset, fmi, writer.toFileIDs(destinationFile));
-                    writer.addLowerDirectoryRecord(seriesRec, instRec);
-                }
-            } else {
-                if (writer.findRootInstanceRecord(false, miuid) == null) {
-                    Attributes instRec =
-                        DicomDirLoader.RecordFactory.createRecord(dataset, fmi, writer.toFileIDs(destinationFile));
-                    writer.addRootDirectoryRecord(instRec);
-                }
-            }
-        }
-        return true;
+        TreeNode[] objects = node.getPath();
+        String[] names = objects.length > 3
+            ? new String[] { objects[1].toString(), objects[2].toString(), objects[3].toString() } : new String[0];
+        return IsoExporter.buildPath(img, keepNames, names);
     }
 
     public static String makeFileIDs(String uid) {
-        if (uid != null) {
-            return Integer.toHexString(uid.hashCode());
-        }
-        return null;
-    }
-
-    private File makeISO(File exportDir, File exportFile, boolean enableRockRidge, boolean enableJoliet) {
-        // ISO file
-        File outfile = exportFile;
-        // Directory hierarchy, starting from the root
-        ISO9660RootDirectory root = new ISO9660RootDirectory();
-
-        try {
-            File[] files = exportDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.exists()) {
-                        if (file.isDirectory()) {
-                            root.addRecursively(file);
-                        } else {
-                            root.addFile(file);
-                        }
-                    }
-                }
-            }
-        } catch (HandlerException e) {
-            LOGGER.error("Error when adding files to ISO", e);
-        }
-
-        try {
-            // ISO9660 support
-            ISO9660Config iso9660Config = new ISO9660Config();
-            iso9660Config.allowASCII(false);
-            iso9660Config.setInterchangeLevel(1);
-            iso9660Config.restrictDirDepthTo8(true);
-            iso9660Config.setPublisher("Weasis");
-            iso9660Config.setVolumeID("DICOM");
-            iso9660Config.setDataPreparer("DICOM");
-            iso9660Config.forceDotDelimiter(false);
-
-            RockRidgeConfig rrConfig = null;
-
-            if (enableRockRidge) {
-                // Rock Ridge support
-                rrConfig = new RockRidgeConfig();
-                rrConfig.setMkisofsCompatibility(false);
-                rrConfig.hideMovedDirectoriesStore(true);
-                rrConfig.forcePortableFilenameCharacterSet(true);
-            }
-
-            JolietConfig jolietConfig = null;
-            if (enableJoliet) {
-                // Joliet support
-                jolietConfig = new JolietConfig();
-                jolietConfig.setPublisher("Weasis");
-                jolietConfig.setVolumeID("DICOM");
-                jolietConfig.setDataPreparer("DICOM");
-                jolietConfig.forceDotDelimiter(false);
-            }
-
-            // Create ISO
-            StreamHandler streamHandler = new ISOImageFileHandler(outfile);
-            CreateISO iso = new CreateISO(streamHandler, root);
-            iso.process(iso9660Config, rrConfig, jolietConfig, null);
-            return outfile;
-
-        } catch (ConfigException | HandlerException | FileNotFoundException e) {
-            LOGGER.error("Error when building ISO", e);
-        } finally {
-            FileUtil.recursiveDelete(exportDir);
-        }
-        return null;
+        return IsoExporter.makeFileIDs(uid);
     }
 
     public static Attributes mkIconItem(DicomImageElement image) {
-        if (image == null) {
-            return null;
-        }
-        BufferedImage thumbnail = null;
-        PlanarImage imgPl = image.getImage(null);
-        if (imgPl != null) {
-            RenderedImage img = image.getRenderedImage(imgPl);
-            final double scale = Math.min(128 / (double) img.getHeight(), 128 / (double) img.getWidth());
-            final PlanarImage thumb = scale < 1.0
-                ? SubsampleAverageDescriptor.create(img, scale, scale, Thumbnail.DownScaleQualityHints).getRendering()
-                : PlanarImage.wrapRenderedImage(img);
-            thumbnail = thumb.getAsBufferedImage();
-        }
-        // Prevent to many files open on Linux (Ubuntu => 1024) and close image stream
-        image.removeImageFromCache();
-
-        if (thumbnail == null) {
-            return null;
-        }
-        int w = thumbnail.getWidth();
-        int h = thumbnail.getHeight();
-
-        String pmi = TagD.getTagValue(image, Tag.PhotometricInterpretation, String.class);
-        BufferedImage bi = thumbnail;
-        if (thumbnail.getColorModel().getColorSpace().getType() != ColorSpace.TYPE_GRAY) {
-            bi = convertBI(thumbnail, BufferedImage.TYPE_BYTE_INDEXED);
-            pmi = "PALETTE COLOR"; //$NON-NLS-1$
-        }
-
-        byte[] iconPixelData = new byte[w * h];
-        Attributes iconItem = new Attributes();
-
-        if ("PALETTE COLOR".equals(pmi)) { //$NON-NLS-1$
-            IndexColorModel cm = (IndexColorModel) bi.getColorModel();
-            int[] lutDesc = { cm.getMapSize(), 0, 8 };
-            byte[] r = new byte[lutDesc[0]];
-            byte[] g = new byte[lutDesc[0]];
-            byte[] b = new byte[lutDesc[0]];
-            cm.getReds(r);
-            cm.getGreens(g);
-            cm.getBlues(b);
-            iconItem.setInt(Tag.RedPaletteColorLookupTableDescriptor, VR.US, lutDesc);
-            iconItem.setInt(Tag.GreenPaletteColorLookupTableDescriptor, VR.US, lutDesc);
-            iconItem.setInt(Tag.BluePaletteColorLookupTableDescriptor, VR.US, lutDesc);
-            iconItem.setBytes(Tag.RedPaletteColorLookupTableData, VR.OW, r);
-            iconItem.setBytes(Tag.GreenPaletteColorLookupTableData, VR.OW, g);
-            iconItem.setBytes(Tag.BluePaletteColorLookupTableData, VR.OW, b);
-
-            Raster raster = bi.getRaster();
-            for (int y = 0, i = 0; y < h; ++y) {
-                for (int x = 0; x < w; ++x, ++i) {
-                    iconPixelData[i] = (byte) raster.getSample(x, y, 0);
-                }
-            }
-        } else {
-            pmi = "MONOCHROME2"; //$NON-NLS-1$
-            for (int y = 0, i = 0; y < h; ++y) {
-                for (int x = 0; x < w; ++x, ++i) {
-                    iconPixelData[i] = (byte) bi.getRGB(x, y);
-                }
-            }
-        }
-        iconItem.setString(Tag.PhotometricInterpretation, VR.CS, pmi);
-        iconItem.setInt(Tag.Rows, VR.US, h);
-        iconItem.setInt(Tag.Columns, VR.US, w);
-        iconItem.setInt(Tag.SamplesPerPixel, VR.US, 1);
-        iconItem.setInt(Tag.BitsAllocated, VR.US, 8);
-        iconItem.setInt(Tag.BitsStored, VR.US, 8);
-        iconItem.setInt(Tag.HighBit, VR.US, 7);
-        iconItem.setBytes(Tag.PixelData, VR.OW, iconPixelData);
-        return iconItem;
+        return IsoExporter.mkIconItem(image);
     }
 
-    private static BufferedImage convertBI(BufferedImage src, int imageType) {
-        BufferedImage dst = new BufferedImage(src.getWidth(), src.getHeight(), imageType);
-        Graphics2D big = dst.createGraphics();
-        try {
-            big.drawImage(src, 0, 0, null);
-        } finally {
-            big.dispose();
-        }
-        return dst;
+    /**
+     * Build the icon from an image already rendered (e.g. for the JPEG export).
+     */
+    public static Attributes mkIconItem(DicomImageElement image, RenderedImage img) {
+        return IsoExporter.mkIconItem(image, img);
     }
 
 }
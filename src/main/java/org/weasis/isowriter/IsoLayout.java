@@ -0,0 +1,462 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.BooleanSupplier;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.media.data.FileCache;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.MediaReader;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.dicom.codec.DcmMediaReader;
+import org.weasis.dicom.codec.TagD;
+
+import com.github.stephenc.javaisotools.iso9660.ISO9660Directory;
+import com.github.stephenc.javaisotools.iso9660.ISO9660File;
+import com.github.stephenc.javaisotools.iso9660.ISO9660RootDirectory;
+import com.github.stephenc.javaisotools.sabre.DataReference;
+import com.github.stephenc.javaisotools.sabre.HandlerException;
+
+/**
+ * Layout of the files of the ISO image.
+ * <p>
+ * The working directory represents the root of the image. The layout is a plan of the paths of the image with their
+ * content and their size, which is filled while writing the export, so the directory tree of the image is built
+ * without walking the file system. When the sources are copied (staging mode), every file is written in the working
+ * directory. Otherwise, the working directory only contains the transient generated files (DICOMDIR, PR, JPEG...) and
+ * the plan references the original files of the cache, which are read once when writing the image.
+ */
+public class IsoLayout {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IsoLayout.class);
+
+    // Size of the beginning of the files compared before hashing the whole content
+    private static final long HEAD_SIZE = 64 * 1024L;
+    // Attributes compared between the element and the header of its file
+    private static final int[] IDENTIFIERS =
+        { Tag.PatientID, Tag.StudyInstanceUID, Tag.SeriesInstanceUID, Tag.SOPInstanceUID };
+
+    private final File workingDir;
+    private final boolean copySources;
+    // Path in the image => content
+    private final Map<String, PlannedFile> entries = new LinkedHashMap<>();
+    // Date of the files in the image
+    private final long creationTime;
+    private volatile boolean readOptimized;
+
+    public IsoLayout(File workingDir, boolean copySources) {
+        this(workingDir, copySources, System.currentTimeMillis());
+    }
+
+    /**
+     * @param creationTime
+     *            the date of the files in the image, in milliseconds
+     */
+    public IsoLayout(File workingDir, boolean copySources, long creationTime) {
+        if (workingDir == null) {
+            throw new IllegalArgumentException("Working directory cannot be null"); //$NON-NLS-1$
+        }
+        this.workingDir = workingDir;
+        this.copySources = copySources;
+        this.creationTime = creationTime;
+    }
+
+    public File getWorkingDir() {
+        return workingDir;
+    }
+
+    public boolean isCopySources() {
+        return copySources;
+    }
+
+    public boolean isReadOptimized() {
+        return readOptimized;
+    }
+
+    /**
+     * @param readOptimized
+     *            true to add the DICOMDIR and the files of the root (viewer launchers) first, then the DICOM files
+     *            sorted by series folder and by name. Only the UDF image follows the order of {@link #getFiles()}, the
+     *            ISO 9660 writer orders the extents itself.
+     */
+    public void setReadOptimized(boolean readOptimized) {
+        this.readOptimized = readOptimized;
+    }
+
+    /**
+     * @param path
+     *            the relative path in the image (with the system file separator)
+     * @return the location of the path in the working directory
+     */
+    public File getFile(String path) {
+        return new File(workingDir, path);
+    }
+
+    /**
+     * Add a media to the image at the location of destinationFile.
+     * <p>
+     * The original file of the cache is referenced or transferred as is, without parsing the DICOM file, only when it
+     * has the same content as the element (see {@link #isOriginalContent(MediaElement, File)}). Otherwise, e.g. when
+     * the element is read from a transformed copy or when its attributes have been edited, the media is serialized
+     * with {@link MediaElement#saveToFile(File)}.
+     *
+     * @return true if the media has been written or referenced
+     */
+    public boolean addMedia(MediaElement media, File destinationFile) {
+        File source = getSourceFile(media);
+        if (isOriginalContent(media, source)) {
+            if (!copySources) {
+                addReference(destinationFile, source);
+                return true;
+            }
+            long size = transferFile(source, destinationFile);
+            if (size >= 0) {
+                put(destinationFile, destinationFile, size);
+                return true;
+            }
+        }
+        if (media.saveToFile(destinationFile)) {
+            addGenerated(destinationFile);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reference a file at the location of destinationFile without copying it. In staging mode, the file is linked or
+     * copied in the working directory.
+     */
+    public void addReference(File destinationFile, File source) {
+        if (copySources) {
+            long size = transferFile(source, destinationFile);
+            if (size >= 0) {
+                put(destinationFile, destinationFile, size);
+            }
+        } else {
+            put(destinationFile, source, -1L);
+        }
+    }
+
+    /**
+     * Register a file written in the working directory. The size is read when building the image, so the file can be
+     * registered before being written.
+     */
+    public void addGenerated(File file) {
+        put(file, file, -1L);
+    }
+
+    private synchronized void put(File destinationFile, File source, long size) {
+        entries.put(getRelativePath(destinationFile), new PlannedFile(source, size));
+    }
+
+    /**
+     * Register all the files of a directory at the location of targetPath, without copying them.
+     */
+    public synchronized void addTree(File dir, String targetPath) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String path = targetPath == null || targetPath.isEmpty() ? file.getName()
+                    : targetPath + File.separator + file.getName();
+                if (file.isDirectory()) {
+                    addTree(file, path);
+                } else {
+                    entries.put(path.replace(File.separatorChar, '/'), new PlannedFile(file, file.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Register the files of a directory whose sizes are already known at the location of targetPath, without copying
+     * or listing them.
+     *
+     * @param files
+     *            the size of each file by path relative to dir (with '/' as separator)
+     */
+    public synchronized void addTree(File dir, Map<String, Long> files, String targetPath) {
+        String prefix = targetPath == null || targetPath.isEmpty() ? "" //$NON-NLS-1$
+            : targetPath.replace(File.separatorChar, '/') + "/"; //$NON-NLS-1$
+        for (Entry<String, Long> file : files.entrySet()) {
+            entries.put(prefix + file.getKey(), new PlannedFile(new File(dir, file.getKey()), file.getValue()));
+        }
+    }
+
+    /**
+     * Build the directory tree of the image from the plan.
+     */
+    public ISO9660RootDirectory buildRootDirectory() throws HandlerException {
+        ISO9660RootDirectory root = new ISO9660RootDirectory();
+        Map<String, ISO9660Directory> dirs = new HashMap<>();
+        for (Entry<String, DataReference> entry : getFiles()) {
+            String path = entry.getKey();
+            int index = path.lastIndexOf('/');
+            ISO9660Directory parent = index < 0 ? root : getDirectory(root, dirs, path.substring(0, index));
+            parent.addFile(new ISO9660File(entry.getValue(), path.substring(index + 1), creationTime));
+        }
+        return root;
+    }
+
+    /**
+     * @return the files of the plan in the order of the image, by path in the image (with '/' as separator)
+     */
+    public synchronized List<Entry<String, DataReference>> getFiles() {
+        List<Entry<String, DataReference>> list = new ArrayList<>(entries.size());
+        for (Entry<String, PlannedFile> entry : entries.entrySet()) {
+            list.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        }
+        if (readOptimized) {
+            list.sort(Comparator.comparingInt((Entry<String, DataReference> e) -> getReadRank(e.getKey()))
+                .thenComparing(Entry::getKey));
+        }
+        return list;
+    }
+
+    /**
+     * @return the date of the files in the image, in milliseconds
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public void dispose() {
+        FileUtil.recursiveDelete(workingDir);
+    }
+
+    private String getRelativePath(File file) {
+        return workingDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static int getReadRank(String path) {
+        if ("DICOMDIR".equals(path)) { //$NON-NLS-1$
+            return 0;
+        }
+        if (path.indexOf('/') < 0) {
+            // Launchers of the viewer
+            return 1;
+        }
+        return path.startsWith("DICOM/") ? 2 : 3; //$NON-NLS-1$
+    }
+
+    /**
+     * Make the files of the image having the same content share the content of the first one, so the UDF image writes
+     * it once (see {@link UdfImageWriter}). The files are compared by size, then by a hash of their first bytes and
+     * finally by a hash of their whole content, so only the candidates are read.
+     * <p>
+     * The ISO 9660 writer of java-iso-tools allocates one extent for each file: the identical files are still written
+     * several times and are only measured.
+     *
+     * @param cancelled
+     *            indicates when the search must be stopped
+     * @return the size in bytes of the files whose content is identical to another file of the image, -1 when
+     *         cancelled
+     */
+    public long deduplicate(BooleanSupplier cancelled) {
+        Map<Long, List<Entry<String, PlannedFile>>> sizes = new HashMap<>();
+        synchronized (this) {
+            for (Entry<String, PlannedFile> entry : entries.entrySet()) {
+                long length = entry.getValue().getLength();
+                if (length > 0) {
+                    sizes.computeIfAbsent(length, k -> new ArrayList<>()).add(entry);
+                }
+            }
+        }
+        // Path in the image => content of the first file having the same content
+        Map<String, PlannedFile> duplicates = new HashMap<>();
+        long duplicateSize = 0L;
+        for (List<Entry<String, PlannedFile>> sameSize : sizes.values()) {
+            if (sameSize.size() < 2) {
+                continue;
+            }
+            Map<String, List<Entry<String, PlannedFile>>> heads = new HashMap<>();
+            for (Entry<String, PlannedFile> entry : sameSize) {
+                if (cancelled.getAsBoolean()) {
+                    return -1L;
+                }
+                heads.computeIfAbsent(entry.getValue().getDigest(HEAD_SIZE), k -> new ArrayList<>()).add(entry);
+            }
+            for (List<Entry<String, PlannedFile>> sameHead : heads.values()) {
+                if (sameHead.size() < 2) {
+                    continue;
+                }
+                Map<String, PlannedFile> digests = new HashMap<>();
+                for (Entry<String, PlannedFile> entry : sameHead) {
+                    if (cancelled.getAsBoolean()) {
+                        return -1L;
+                    }
+                    PlannedFile file = entry.getValue();
+                    PlannedFile first = digests.putIfAbsent(file.getDigest(Long.MAX_VALUE), file);
+                    if (first != null) {
+                        duplicates.put(entry.getKey(), first);
+                        duplicateSize += file.getLength();
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            entries.putAll(duplicates);
+        }
+        return duplicateSize;
+    }
+
+    private static ISO9660Directory getDirectory(ISO9660RootDirectory root, Map<String, ISO9660Directory> dirs,
+        String path) {
+        ISO9660Directory dir = dirs.get(path);
+        if (dir == null) {
+            int index = path.lastIndexOf('/');
+            ISO9660Directory parent = index < 0 ? root : getDirectory(root, dirs, path.substring(0, index));
+            dir = parent.addDirectory(path.substring(index + 1));
+            dirs.put(path, dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Copy a file in the working directory. A hard link is created when the source is on the same file system,
+     * otherwise the bytes are transferred between the channels without going through the heap.
+     *
+     * @return the size of the file or -1 if the file cannot be copied
+     */
+    static long transferFile(File source, File destination) {
+        Path src = source.toPath();
+        Path dst = destination.toPath();
+        try {
+            Files.deleteIfExists(dst);
+            if (Files.getFileStore(src).equals(Files.getFileStore(dst.getParent()))) {
+                try {
+                    Files.createLink(dst, src);
+                    return Files.size(dst);
+                } catch (UnsupportedOperationException | IOException e) {
+                    LOGGER.debug("Cannot create a link to {}, copy the file", source, e); //$NON-NLS-1$
+                }
+            }
+            try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                return size;
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot copy {} to {}", source, destination, e); //$NON-NLS-1$
+            return -1L;
+        }
+    }
+
+    /**
+     * @return true when the original file can be exported instead of the element: the file is readable, the element is
+     *         not read from a transformed copy of the cache, and the identifiers of the element are those of the
+     *         header read from the file
+     */
+    static boolean isOriginalContent(MediaElement media, File source) {
+        if (source == null || !source.canRead()) {
+            return false;
+        }
+        FileCache cache = media.getFileCache();
+        if (cache.isRequireTransformation() || cache.getTransformedFile() != null) {
+            return false;
+        }
+        MediaReader reader = media.getMediaReader();
+        if (reader instanceof DcmMediaReader) {
+            Attributes header = ((DcmMediaReader) reader).getDicomObject();
+            if (header == null) {
+                return false;
+            }
+            for (int tag : IDENTIFIERS) {
+                // Edited in memory, the file has the previous value
+                if (header.containsValue(tag)
+                    && !header.getString(tag).equals(TagD.getTagValue(media, tag, String.class))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static File getSourceFile(MediaElement media) {
+        if (media != null && media.getFileCache() != null) {
+            return media.getFileCache().getOriginalFile().orElse(null);
+        }
+        return null;
+    }
+
+    /**
+     * Content of a file of the image. The size is known when the file has been copied, otherwise it is read once
+     * when building the image.
+     */
+    private static class PlannedFile implements DataReference {
+        private final File source;
+        private long size;
+
+        PlannedFile(File source, long size) {
+            this.source = source;
+            this.size = size;
+        }
+
+        @Override
+        public long getLength() {
+            if (size < 0) {
+                size = source.length();
+            }
+            return size;
+        }
+
+        @Override
+        public InputStream createInputStream() throws IOException {
+            return new FileInputStream(source);
+        }
+
+        /**
+         * @return the hash of the first bytes of the file, or an unique value if the file cannot be read
+         */
+        String getDigest(long maxLength) {
+            try (InputStream in = createInputStream()) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+                byte[] buffer = new byte[8192];
+                long remaining = maxLength;
+                int read;
+                while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                    digest.update(buffer, 0, read);
+                    remaining -= read;
+                }
+                return Base64.getEncoder().encodeToString(digest.digest());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                LOGGER.warn("Cannot compute the hash of {}", source, e); //$NON-NLS-1$
+                return source.getPath();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+/**
+ * Target media of the images. The capacities are the number of 2048-byte sectors available for the data.
+ */
+public enum MediumType {
+    NONE("Single image", 0L),
+
+    CD("CD 700 MB", 360_000L * 2048L),
+
+    DVD("DVD 4.7 GB", 2_295_104L * 2048L),
+
+    DVD_DL("DVD DL 8.5 GB", 4_171_712L * 2048L),
+
+    BD("BD 25 GB", 12_219_392L * 2048L),
+
+    BD_DL("BD DL 50 GB", 24_438_784L * 2048L),
+
+    CUSTOM("Custom size", 0L);
+
+    private final String title;
+    private final long capacity;
+
+    private MediumType(String title, long capacity) {
+        this.title = title;
+        this.capacity = capacity;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the capacity in bytes, 0 when not defined (no limit or custom size)
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+
+    public static MediumType getMediumType(String name) {
+        if (name != null) {
+            try {
+                return MediumType.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                // Do nothing
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import org.dcm4che3.data.Tag;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.dicom.codec.TagD;
+
+/**
+ * Limits the amount of memory used by the images decoded at the same time. A request larger than the whole budget is
+ * accepted when nothing else is in progress.
+ */
+final class MemoryBudget {
+
+    private final long capacity;
+    private long used;
+
+    MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive"); //$NON-NLS-1$
+        }
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        long request = Math.min(bytes, capacity);
+        while (used + request > capacity) {
+            wait();
+        }
+        used += request;
+    }
+
+    public synchronized void release(long bytes) {
+        used -= Math.min(bytes, capacity);
+        notifyAll();
+    }
+
+    /**
+     * Estimate from the DICOM attributes the memory required to decode and render one frame, without reading the
+     * pixel data.
+     */
+    public static long estimateDecodedSize(MediaElement img) {
+        Integer rows = TagD.getTagValue(img, Tag.Rows, Integer.class);
+        Integer columns = TagD.getTagValue(img, Tag.Columns, Integer.class);
+        if (rows == null || columns == null) {
+            // Unknown size, assume a 2048x2048 16-bit image
+            return 2048L * 2048L * 3L;
+        }
+        Integer samples = TagD.getTagValue(img, Tag.SamplesPerPixel, Integer.class);
+        Integer bitsAllocated = TagD.getTagValue(img, Tag.BitsAllocated, Integer.class);
+        long pixels = (long) rows * columns * (samples == null ? 1 : samples);
+        long bytesPerSample = bitsAllocated == null ? 2 : (bitsAllocated + 7) / 8;
+        // Decoded raster + rendered 8-bit image
+        return pixels * (bytesPerSample + 1);
+    }
+}
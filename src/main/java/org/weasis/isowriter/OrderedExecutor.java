@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes jobs on a bounded pool of workers and hands over their results to the calling thread in the order of
+ * submission. With only one thread, the jobs are executed directly by the calling thread.
+ */
+class OrderedExecutor<T> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OrderedExecutor.class);
+
+    @FunctionalInterface
+    interface Job<T> {
+        T call() throws IOException;
+    }
+
+    @FunctionalInterface
+    interface ResultHandler<T> {
+        void handle(T result) throws IOException;
+    }
+
+    private final ExecutorService executor;
+    private final Deque<Future<T>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private final ResultHandler<T> handler;
+
+    OrderedExecutor(String name, int threads, ResultHandler<T> handler) {
+        this.handler = Objects.requireNonNull(handler);
+        if (threads > 1) {
+            AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet()); //$NON-NLS-1$
+                t.setDaemon(true);
+                return t;
+            });
+            // Limit the number of results waiting for the consumer
+            this.maxPending = threads * 4;
+        } else {
+            this.executor = null;
+            this.maxPending = 0;
+        }
+    }
+
+    void submit(Job<T> job) throws IOException, InterruptedException {
+        if (executor == null) {
+            handler.handle(job.call());
+        } else {
+            pending.add(executor.submit(job::call));
+            while (pending.size() > maxPending) {
+                consume(pending.poll());
+            }
+        }
+    }
+
+    /**
+     * Wait for all the submitted jobs and consume their results.
+     */
+    void finish() throws IOException, InterruptedException {
+        while (!pending.isEmpty()) {
+            consume(pending.poll());
+        }
+    }
+
+    private void consume(Future<T> future) throws IOException, InterruptedException {
+        T result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        handler.handle(result);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            for (Future<T> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            executor.shutdownNow();
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    LOGGER.warn("Export workers are still running"); //$NON-NLS-1$
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+
+/**
+ * Merges the presentation states of the images of a series into a single Grayscale Softcopy Presentation State
+ * referencing all the images.
+ * <p>
+ * The items of the annotations, of the displayed areas and of the VOI LUTs reference the image they come from, so
+ * they are applied only to this image. The spatial transformation and the presentation LUT of a presentation state
+ * apply to all its images: they are taken from the first presentation state.
+ */
+final class PresentationStateMerger {
+
+    // Sequences whose items can be restricted to some of the referenced images
+    private static final int[] IMAGE_SEQUENCES =
+        { Tag.GraphicAnnotationSequence, Tag.DisplayedAreaSelectionSequence, Tag.SoftcopyVOILUTSequence };
+
+    private PresentationStateMerger() {
+    }
+
+    /**
+     * @param presentations
+     *            the presentation states of single images, written with the same SOP Instance UID and the same series
+     * @return the merged presentation state, null when the list is empty
+     */
+    static Attributes merge(List<Attributes> presentations) {
+        if (presentations == null || presentations.isEmpty()) {
+            return null;
+        }
+        Attributes merged = new Attributes(presentations.get(0));
+        // SeriesInstanceUID => referenced images
+        Map<String, List<Attributes>> series = new LinkedHashMap<>();
+        Set<String> images = new HashSet<>();
+        Map<String, Attributes> layers = new LinkedHashMap<>();
+        List<List<Attributes>> items = new ArrayList<>();
+        for (int i = 0; i < IMAGE_SEQUENCES.length; i++) {
+            items.add(new ArrayList<>());
+        }
+
+        for (Attributes pr : presentations) {
+            List<Attributes> prImages = new ArrayList<>();
+            Sequence seriesSeq = pr.getSequence(Tag.ReferencedSeriesSequence);
+            if (seriesSeq != null) {
+                for (Attributes seriesItem : seriesSeq) {
+                    String seriesUID = seriesItem.getString(Tag.SeriesInstanceUID);
+                    List<Attributes> refs = series.computeIfAbsent(seriesUID, k -> new ArrayList<>());
+                    Sequence imageSeq = seriesItem.getSequence(Tag.ReferencedImageSequence);
+                    if (imageSeq != null) {
+                        for (Attributes image : imageSeq) {
+                            prImages.add(image);
+                            if (images.add(getImageKey(image))) {
+                                refs.add(image);
+                            }
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < IMAGE_SEQUENCES.length; i++) {
+                Sequence seq = pr.getSequence(IMAGE_SEQUENCES[i]);
+                if (seq != null) {
+                    for (Attributes item : seq) {
+                        Attributes copy = new Attributes(item);
+                        if (!copy.contains(Tag.ReferencedImageSequence)) {
+                            addReferences(copy.newSequence(Tag.ReferencedImageSequence, prImages.size()), prImages);
+                        }
+                        items.get(i).add(copy);
+                    }
+                }
+            }
+            Sequence layerSeq = pr.getSequence(Tag.GraphicLayerSequence);
+            if (layerSeq != null) {
+                for (Attributes layer : layerSeq) {
+                    layers.putIfAbsent(layer.getString(Tag.GraphicLayer, ""), layer); //$NON-NLS-1$
+                }
+            }
+        }
+
+        Sequence seriesSeq = merged.newSequence(Tag.ReferencedSeriesSequence, series.size());
+        for (Map.Entry<String, List<Attributes>> entry : series.entrySet()) {
+            Attributes seriesItem = new Attributes(2);
+            addReferences(seriesItem.newSequence(Tag.ReferencedImageSequence, entry.getValue().size()),
+                entry.getValue());
+            seriesItem.setString(Tag.SeriesInstanceUID, VR.UI, entry.getKey());
+            seriesSeq.add(seriesItem);
+        }
+        for (int i = 0; i < IMAGE_SEQUENCES.length; i++) {
+            List<Attributes> list = items.get(i);
+            if (!list.isEmpty()) {
+                merged.newSequence(IMAGE_SEQUENCES[i], list.size()).addAll(list);
+            }
+        }
+        if (!layers.isEmpty()) {
+            addReferences(merged.newSequence(Tag.GraphicLayerSequence, layers.size()), layers.values());
+        }
+        return merged;
+    }
+
+    private static String getImageKey(Attributes image) {
+        return image.getString(Tag.ReferencedSOPInstanceUID, "") + "/" //$NON-NLS-1$ //$NON-NLS-2$
+            + image.getString(Tag.ReferencedFrameNumber, ""); //$NON-NLS-1$
+    }
+
+    private static void addReferences(Sequence seq, Iterable<Attributes> items) {
+        for (Attributes item : items) {
+            seq.add(new Attributes(item));
+        }
+    }
+}
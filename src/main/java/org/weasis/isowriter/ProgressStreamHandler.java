@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.util.function.BooleanSupplier;
+
+import com.github.stephenc.javaisotools.sabre.DataReference;
+import com.github.stephenc.javaisotools.sabre.Element;
+import com.github.stephenc.javaisotools.sabre.Fixup;
+import com.github.stephenc.javaisotools.sabre.HandlerException;
+import com.github.stephenc.javaisotools.sabre.StreamHandler;
+
+/**
+ * Delegates the writing of the image and counts the bytes written for the progress. The writing is stopped when the
+ * export is cancelled.
+ */
+class ProgressStreamHandler implements StreamHandler {
+
+    private final StreamHandler delegate;
+    private final ExportProgress progress;
+    private final BooleanSupplier cancelled;
+
+    ProgressStreamHandler(StreamHandler delegate, ExportProgress progress, BooleanSupplier cancelled) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Stream handler cannot be null"); //$NON-NLS-1$
+        }
+        this.delegate = delegate;
+        this.progress = progress;
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public void startDocument() throws HandlerException {
+        delegate.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws HandlerException {
+        delegate.endDocument();
+    }
+
+    @Override
+    public void startElement(Element element) throws HandlerException {
+        delegate.startElement(element);
+    }
+
+    @Override
+    public void endElement() throws HandlerException {
+        delegate.endElement();
+    }
+
+    @Override
+    public void data(DataReference reference) throws HandlerException {
+        if (cancelled != null && cancelled.getAsBoolean()) {
+            throw new HandlerException("The export has been cancelled"); //$NON-NLS-1$
+        }
+        delegate.data(reference);
+        if (progress != null) {
+            progress.add(ExportProgress.Stage.MASTERING, 0L, reference.getLength());
+        }
+    }
+
+    @Override
+    public Fixup fixup(DataReference reference) throws HandlerException {
+        Fixup fixup = delegate.fixup(reference);
+        if (progress != null) {
+            progress.add(ExportProgress.Stage.MASTERING, 0L, reference.getLength());
+        }
+        return fixup;
+    }
+
+    @Override
+    public long mark() throws HandlerException {
+        return delegate.mark();
+    }
+}
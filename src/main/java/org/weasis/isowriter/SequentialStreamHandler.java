@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.stephenc.javaisotools.sabre.DataReference;
+import com.github.stephenc.javaisotools.sabre.Element;
+import com.github.stephenc.javaisotools.sabre.Fixup;
+import com.github.stephenc.javaisotools.sabre.HandlerException;
+import com.github.stephenc.javaisotools.sabre.StreamHandler;
+
+/**
+ * Writes the ISO image sequentially in a channel which cannot seek, e.g. a pipe, a process or a network stream.
+ * <p>
+ * The image is produced in two passes over the same directory hierarchy. The first pass only computes the layout: the
+ * files are not read and the content of the back-references (fixups) is kept in memory. The second pass writes the
+ * data, the fixups being replaced by their final content, so the output is never written backwards. The memory used
+ * is the size of the fixups (descriptors, path tables and directory records) plus one buffer.
+ */
+class SequentialStreamHandler implements StreamHandler {
+
+    private final WritableByteChannel output;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(ChannelStreamHandler.BUFFER_SIZE);
+    // Final content of the fixups, in the order of creation
+    private final List<byte[]> fixups = new ArrayList<>();
+    private boolean writing;
+    private int nextFixup;
+    private long position;
+
+    SequentialStreamHandler(WritableByteChannel output) {
+        if (output == null) {
+            throw new IllegalArgumentException("Output channel cannot be null"); //$NON-NLS-1$
+        }
+        this.output = output;
+    }
+
+    /**
+     * Start the second pass, which writes the image.
+     */
+    void startWriting() {
+        writing = true;
+        nextFixup = 0;
+        position = 0L;
+        buffer.clear();
+    }
+
+    /**
+     * @return the size in bytes of the image
+     */
+    long getSize() {
+        return position;
+    }
+
+    @Override
+    public void startDocument() throws HandlerException {
+        // Nothing to do
+    }
+
+    @Override
+    public void endDocument() throws HandlerException {
+        if (writing) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new HandlerException(e);
+            }
+        }
+    }
+
+    @Override
+    public void startElement(Element element) throws HandlerException {
+        // Nothing to do
+    }
+
+    @Override
+    public void endElement() throws HandlerException {
+        // Nothing to do
+    }
+
+    @Override
+    public void data(DataReference reference) throws HandlerException {
+        long length = reference.getLength();
+        if (writing) {
+            try (InputStream in = reference.createInputStream(); ReadableByteChannel source = Channels.newChannel(in)) {
+                long remaining = length;
+                while (remaining > 0) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    int limit = buffer.limit();
+                    if (buffer.remaining() > remaining) {
+                        buffer.limit(buffer.position() + (int) remaining);
+                    }
+                    int read = source.read(buffer);
+                    buffer.limit(limit);
+                    if (read < 0) {
+                        throw new HandlerException("Unexpected end of data, missing " + remaining + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                    remaining -= read;
+                }
+            } catch (IOException e) {
+                throw new HandlerException(e);
+            }
+        }
+        position += length;
+    }
+
+    @Override
+    public Fixup fixup(DataReference reference) throws HandlerException {
+        int length = (int) reference.getLength();
+        if (!writing) {
+            byte[] content = new byte[length];
+            read(reference, content, 0);
+            fixups.add(content);
+            position += length;
+            return new MemoryFixup(content);
+        }
+        if (nextFixup >= fixups.size() || fixups.get(nextFixup).length != length) {
+            throw new HandlerException("The layout of the image has changed between the two passes"); //$NON-NLS-1$
+        }
+        byte[] content = fixups.get(nextFixup++);
+        try {
+            put(content);
+        } catch (IOException e) {
+            throw new HandlerException(e);
+        }
+        position += length;
+        // The content is already final
+        return new MemoryFixup(null);
+    }
+
+    @Override
+    public long mark() throws HandlerException {
+        return position;
+    }
+
+    private void put(byte[] content) throws IOException {
+        int offset = 0;
+        while (offset < content.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), content.length - offset);
+            buffer.put(content, offset, length);
+            offset += length;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int read(DataReference reference, byte[] content, int offset) throws HandlerException {
+        try (InputStream in = reference.createInputStream()) {
+            int length = (int) Math.min(reference.getLength(), content.length - (long) offset);
+            int total = 0;
+            while (total < length) {
+                int read = in.read(content, offset + total, length - total);
+                if (read < 0) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        } catch (IOException e) {
+            throw new HandlerException(e);
+        }
+    }
+
+    /**
+     * Fixup patched in memory during the first pass, ignored during the second pass.
+     */
+    private static class MemoryFixup implements Fixup {
+        private final byte[] content;
+        private int offset;
+
+        MemoryFixup(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public void data(DataReference reference) throws HandlerException {
+            if (content == null) {
+                return;
+            }
+            if (reference.getLength() > content.length - offset) {
+                throw new HandlerException("Fixup of " + (content.length - offset) + " bytes is too small for " //$NON-NLS-1$ //$NON-NLS-2$
+                    + reference.getLength());
+            }
+            offset += read(reference, content, offset);
+        }
+
+        @Override
+        public void close() throws HandlerException {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.media.data.MediaSeries;
+import org.weasis.core.api.media.data.TagW;
+import org.weasis.core.api.media.data.Thumbnail;
+import org.weasis.dicom.codec.DicomImageElement;
+import org.weasis.dicom.codec.TagD;
+
+/**
+ * Icons of the DICOMDIR series records, kept for the session by SeriesInstanceUID.
+ * <p>
+ * A new icon is built from the thumbnail of the series displayed by Weasis when it is large enough, otherwise by
+ * decoding the middle image. Exporting again the same series does not decode any pixel data for its icon.
+ */
+final class SeriesIconCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeriesIconCache.class);
+
+    // An icon has 128x128 pixels at most, about 17 KB with the palette
+    private static final int MAX_ENTRIES = 500;
+    private static final int ICON_SIZE = 128;
+
+    private static final Map<String, Attributes> ICONS = new LinkedHashMap<String, Attributes>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Attributes> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private SeriesIconCache() {
+    }
+
+    /**
+     * @return the identifier of the series in the cache, null when the series cannot be cached
+     */
+    static String getKey(MediaSeries<?> series) {
+        return series == null ? null : TagD.getTagValue(series, Tag.SeriesInstanceUID, String.class);
+    }
+
+    /**
+     * @return a copy of the icon of the series, or null when it is not in the cache
+     */
+    static Attributes get(String seriesUID) {
+        if (seriesUID == null) {
+            return null;
+        }
+        Attributes icon;
+        synchronized (ICONS) {
+            icon = ICONS.get(seriesUID);
+        }
+        // The item is added to the sequence of a DICOMDIR record, which becomes its parent
+        return icon == null ? null : new Attributes(icon);
+    }
+
+    static void put(String seriesUID, Attributes icon) {
+        if (seriesUID != null && icon != null) {
+            synchronized (ICONS) {
+                ICONS.put(seriesUID, new Attributes(icon));
+            }
+        }
+    }
+
+    /**
+     * Build the icon from the thumbnail of the series, without decoding the image.
+     *
+     * @param image
+     *            the image from which the thumbnail has been built
+     * @return the icon or null when the thumbnail is not available or too small
+     */
+    static Attributes fromThumbnail(MediaSeries<?> series, DicomImageElement image) {
+        Object thumbnail = series == null ? null : series.getTagValue(TagW.Thumbnail);
+        File file = thumbnail instanceof Thumbnail ? ((Thumbnail) thumbnail).getThumbnailPath() : null;
+        if (image == null || file == null || !file.canRead()) {
+            return null;
+        }
+        try {
+            BufferedImage img = ImageIO.read(file);
+            if (img != null && Math.max(img.getWidth(), img.getHeight()) >= ICON_SIZE) {
+                return IsoExporter.mkIconItem(image, img);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read the thumbnail {}", file, e); //$NON-NLS-1$
+        }
+        return null;
+    }
+}
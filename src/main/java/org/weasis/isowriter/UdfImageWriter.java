@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+import com.github.stephenc.javaisotools.sabre.DataReference;
+import com.github.stephenc.javaisotools.sabre.HandlerException;
+import com.github.stephenc.javaisotools.sabre.StreamHandler;
+
+/**
+ * Writes the files of a layout in a UDF 1.02 image (ECMA-167 and OSTA UDF 1.02), which has no limit on the size of the
+ * files unlike the level 1 of ISO 9660.
+ * <p>
+ * The whole layout is computed before writing, so the image is written sequentially in a single pass through the same
+ * stream handlers as the ISO 9660 images. The image is read-only and has one partition: the volume recognition
+ * sequence, the main and reserve volume descriptor sequences, the integrity sequence and the first anchor are before
+ * the partition, which contains the file set, the directories and the files. The last sector is the second anchor.
+ * There is no ISO 9660 file system in the image.
+ * <p>
+ * The files having the same data reference (see {@link IsoLayout#deduplicate(java.util.function.BooleanSupplier)})
+ * have their own file entry, which points to a single extent written once.
+ */
+final class UdfImageWriter {
+
+    private static final int SECTOR_SIZE = ChannelStreamHandler.SECTOR_SIZE;
+    private static final int VRS_SECTOR = 16;
+    private static final int MAIN_VDS_SECTOR = 32;
+    private static final int RESERVE_VDS_SECTOR = 48;
+    // PVD, IUVD, PD, LVD, USD and TD
+    private static final int VDS_LENGTH = 6;
+    private static final int INTEGRITY_SECTOR = 64;
+    private static final int ANCHOR_SECTOR = 256;
+    private static final int PARTITION_SECTOR = 257;
+
+    private static final int TAG_PVD = 1;
+    private static final int TAG_AVDP = 2;
+    private static final int TAG_IUVD = 4;
+    private static final int TAG_PD = 5;
+    private static final int TAG_LVD = 6;
+    private static final int TAG_USD = 7;
+    private static final int TAG_TD = 8;
+    private static final int TAG_LVID = 9;
+    private static final int TAG_FSD = 256;
+    private static final int TAG_FID = 257;
+    private static final int TAG_FE = 261;
+
+    private static final int UDF_REVISION = 0x0102;
+    private static final byte[] UDF_SUFFIX = { 0x02, 0x01 };
+    private static final String DOMAIN_ID = "*OSTA UDF Compliant"; //$NON-NLS-1$
+    private static final String IMPLEMENTATION_ID = "*Weasis"; //$NON-NLS-1$
+    private static final String CHARSET = "OSTA Compressed Unicode"; //$NON-NLS-1$
+    // Read and execute for the owner, the group and the others
+    private static final int PERMISSIONS = 5 | 5 << 5 | 5 << 10;
+
+    // Largest extent of a short allocation descriptor, a multiple of the sector size below 2^30
+    private static final long MAX_EXTENT = 0x3FFFF800L;
+    private static final int FE_HEADER_SIZE = 176;
+    // Allocation descriptors in the sector of a file entry, about 250 GB for a file
+    private static final int MAX_EXTENTS = (SECTOR_SIZE - FE_HEADER_SIZE) / 8;
+    // The unique IDs 1 to 15 are reserved
+    private static final long FIRST_UNIQUE_ID = 16L;
+
+    private final Node root = new Node(null, null, null);
+    private final List<Node> directories = new ArrayList<>();
+    private final List<Node> files = new ArrayList<>();
+    private final String volumeId;
+    private final String volumeSetId;
+    private final byte[] timestamp;
+    private long partitionLength;
+    private long nextUniqueId;
+
+    /**
+     * @param entries
+     *            the files by path in the image (with '/' as separator), see {@link IsoLayout#getFiles()}
+     * @param time
+     *            the date of the files in milliseconds
+     */
+    UdfImageWriter(List<Entry<String, DataReference>> entries, String volumeId, long time) {
+        this.volumeId = volumeId;
+        // The first 16 characters must be unique (UDF 2.2.2.5)
+        this.volumeSetId = String.format("%016X", time) + volumeId; //$NON-NLS-1$
+        this.timestamp = getTimestamp(time);
+        directories.add(root);
+        Map<String, Node> dirs = new HashMap<>();
+        for (Entry<String, DataReference> entry : entries) {
+            String path = entry.getKey();
+            int index = path.lastIndexOf('/');
+            Node parent = index < 0 ? root : getDirectory(dirs, path.substring(0, index));
+            Node file = new Node(parent, path.substring(index + 1), entry.getValue());
+            parent.children.add(file);
+            files.add(file);
+        }
+    }
+
+    private Node getDirectory(Map<String, Node> dirs, String path) {
+        Node dir = dirs.get(path);
+        if (dir == null) {
+            int index = path.lastIndexOf('/');
+            Node parent = index < 0 ? root : getDirectory(dirs, path.substring(0, index));
+            dir = new Node(parent, path.substring(index + 1), null);
+            parent.children.add(dir);
+            directories.add(dir);
+            dirs.put(path, dir);
+        }
+        return dir;
+    }
+
+    void write(StreamHandler handler) throws HandlerException {
+        layout();
+        handler.startDocument();
+        zeros(handler, VRS_SECTOR * (long) SECTOR_SIZE);
+        handler.data(new BytesReference(getVolumeStructure("BEA01"))); //$NON-NLS-1$
+        handler.data(new BytesReference(getVolumeStructure("NSR02"))); //$NON-NLS-1$
+        handler.data(new BytesReference(getVolumeStructure("TEA01"))); //$NON-NLS-1$
+        zeros(handler, (MAIN_VDS_SECTOR - VRS_SECTOR - 3L) * SECTOR_SIZE);
+        writeVolumeDescriptors(handler, MAIN_VDS_SECTOR);
+        zeros(handler, (RESERVE_VDS_SECTOR - MAIN_VDS_SECTOR - VDS_LENGTH) * (long) SECTOR_SIZE);
+        writeVolumeDescriptors(handler, RESERVE_VDS_SECTOR);
+        zeros(handler, (INTEGRITY_SECTOR - RESERVE_VDS_SECTOR - VDS_LENGTH) * (long) SECTOR_SIZE);
+        handler.data(new BytesReference(getIntegrityDescriptor(INTEGRITY_SECTOR)));
+        handler.data(new BytesReference(getTerminatingDescriptor(INTEGRITY_SECTOR + 1L)));
+        zeros(handler, (ANCHOR_SECTOR - INTEGRITY_SECTOR - 2L) * SECTOR_SIZE);
+        handler.data(new BytesReference(getAnchor(ANCHOR_SECTOR)));
+
+        // Partition, the locations are relative to its first sector
+        handler.data(new BytesReference(getFileSetDescriptor()));
+        handler.data(new BytesReference(getTerminatingDescriptor(1L)));
+        for (Node dir : directories) {
+            handler.data(new BytesReference(getFileEntry(dir)));
+            handler.data(new BytesReference(getDirectoryData(dir)));
+        }
+        for (Node file : files) {
+            handler.data(new BytesReference(getFileEntry(file)));
+            if (file.length > 0 && !file.shared) {
+                handler.data(file.data);
+                zeros(handler, getSectors(file.length) * SECTOR_SIZE - file.length);
+            }
+        }
+        handler.data(new BytesReference(getAnchor(PARTITION_SECTOR + partitionLength)));
+        handler.endDocument();
+    }
+
+    /**
+     * Allocate the blocks of the partition: the file entry and the data of each directory, then the file entry and
+     * the data of each file in the order of the layout. The data of a file is allocated only for the first file of
+     * its data reference.
+     */
+    private void layout() throws HandlerException {
+        // File set descriptor and its terminating descriptor
+        long block = 2L;
+        long uniqueId = FIRST_UNIQUE_ID;
+        for (Node dir : directories) {
+            dir.icb = block++;
+            dir.uniqueId = dir == root ? 0L : uniqueId++;
+            // Parent directory
+            dir.length = getFidLength(0);
+            for (Node child : dir.children) {
+                if (child.identifier.length > 255) {
+                    throw new HandlerException("File name too long: " + child.name); //$NON-NLS-1$
+                }
+                dir.length += getFidLength(child.identifier.length);
+            }
+            dir.extent = block;
+            block += getSectors(dir.length);
+        }
+        Map<DataReference, Node> extents = new IdentityHashMap<>();
+        for (Node file : files) {
+            file.icb = block++;
+            file.uniqueId = uniqueId++;
+            file.length = file.data.getLength();
+            if (file.length > MAX_EXTENTS * MAX_EXTENT) {
+                throw new HandlerException("File too large for UDF: " + file.name); //$NON-NLS-1$
+            }
+            Node first = file.length > 0 ? extents.putIfAbsent(file.data, file) : null;
+            if (first == null) {
+                file.extent = block;
+                block += getSectors(file.length);
+            } else {
+                file.extent = first.extent;
+                file.shared = true;
+            }
+        }
+        if (PARTITION_SECTOR + block + 1 > 0xFFFFFFFFL) {
+            throw new HandlerException("The image is too large"); //$NON-NLS-1$
+        }
+        partitionLength = block;
+        nextUniqueId = uniqueId;
+    }
+
+    private void writeVolumeDescriptors(StreamHandler handler, long sector) throws HandlerException {
+        handler.data(new BytesReference(getPrimaryVolumeDescriptor(sector)));
+        handler.data(new BytesReference(getImplementationUseDescriptor(sector + 1)));
+        handler.data(new BytesReference(getPartitionDescriptor(sector + 2)));
+        handler.data(new BytesReference(getLogicalVolumeDescriptor(sector + 3)));
+        handler.data(new BytesReference(getUnallocatedSpaceDescriptor(sector + 4)));
+        handler.data(new BytesReference(getTerminatingDescriptor(sector + 5)));
+    }
+
+    private static byte[] getVolumeStructure(String identifier) {
+        byte[] bytes = new byte[SECTOR_SIZE];
+        System.arraycopy(identifier.getBytes(StandardCharsets.US_ASCII), 0, bytes, 1, 5);
+        bytes[6] = 1;
+        return bytes;
+    }
+
+    private byte[] getPrimaryVolumeDescriptor(long location) {
+        ByteBuffer b = newSector();
+        b.putInt(16, 0);
+        setDString(b, 24, 32, volumeId);
+        b.putShort(56, (short) 1);
+        b.putShort(58, (short) 1);
+        b.putShort(60, (short) 2);
+        b.putShort(62, (short) 2);
+        b.putInt(64, 1);
+        b.putInt(68, 1);
+        setDString(b, 72, 128, volumeSetId);
+        setCharSpec(b, 200);
+        setCharSpec(b, 264);
+        setBytes(b, 376, timestamp);
+        setEntityId(b, 388, IMPLEMENTATION_ID, null);
+        return setTag(b, TAG_PVD, location, 512);
+    }
+
+    private byte[] getImplementationUseDescriptor(long location) {
+        ByteBuffer b = newSector();
+        b.putInt(16, 1);
+        setEntityId(b, 20, "*UDF LV Info", UDF_SUFFIX); //$NON-NLS-1$
+        setCharSpec(b, 52);
+        setDString(b, 116, 128, volumeId);
+        setEntityId(b, 352, IMPLEMENTATION_ID, null);
+        return setTag(b, TAG_IUVD, location, 512);
+    }
+
+    private byte[] getPartitionDescriptor(long location) {
+        ByteBuffer b = newSector();
+        b.putInt(16, 2);
+        // Allocated partition number 0
+        b.putShort(20, (short) 1);
+        b.putShort(22, (short) 0);
+        setEntityId(b, 24, "+NSR02", null); //$NON-NLS-1$
+        // Read only
+        b.putInt(184, 1);
+        b.putInt(188, PARTITION_SECTOR);
+        b.putInt(192, (int) partitionLength);
+        setEntityId(b, 196, IMPLEMENTATION_ID, null);
+        return setTag(b, TAG_PD, location, 512);
+    }
+
+    private byte[] getLogicalVolumeDescriptor(long location) {
+        ByteBuffer b = newSector();
+        b.putInt(16, 3);
+        setCharSpec(b, 20);
+        setDString(b, 84, 128, volumeId);
+        b.putInt(212, SECTOR_SIZE);
+        setEntityId(b, 216, DOMAIN_ID, UDF_SUFFIX);
+        // Location of the file set descriptor
+        setLongAd(b, 248, SECTOR_SIZE, 0L);
+        b.putInt(264, 6);
+        b.putInt(268, 1);
+        setEntityId(b, 272, IMPLEMENTATION_ID, null);
+        b.putInt(432, 2 * SECTOR_SIZE);
+        b.putInt(436, INTEGRITY_SECTOR);
+        // Type 1 partition map of the partition 0
+        b.put(440, (byte) 1);
+        b.put(441, (byte) 6);
+        b.putShort(442, (short) 1);
+        b.putShort(444, (short) 0);
+        return setTag(b, TAG_LVD, location, 446);
+    }
+
+    private static byte[] getUnallocatedSpaceDescriptor(long location) {
+        ByteBuffer b = newSector();
+        b.putInt(16, 4);
+        return setTag(b, TAG_USD, location, 24);
+    }
+
+    private static byte[] getTerminatingDescriptor(long location) {
+        return setTag(newSector(), TAG_TD, location, 512);
+    }
+
+    private byte[] getIntegrityDescriptor(long location) {
+        ByteBuffer b = newSector();
+        setBytes(b, 16, timestamp);
+        // Closed
+        b.putInt(28, 1);
+        b.putLong(40, nextUniqueId);
+        b.putInt(72, 1);
+        b.putInt(76, 46);
+        // No free space
+        b.putInt(80, 0);
+        b.putInt(84, (int) partitionLength);
+        setEntityId(b, 88, IMPLEMENTATION_ID, null);
+        b.putInt(120, files.size());
+        b.putInt(124, directories.size());
+        b.putShort(128, (short) UDF_REVISION);
+        b.putShort(130, (short) UDF_REVISION);
+        b.putShort(132, (short) UDF_REVISION);
+        return setTag(b, TAG_LVID, location, 134);
+    }
+
+    private static byte[] getAnchor(long location) {
+        ByteBuffer b = newSector();
+        b.putInt(16, VDS_LENGTH * SECTOR_SIZE);
+        b.putInt(20, MAIN_VDS_SECTOR);
+        b.putInt(24, VDS_LENGTH * SECTOR_SIZE);
+        b.putInt(28, RESERVE_VDS_SECTOR);
+        return setTag(b, TAG_AVDP, location, 512);
+    }
+
+    private byte[] getFileSetDescriptor() {
+        ByteBuffer b = newSector();
+        setBytes(b, 16, timestamp);
+        b.putShort(28, (short) 3);
+        b.putShort(30, (short) 3);
+        b.putInt(32, 1);
+        b.putInt(36, 1);
+        setCharSpec(b, 48);
+        setDString(b, 112, 128, volumeId);
+        setCharSpec(b, 240);
+        setDString(b, 304, 32, volumeId);
+        setLongAd(b, 400, SECTOR_SIZE, root.icb);
+        setEntityId(b, 416, DOMAIN_ID, UDF_SUFFIX);
+        return setTag(b, TAG_FSD, 0L, 512);
+    }
+
+    private byte[] getFileEntry(Node node) {
+        ByteBuffer b = newSector();
+        // ICB tag: strategy 4, one entry, directory or file, short allocation descriptors
+        b.putShort(20, (short) 4);
+        b.putShort(24, (short) 1);
+        b.put(27, (byte) (node.isDirectory() ? 4 : 5));
+        // No user and group
+        b.putInt(36, -1);
+        b.putInt(40, -1);
+        b.putInt(44, PERMISSIONS);
+        // Identified by its own record and by the parent record of each subdirectory
+        int links = 1;
+        for (Node child : node.children) {
+            if (child.isDirectory()) {
+                links++;
+            }
+        }
+        b.putShort(48, (short) links);
+        b.putLong(56, node.length);
+        b.putLong(64, getSectors(node.length));
+        setBytes(b, 72, timestamp);
+        setBytes(b, 84, timestamp);
+        setBytes(b, 96, timestamp);
+        b.putInt(108, 1);
+        setEntityId(b, 128, IMPLEMENTATION_ID, null);
+        b.putLong(160, node.uniqueId);
+        int offset = FE_HEADER_SIZE;
+        long remaining = node.length;
+        long block = node.extent;
+        while (remaining > 0) {
+            long length = Math.min(remaining, MAX_EXTENT);
+            b.putInt(offset, (int) length);
+            b.putInt(offset + 4, (int) block);
+            offset += 8;
+            remaining -= length;
+            block += length / SECTOR_SIZE;
+        }
+        b.putInt(172, offset - FE_HEADER_SIZE);
+        return setTag(b, TAG_FE, node.icb, offset);
+    }
+
+    private static byte[] getDirectoryData(Node dir) {
+        ByteBuffer b = ByteBuffer.allocate((int) (getSectors(dir.length) * SECTOR_SIZE));
+        // The parent of the root is the root
+        int offset = setFileIdentifier(b, 0, dir, dir.parent == null ? dir : dir.parent, true);
+        for (Node child : dir.children) {
+            offset += setFileIdentifier(b, offset, dir, child, false);
+        }
+        return b.array();
+    }
+
+    private static int setFileIdentifier(ByteBuffer b, int offset, Node dir, Node target, boolean parent) {
+        byte[] identifier = parent ? new byte[0] : target.identifier;
+        int length = getFidLength(identifier.length);
+        ByteBuffer d = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        d.putShort(16, (short) 1);
+        d.put(18, (byte) ((target.isDirectory() ? 0x02 : 0) | (parent ? 0x08 : 0)));
+        d.put(19, (byte) identifier.length);
+        setLongAd(d, 20, SECTOR_SIZE, target.icb);
+        setBytes(d, 38, identifier);
+        // A descriptor can span two blocks, its location is the block of its first byte
+        byte[] fid = setTag(d, TAG_FID, dir.extent + offset / SECTOR_SIZE, length);
+        System.arraycopy(fid, 0, b.array(), offset, length);
+        return length;
+    }
+
+    private static int getFidLength(int identifierLength) {
+        return (38 + identifierLength + 3) & ~3;
+    }
+
+    private static long getSectors(long length) {
+        return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    private static ByteBuffer newSector() {
+        return ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void setBytes(ByteBuffer b, int offset, byte[] bytes) {
+        System.arraycopy(bytes, 0, b.array(), offset, bytes.length);
+    }
+
+    /**
+     * Set the descriptor tag, whose CRC covers the descriptor after the tag.
+     *
+     * @return the content of the buffer
+     */
+    private static byte[] setTag(ByteBuffer b, int identifier, long location, int length) {
+        byte[] bytes = b.array();
+        b.putShort(0, (short) identifier);
+        // Descriptor version of NSR02
+        b.putShort(2, (short) 2);
+        b.putShort(6, (short) 1);
+        b.putShort(8, (short) getCrc(bytes, 16, length - 16));
+        b.putShort(10, (short) (length - 16));
+        b.putInt(12, (int) location);
+        int checksum = 0;
+        for (int i = 0; i < 16; i++) {
+            if (i != 4) {
+                checksum += bytes[i] & 0xFF;
+            }
+        }
+        bytes[4] = (byte) checksum;
+        return bytes;
+    }
+
+    /**
+     * @return the CRC-ITU-T of ECMA-167 (polynomial x^16 + x^12 + x^5 + 1, initial value 0)
+     */
+    static int getCrc(byte[] bytes, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (bytes[i] & 0xFF) << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            crc &= 0xFFFF;
+        }
+        return crc;
+    }
+
+    private static void setCharSpec(ByteBuffer b, int offset) {
+        // CS0 character set
+        b.put(offset, (byte) 0);
+        setBytes(b, offset + 1, CHARSET.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void setEntityId(ByteBuffer b, int offset, String identifier, byte[] suffix) {
+        setBytes(b, offset + 1, identifier.getBytes(StandardCharsets.US_ASCII));
+        if (suffix != null) {
+            setBytes(b, offset + 24, suffix);
+        }
+    }
+
+    private static void setLongAd(ByteBuffer b, int offset, int length, long block) {
+        b.putInt(offset, length);
+        b.putInt(offset + 4, (int) block);
+        // Partition reference 0
+        b.putShort(offset + 8, (short) 0);
+    }
+
+    /**
+     * Set a fixed-length string, whose last byte is the length of the compressed unicode.
+     */
+    private static void setDString(ByteBuffer b, int offset, int fieldLength, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        byte[] bytes = getCompressedUnicode(value);
+        int length = Math.min(bytes.length, fieldLength - 1);
+        if (bytes[0] == 16 && length % 2 == 0) {
+            // Keep whole characters
+            length--;
+        }
+        System.arraycopy(bytes, 0, b.array(), offset, length);
+        b.put(offset + fieldLength - 1, (byte) length);
+    }
+
+    /**
+     * @return the OSTA compressed unicode: 8 bits per character when possible, otherwise 16 bits big endian
+     */
+    static byte[] getCompressedUnicode(String value) {
+        boolean wide = false;
+        for (int i = 0; i < value.length(); i++) {
+            wide |= value.charAt(i) > 0xFF;
+        }
+        byte[] bytes = new byte[1 + value.length() * (wide ? 2 : 1)];
+        bytes[0] = (byte) (wide ? 16 : 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (wide) {
+                bytes[1 + 2 * i] = (byte) (c >> 8);
+                bytes[2 + 2 * i] = (byte) c;
+            } else {
+                bytes[1 + i] = (byte) c;
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] getTimestamp(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
+        calendar.setTimeInMillis(time);
+        int millis = calendar.get(Calendar.MILLISECOND);
+        ByteBuffer b = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        // Local time with an offset of 0 minute from UTC
+        b.putShort((short) 0x1000);
+        b.putShort((short) calendar.get(Calendar.YEAR));
+        b.put((byte) (calendar.get(Calendar.MONTH) + 1));
+        b.put((byte) calendar.get(Calendar.DAY_OF_MONTH));
+        b.put((byte) calendar.get(Calendar.HOUR_OF_DAY));
+        b.put((byte) calendar.get(Calendar.MINUTE));
+        b.put((byte) calendar.get(Calendar.SECOND));
+        b.put((byte) (millis / 10));
+        b.put((byte) (millis % 10 * 10));
+        b.put((byte) 0);
+        return b.array();
+    }
+
+    private static void zeros(StreamHandler handler, long length) throws HandlerException {
+        if (length > 0) {
+            handler.data(new ZeroReference(length));
+        }
+    }
+
+    /**
+     * A file or a directory of the image.
+     */
+    private static final class Node {
+        private final String name;
+        private final byte[] identifier;
+        private final Node parent;
+        // Null for a directory
+        private final DataReference data;
+        private final List<Node> children = new ArrayList<>();
+        // Blocks of the file entry and of the data in the partition
+        private long icb;
+        private long extent;
+        private long length;
+        private long uniqueId;
+        // The data is written by the first file of the same data reference
+        private boolean shared;
+
+        Node(Node parent, String name, DataReference data) {
+            this.parent = parent;
+            this.name = name;
+            this.identifier = name == null ? new byte[0] : getCompressedUnicode(name);
+            this.data = data;
+        }
+
+        boolean isDirectory() {
+            return data == null;
+        }
+    }
+
+    private static final class BytesReference implements DataReference {
+        private final byte[] bytes;
+
+        BytesReference(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long getLength() {
+            return bytes.length;
+        }
+
+        @Override
+        public InputStream createInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    private static final class ZeroReference implements DataReference {
+        private final long length;
+
+        ZeroReference(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream createInputStream() {
+            return new InputStream() {
+                private long remaining = length;
+
+                @Override
+                public int read() {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    remaining--;
+                    return 0;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int n = (int) Math.min(len, remaining);
+                    Arrays.fill(b, off, off + n, (byte) 0);
+                    remaining -= n;
+                    return n;
+                }
+            };
+        }
+    }
+}
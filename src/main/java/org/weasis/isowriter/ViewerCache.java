@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.FileUtil;
+import org.weasis.core.api.util.ResourceUtil;
+
+/**
+ * Extracts the embedded portable distribution of Weasis once, in the data folder of the bundle.
+ * <p>
+ * The extracted directory is referenced by the ISO images without being copied. The checksum of the archive is
+ * compared with the one of the extracted files, so the cache is refreshed when the bundle is upgraded. The size of
+ * each extracted file is recorded in the cache information and checked once per session, so a partially deleted cache
+ * is extracted again and the exports do not list the files of the distribution.
+ * <p>
+ * Each extraction is written in a new directory. A directory referenced by a running export (see
+ * {@link #acquire()}) is never deleted, the previous directories are removed when they are released.
+ */
+final class ViewerCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ViewerCache.class);
+
+    static final String DISTRIBUTION = "lib/weasis-distributions.zip"; //$NON-NLS-1$
+    private static final String CACHE_DIR = "viewer"; //$NON-NLS-1$
+    private static final String INFO_FILE = "cache.properties"; //$NON-NLS-1$
+    private static final String CHECKSUM = "checksum"; //$NON-NLS-1$
+    private static final String DIRECTORY = "directory"; //$NON-NLS-1$
+    // Prefix of the size of each file, by path relative to the distribution
+    private static final String FILE = "file."; //$NON-NLS-1$
+
+    // Checksum of the embedded archive, computed once per session
+    private static String archiveChecksum;
+    // Distribution checked in this session
+    private static Distribution current;
+    // Directories referenced by the running exports => number of exports
+    private static final Map<File, Integer> users = new HashMap<>();
+    // Size of the archive content, read once per session
+    private static volatile Estimate estimate;
+
+    private ViewerCache() {
+    }
+
+    /**
+     * Get the extracted distribution, which is not deleted until it is released.
+     *
+     * @return the distribution or null if it cannot be provided
+     * @see #release(Distribution)
+     */
+    static synchronized Distribution acquire() {
+        Distribution distribution = getDistribution();
+        if (distribution != null) {
+            users.merge(distribution.getDirectory(), 1, Integer::sum);
+        }
+        return distribution;
+    }
+
+    /**
+     * Release a distribution when the image referencing it is written.
+     *
+     * @param distribution
+     *            the distribution returned by {@link #acquire()}, can be null
+     */
+    static synchronized void release(Distribution distribution) {
+        if (distribution != null) {
+            File dir = distribution.getDirectory();
+            users.computeIfPresent(dir, (k, v) -> v > 1 ? v - 1 : null);
+            if (!users.containsKey(dir) && (current == null || !dir.equals(current.getDirectory()))) {
+                // Replaced by a new extraction while it was used
+                FileUtil.recursiveDelete(dir);
+            }
+        }
+    }
+
+    private static Distribution getDistribution() {
+        File dataFolder = ExportIsoFactory.getDataFolder();
+        URL url = ResourceUtil.getResourceURL(DISTRIBUTION, ViewerCache.class);
+        if (dataFolder == null || url == null) {
+            return null;
+        }
+        try {
+            if (archiveChecksum == null) {
+                archiveChecksum = computeChecksum(url);
+            }
+            if (current != null && current.getDirectory().isDirectory()) {
+                return current;
+            }
+            File cacheDir = new File(dataFolder, CACHE_DIR);
+            File infoFile = new File(cacheDir, INFO_FILE);
+            Properties info = new Properties();
+            FileUtil.readProperties(infoFile, info);
+            String name = info.getProperty(DIRECTORY);
+            if (name != null && archiveChecksum.equals(info.getProperty(CHECKSUM))) {
+                Distribution distribution = Distribution.fromProperties(new File(cacheDir, name), info);
+                if (distribution.isComplete()) {
+                    setCurrent(cacheDir, distribution);
+                    return distribution;
+                }
+                LOGGER.warn("The portable distribution in {} is incomplete, extracting it again", //$NON-NLS-1$
+                    distribution.getDirectory());
+            }
+
+            // Extract in a new directory, the previous one can be referenced by a running export
+            File distDir = new File(cacheDir, archiveChecksum + "-" + System.currentTimeMillis()); //$NON-NLS-1$
+            File tmpDir = new File(cacheDir, distDir.getName() + ".tmp"); //$NON-NLS-1$
+            tmpDir.mkdirs();
+            try (InputStream in = url.openStream()) {
+                FileUtil.unzip(in, tmpDir);
+            }
+            if (!tmpDir.renameTo(distDir)) {
+                FileUtil.recursiveDelete(tmpDir);
+                throw new IOException("Cannot rename " + tmpDir); //$NON-NLS-1$
+            }
+            Distribution distribution = Distribution.fromDirectory(distDir);
+            Properties newInfo = new Properties();
+            newInfo.setProperty(CHECKSUM, archiveChecksum);
+            newInfo.setProperty(DIRECTORY, distDir.getName());
+            distribution.store(newInfo);
+            FileUtil.storeProperties(infoFile, newInfo, null);
+            setCurrent(cacheDir, distribution);
+            LOGGER.info("Portable distribution extracted in {}", distDir); //$NON-NLS-1$
+            return distribution;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            LOGGER.error("Cannot extract the portable distribution", e); //$NON-NLS-1$
+        }
+        return null;
+    }
+
+    /**
+     * Use a distribution for the next exports and remove the other directories which are not referenced.
+     */
+    private static void setCurrent(File cacheDir, Distribution distribution) {
+        current = distribution;
+        File[] list = cacheDir.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                if (file.isDirectory() && !file.equals(distribution.getDirectory()) && !users.containsKey(file)) {
+                    FileUtil.recursiveDelete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the size of the distribution in the image from the entries of the embedded archive, without checksum and
+     * without extraction, so it can be used when the cache is not available.
+     *
+     * @return the size of the distribution, empty if the archive cannot be read
+     */
+    static Estimate getEstimate() {
+        Estimate result = estimate;
+        if (result == null) {
+            URL url = ResourceUtil.getResourceURL(DISTRIBUTION, ViewerCache.class);
+            if (url == null) {
+                return new Estimate();
+            }
+            result = new Estimate();
+            try (ZipInputStream in = new ZipInputStream(url.openStream())) {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    String name = entry.getName().replace('/', File.separatorChar);
+                    if (entry.isDirectory()) {
+                        result.addDirectory(name.substring(0, name.length() - 1));
+                    } else {
+                        long size = entry.getSize();
+                        if (size < 0) {
+                            // Known only in the data descriptor, after the content
+                            while (in.skip(Long.MAX_VALUE) > 0) {
+                                // Read until the end of the entry
+                            }
+                            size = Math.max(0L, entry.getSize());
+                        }
+                        result.addFile(name, size);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Cannot read the portable distribution", e); //$NON-NLS-1$
+                return new Estimate();
+            }
+            estimate = result;
+        }
+        return result;
+    }
+
+    private static String computeChecksum(URL url) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+        byte[] buf = new byte[65536];
+        try (InputStream in = url.openStream()) {
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                md.update(buf, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b & 0xff)); //$NON-NLS-1$
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Files of the archive: the size of each file is aligned to the sectors, like
+     * {@link VolumePlanner#getTreeSize(File)}.
+     */
+    static final class Estimate {
+        private final Map<String, Integer> directories = new HashMap<>();
+        private long treeSize;
+
+        void addDirectory(String path) {
+            directories.putIfAbsent(path, 0);
+            int index = path.lastIndexOf(File.separatorChar);
+            if (index > 0) {
+                addDirectory(path.substring(0, index));
+            }
+        }
+
+        void addFile(String path, long size) {
+            int index = path.lastIndexOf(File.separatorChar);
+            if (index > 0) {
+                String dir = path.substring(0, index);
+                addDirectory(dir);
+                directories.merge(dir, 1, Integer::sum);
+            }
+            treeSize += VolumePlanner.alignToSector(size);
+        }
+
+        /**
+         * @return the size of the files in the image
+         */
+        long getTreeSize() {
+            return treeSize;
+        }
+
+        /**
+         * @return the number of files of each directory, by path relative to the root of the distribution
+         */
+        Map<String, Integer> getDirectories() {
+            return Collections.unmodifiableMap(directories);
+        }
+    }
+
+    /**
+     * Files of an extracted distribution with their size.
+     */
+    static final class Distribution {
+        private final File directory;
+        // Path relative to the directory (with '/' as separator) => size
+        private final Map<String, Long> files;
+
+        private Distribution(File directory, Map<String, Long> files) {
+            this.directory = directory;
+            this.files = files;
+        }
+
+        static Distribution fromDirectory(File directory) {
+            Map<String, Long> files = new LinkedHashMap<>();
+            addFiles(directory, "", files); //$NON-NLS-1$
+            return new Distribution(directory, files);
+        }
+
+        static Distribution fromProperties(File directory, Properties info) {
+            Map<String, Long> files = new LinkedHashMap<>();
+            for (String key : info.stringPropertyNames()) {
+                if (key.startsWith(FILE)) {
+                    files.put(key.substring(FILE.length()), ExportOptions.getLong(info, key));
+                }
+            }
+            return new Distribution(directory, files);
+        }
+
+        private static void addFiles(File dir, String path, Map<String, Long> files) {
+            File[] list = dir.listFiles();
+            if (list != null) {
+                for (File file : list) {
+                    String name = path.isEmpty() ? file.getName() : path + "/" + file.getName(); //$NON-NLS-1$
+                    if (file.isDirectory()) {
+                        addFiles(file, name, files);
+                    } else {
+                        files.put(name, file.length());
+                    }
+                }
+            }
+        }
+
+        void store(Properties info) {
+            for (Map.Entry<String, Long> entry : files.entrySet()) {
+                info.setProperty(FILE + entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+
+        /**
+         * @return true when every recorded file exists with its size
+         */
+        boolean isComplete() {
+            if (files.isEmpty() || !directory.isDirectory()) {
+                return false;
+            }
+            for (Map.Entry<String, Long> entry : files.entrySet()) {
+                File file = new File(directory, entry.getKey());
+                if (!file.isFile() || file.length() != entry.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        File getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the size of each file by path relative to the directory (with '/' as separator)
+         */
+        Map<String, Long> getFiles() {
+            return Collections.unmodifiableMap(files);
+        }
+
+        /**
+         * @return the size of the files in the image, like {@link VolumePlanner#getTreeSize(File)}
+         */
+        long getTreeSize() {
+            long size = 0L;
+            for (Long length : files.values()) {
+                size += VolumePlanner.alignToSector(length);
+            }
+            return size;
+        }
+    }
+}
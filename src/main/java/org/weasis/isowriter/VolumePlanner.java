@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the selected items into volumes which fit on the target medium.
+ * <p>
+ * A series is never split. A patient or a study is kept on one volume when it fits on an empty volume, otherwise it is
+ * split into studies or series. The resulting items are distributed with a first-fit decreasing strategy.
+ */
+public class VolumePlanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VolumePlanner.class);
+
+    public static final long SECTOR_SIZE = 2048L;
+
+    private final long capacity;
+    private final long volumeOverhead;
+
+    /**
+     * @param capacity
+     *            the capacity of the medium in bytes
+     * @param volumeOverhead
+     *            the size in bytes required on each volume independently of the selection (viewer, DICOMDIR...)
+     */
+    public VolumePlanner(long capacity, long volumeOverhead) {
+        if (capacity <= volumeOverhead) {
+            throw new IllegalArgumentException("The capacity of the medium is too small"); //$NON-NLS-1$
+        }
+        this.capacity = capacity;
+        this.volumeOverhead = volumeOverhead;
+    }
+
+    /**
+     * @param items
+     *            the items to export in the order of the selection
+     * @param sizeOfItem
+     *            the size in bytes that an item takes in the image
+     * @return the volumes, each containing its items in the order of the selection
+     */
+    public List<Volume> plan(List<ExportItem> items, ToLongFunction<ExportItem> sizeOfItem) {
+        // Group the items by patient, study and series
+        Group root = new Group();
+        for (int i = 0; i < items.size(); i++) {
+            ExportItem item = items.get(i);
+            Group group = root.getChild(item.getPatient()).getChild(item.getStudy()).getChild(item.getSeries());
+            group.add(i, sizeOfItem.applyAsLong(item));
+        }
+
+        long available = capacity - volumeOverhead;
+        List<Group> groups = new ArrayList<>();
+        for (Group patient : root.children.values()) {
+            collectGroups(patient, available, groups);
+        }
+        Collections.sort(groups, (g1, g2) -> Long.compare(g2.getSize(), g1.getSize()));
+
+        List<Volume> volumes = new ArrayList<>();
+        for (Group item : groups) {
+            Volume target = null;
+            for (Volume v : volumes) {
+                if (v.size + item.getSize() <= available) {
+                    target = v;
+                    break;
+                }
+            }
+            if (target == null) {
+                if (item.getSize() > available) {
+                    LOGGER.warn("A series ({} bytes) is larger than the medium", item.getSize()); //$NON-NLS-1$
+                }
+                target = new Volume();
+                volumes.add(target);
+            }
+            target.size += item.getSize();
+            item.collectIndexes(target.indexes);
+        }
+
+        for (int i = 0; i < volumes.size(); i++) {
+            Volume v = volumes.get(i);
+            v.number = i + 1;
+            v.size += volumeOverhead;
+            Collections.sort(v.indexes);
+            for (Integer index : v.indexes) {
+                v.items.add(items.get(index));
+            }
+        }
+        return volumes;
+    }
+
+    private static void collectGroups(Group group, long available, List<Group> groups) {
+        if (group.getSize() <= available || group.children.isEmpty()) {
+            groups.add(group);
+        } else {
+            for (Group child : group.children.values()) {
+                collectGroups(child, available, groups);
+            }
+        }
+    }
+
+    public static long alignToSector(long size) {
+        return ((size + SECTOR_SIZE - 1) / SECTOR_SIZE) * SECTOR_SIZE;
+    }
+
+    /**
+     * @return the size in the image of all the files of a directory
+     */
+    public static long getTreeSize(File dir) {
+        long size = 0;
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.isDirectory() ? getTreeSize(file) : alignToSector(file.length());
+            }
+        }
+        return size;
+    }
+
+    public static class Volume {
+        private int number;
+        private long size;
+        private final List<Integer> indexes = new ArrayList<>();
+        private final List<ExportItem> items = new ArrayList<>();
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return the estimated size of the volume in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public List<ExportItem> getItems() {
+            return Collections.unmodifiableList(items);
+        }
+    }
+
+    private static class Group {
+        private final Map<Object, Group> children = new LinkedHashMap<>();
+        private final List<Integer> indexes = new ArrayList<>();
+        private long size = -1;
+        private long ownSize;
+
+        Group getChild(Object node) {
+            return children.computeIfAbsent(node, k -> new Group());
+        }
+
+        void add(int index, long itemSize) {
+            indexes.add(index);
+            ownSize += itemSize;
+        }
+
+        long getSize() {
+            if (size < 0) {
+                size = ownSize;
+                for (Group child : children.values()) {
+                    size += child.getSize();
+                }
+            }
+            return size;
+        }
+
+        void collectIndexes(List<Integer> list) {
+            list.addAll(indexes);
+            for (Group child : children.values()) {
+                child.collectIndexes(list);
+            }
+        }
+    }
+}
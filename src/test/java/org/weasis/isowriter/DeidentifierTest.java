@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.media.DicomDirReader;
+import org.dcm4che3.util.UIDUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * An instance, its presentation state and its DICOMDIR record must reference the same UIDs after the
+ * de-identification, also when they are de-identified separately (e.g. when the export is resumed).
+ */
+public class DeidentifierTest {
+
+    private static final String KEY = "secret"; //$NON-NLS-1$
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String studyUID = UIDUtils.createUID();
+    private final String seriesUID = UIDUtils.createUID();
+    private final String instanceUID = UIDUtils.createUID();
+
+    @Test
+    public void sameUIDsInInstancePresentationAndDicomDir() throws IOException {
+        File dir = folder.newFolder("image"); //$NON-NLS-1$
+        Deidentifier deidentifier = new Deidentifier(DeidentificationProfile.getDefault(), KEY);
+        File source = writeInstance(folder.newFile("source")); //$NON-NLS-1$
+        File dicomFile = new File(dir, deidentifier.getFileID(instanceUID));
+
+        DicomTranscoder.Output output = DicomTranscoder.write(source, dicomFile, null, deidentifier);
+        assertNotNull(output);
+        Attributes instance = DicomTranscoder.read(dicomFile).getDataset();
+        String newStudyUID = instance.getString(Tag.StudyInstanceUID);
+        String newSeriesUID = instance.getString(Tag.SeriesInstanceUID);
+        String newInstanceUID = instance.getString(Tag.SOPInstanceUID);
+        assertRemapped(studyUID, newStudyUID);
+        assertRemapped(seriesUID, newSeriesUID);
+        assertRemapped(instanceUID, newInstanceUID);
+        // Standard UIDs are kept
+        assertEquals(UID.SecondaryCaptureImageStorage, instance.getString(Tag.SOPClassUID));
+        assertFalse(instance.contains(0x00091010));
+        assertEquals(deidentifier.getPseudonym("P1"), instance.getString(Tag.PatientID)); //$NON-NLS-1$
+
+        // The presentation state is built from the de-identified image attributes by another worker
+        Deidentifier prDeidentifier = new Deidentifier(DeidentificationProfile.getDefault(), KEY);
+        Attributes image = prDeidentifier.apply(createDataset());
+        assertEquals(newStudyUID, image.getString(Tag.StudyInstanceUID));
+        assertEquals(newSeriesUID, image.getString(Tag.SeriesInstanceUID));
+        assertEquals(newInstanceUID, image.getString(Tag.SOPInstanceUID));
+        assertEquals(instance.getString(Tag.PatientID), image.getString(Tag.PatientID));
+
+        // A presentation state of the original image references the de-identified image
+        Attributes pr = prDeidentifier.apply(createPresentation());
+        Attributes seriesItem = pr.getNestedDataset(Tag.ReferencedSeriesSequence);
+        assertEquals(newSeriesUID, seriesItem.getString(Tag.SeriesInstanceUID));
+        Attributes imageItem = seriesItem.getNestedDataset(Tag.ReferencedImageSequence);
+        assertEquals(newInstanceUID, imageItem.getString(Tag.ReferencedSOPInstanceUID));
+        assertEquals(UID.SecondaryCaptureImageStorage, imageItem.getString(Tag.ReferencedSOPClassUID));
+        assertEquals(newStudyUID, pr.getString(Tag.StudyInstanceUID));
+
+        // The DICOMDIR record is built from the written dataset
+        DicomDirBuilder dicomdir = new DicomDirBuilder(new File(dir, "DICOMDIR")); //$NON-NLS-1$
+        assertTrue(dicomdir.add(output.getDataset(), null, deidentifier.getFileID(instanceUID), dicomFile,
+            output.getTransferSyntax()));
+        dicomdir.write();
+        DicomDirReader reader = new DicomDirReader(dicomdir.getFile());
+        try {
+            Attributes patientRec = reader.readFirstRootDirectoryRecord();
+            assertEquals(instance.getString(Tag.PatientID), patientRec.getString(Tag.PatientID));
+            Attributes studyRec = reader.readLowerDirectoryRecord(patientRec);
+            assertEquals(newStudyUID, studyRec.getString(Tag.StudyInstanceUID));
+            Attributes seriesRec = reader.readLowerDirectoryRecord(studyRec);
+            assertEquals(newSeriesUID, seriesRec.getString(Tag.SeriesInstanceUID));
+            Attributes instanceRec = reader.readLowerDirectoryRecord(seriesRec);
+            assertEquals(newInstanceUID, instanceRec.getString(Tag.ReferencedSOPInstanceUIDInFile));
+            assertEquals(dicomFile.getName(), instanceRec.getStrings(Tag.ReferencedFileID)[0]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void uidsDependOnTheKey() {
+        DeidentificationProfile profile = DeidentificationProfile.getDefault();
+        String uid = new Deidentifier(profile, KEY).getUID(instanceUID);
+        assertEquals(uid, new Deidentifier(profile, KEY).getUID(instanceUID));
+        assertNotEquals(uid, new Deidentifier(profile, "other").getUID(instanceUID)); //$NON-NLS-1$
+        assertEquals(Deidentifier.getKeyId(KEY), Deidentifier.getKeyId(KEY));
+        assertNotEquals(Deidentifier.getKeyId(KEY), Deidentifier.getKeyId("other")); //$NON-NLS-1$
+    }
+
+    @Test
+    public void keepUIDs() {
+        DeidentificationProfile profile = DeidentificationProfile.getDefault();
+        profile.setRemapUIDs(false);
+        Attributes dataset = new Deidentifier(profile, KEY).apply(createDataset());
+        assertEquals(instanceUID, dataset.getString(Tag.SOPInstanceUID));
+        assertEquals(seriesUID, dataset.getString(Tag.SeriesInstanceUID));
+        assertEquals(studyUID, dataset.getString(Tag.StudyInstanceUID));
+    }
+
+    private static void assertRemapped(String original, String uid) {
+        assertNotEquals(original, uid);
+        assertTrue(uid.startsWith("2.25.")); //$NON-NLS-1$
+        assertTrue(uid.length() <= 64);
+    }
+
+    private Attributes createDataset() {
+        Attributes dataset = new Attributes();
+        dataset.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        dataset.setString(Tag.SOPInstanceUID, VR.UI, instanceUID);
+        dataset.setString(Tag.PatientID, VR.LO, "P1"); //$NON-NLS-1$
+        dataset.setString(Tag.PatientName, VR.PN, "Doe^John"); //$NON-NLS-1$
+        dataset.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+        dataset.setString(Tag.SeriesInstanceUID, VR.UI, seriesUID);
+        dataset.setString(Tag.Modality, VR.CS, "OT"); //$NON-NLS-1$
+        dataset.setInt(Tag.InstanceNumber, VR.IS, 1);
+        dataset.setString(0x00090010, VR.LO, "PRIVATE"); //$NON-NLS-1$
+        dataset.setString(0x00091010, VR.LO, "value"); //$NON-NLS-1$
+        return dataset;
+    }
+
+    private Attributes createPresentation() {
+        Attributes pr = new Attributes();
+        pr.setString(Tag.SOPClassUID, VR.UI, UID.GrayscaleSoftcopyPresentationStateStorageSOPClass);
+        pr.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+        pr.setString(Tag.PatientID, VR.LO, "P1"); //$NON-NLS-1$
+        pr.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+        pr.setString(Tag.SeriesInstanceUID, VR.UI, UIDUtils.createUID());
+        Attributes image = new Attributes(2);
+        image.setString(Tag.ReferencedSOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        image.setString(Tag.ReferencedSOPInstanceUID, VR.UI, instanceUID);
+        Attributes seriesItem = new Attributes(2);
+        seriesItem.newSequence(Tag.ReferencedImageSequence, 1).add(image);
+        seriesItem.setString(Tag.SeriesInstanceUID, VR.UI, seriesUID);
+        pr.newSequence(Tag.ReferencedSeriesSequence, 1).add(seriesItem);
+        return pr;
+    }
+
+    private File writeInstance(File file) throws IOException {
+        Attributes dataset = createDataset();
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(dataset.createFileMetaInformation(UID.ExplicitVRLittleEndian), dataset);
+        }
+        return file;
+    }
+}
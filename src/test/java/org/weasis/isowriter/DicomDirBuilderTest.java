@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.media.DicomDirReader;
+import org.dcm4che3.media.DicomDirWriter;
+import org.dcm4che3.media.RecordType;
+import org.dcm4che3.util.UIDUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.explorer.DicomDirLoader;
+
+/**
+ * The DICOMDIR written at once by {@link DicomDirBuilder} must have the same records as the DICOMDIR written
+ * sequentially with the {@link DicomDirWriter}, which looks up each record in the file before adding it.
+ */
+public class DicomDirBuilderTest {
+
+    // Attributes which depend on the position of the records in the file
+    private static final int[] OFFSETS = { Tag.OffsetOfTheNextDirectoryRecord,
+        Tag.OffsetOfReferencedLowerLevelDirectoryEntity, Tag.RecordInUseFlag };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameRecordsAsSequentialWriter() throws IOException {
+        List<Attributes> datasets = createDatasets();
+
+        File sequentialDir = folder.newFolder("sequential"); //$NON-NLS-1$
+        File sequentialFile = new File(sequentialDir, "DICOMDIR"); //$NON-NLS-1$
+        DicomDirWriter writer = DicomDirLoader.open(sequentialFile);
+        try {
+            for (Attributes dataset : datasets) {
+                writeSequentially(writer, new Attributes(dataset), getFile(sequentialDir, dataset));
+            }
+        } finally {
+            writer.close();
+        }
+
+        DicomDirBuilder builder = buildAll(datasets, folder.newFolder("builder")); //$NON-NLS-1$
+        builder.write();
+
+        List<Entry<Integer, Attributes>> expected = readRecords(sequentialFile);
+        List<Entry<Integer, Attributes>> actual = readRecords(builder.getFile());
+        // 2 patients, 3 studies, 4 series, 9 instances and 1 instance without study
+        assertEquals(19, expected.size());
+        assertEquals(expected, actual);
+        assertEquals(expected.size(), builder.getRecordCount());
+    }
+
+    @Test
+    public void writeToOpenDicomDir() throws IOException {
+        List<Attributes> datasets = createDatasets();
+        File dir = folder.newFolder("merged"); //$NON-NLS-1$
+        File file = new File(dir, "DICOMDIR"); //$NON-NLS-1$
+
+        // The first half is already in the file when all the instances are added
+        DicomDirWriter writer = DicomDirLoader.open(file);
+        try {
+            DicomDirBuilder first = new DicomDirBuilder(file);
+            for (Attributes dataset : datasets.subList(0, datasets.size() / 2)) {
+                first.add(new Attributes(dataset), null, dataset.getString(Tag.SOPInstanceUID), getFile(dir, dataset));
+            }
+            first.writeTo(writer);
+            buildAll(datasets, dir).writeTo(writer);
+        } finally {
+            writer.close();
+        }
+
+        DicomDirBuilder builder = buildAll(datasets, folder.newFolder("builder")); //$NON-NLS-1$
+        builder.write();
+
+        // Each record is written once
+        assertEquals(readRecords(builder.getFile()), readRecords(file));
+    }
+
+    @Test
+    public void addInstanceOnce() throws IOException {
+        Attributes dataset = createDataset("P1", UIDUtils.createUID(), UIDUtils.createUID()); //$NON-NLS-1$
+        File dir = folder.newFolder("image"); //$NON-NLS-1$
+        DicomDirBuilder builder = new DicomDirBuilder(new File(dir, "DICOMDIR")); //$NON-NLS-1$
+        String iuid = dataset.getString(Tag.SOPInstanceUID);
+
+        assertTrue(builder.add(new Attributes(dataset), null, iuid, getFile(dir, dataset)));
+        assertTrue(builder.add(new Attributes(dataset), null, iuid, getFile(dir, dataset)));
+        // Patient, study, series and instance
+        assertEquals(4, builder.getRecordCount());
+        assertFalse(builder.add(null, null, iuid, getFile(dir, dataset)));
+    }
+
+    @Test
+    public void patientIdFromStudy() throws IOException {
+        String studyUID = UIDUtils.createUID();
+        Attributes dataset = createDataset(null, studyUID, UIDUtils.createUID());
+        File dir = folder.newFolder("image"); //$NON-NLS-1$
+        DicomDirBuilder builder = new DicomDirBuilder(new File(dir, "DICOMDIR")); //$NON-NLS-1$
+        builder.add(dataset, null, dataset.getString(Tag.SOPInstanceUID), getFile(dir, dataset));
+        builder.write();
+
+        DicomDirReader reader = new DicomDirReader(builder.getFile());
+        try {
+            Attributes patient = reader.readFirstRootDirectoryRecord();
+            assertEquals(RecordType.PATIENT.name(), patient.getString(Tag.DirectoryRecordType));
+            assertEquals(studyUID, patient.getString(Tag.PatientID));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void fileIDsRelativeToDicomDir() throws IOException {
+        File dir = folder.newFolder("image"); //$NON-NLS-1$
+        DicomDirBuilder builder = new DicomDirBuilder(new File(dir, "DICOMDIR")); //$NON-NLS-1$
+        String[] ids = builder.toFileIDs(new File(dir, "DICOM" + File.separator + "A" + File.separator + "B")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        assertEquals(3, ids.length);
+        assertEquals("DICOM", ids[0]); //$NON-NLS-1$
+        assertEquals("A", ids[1]); //$NON-NLS-1$
+        assertEquals("B", ids[2]); //$NON-NLS-1$
+    }
+
+    /**
+     * The instances in the order of a selection: the patients, the studies and the series are interleaved, an instance
+     * is selected twice and an instance has no study.
+     */
+    private static List<Attributes> createDatasets() {
+        String study1 = UIDUtils.createUID();
+        String study2 = UIDUtils.createUID();
+        String study3 = UIDUtils.createUID();
+        String series1 = UIDUtils.createUID();
+        String series2 = UIDUtils.createUID();
+        String series3 = UIDUtils.createUID();
+        String series4 = UIDUtils.createUID();
+
+        List<Attributes> datasets = new ArrayList<>();
+        datasets.add(createDataset("P1", study1, series1)); //$NON-NLS-1$
+        datasets.add(createDataset("P2", study3, series4)); //$NON-NLS-1$
+        datasets.add(createDataset("P1", study1, series2)); //$NON-NLS-1$
+        datasets.add(createDataset("P1", study1, series1)); //$NON-NLS-1$
+        datasets.add(createDataset("P1", study2, series3)); //$NON-NLS-1$
+        datasets.add(datasets.get(0));
+        datasets.add(createDataset("P2", study3, series4)); //$NON-NLS-1$
+        Attributes noStudy = createDataset("P1", null, null); //$NON-NLS-1$
+        datasets.add(noStudy);
+        datasets.add(createDataset("P1", study1, series2)); //$NON-NLS-1$
+        datasets.add(createDataset("P1", study2, series3)); //$NON-NLS-1$
+        datasets.add(createDataset("P1", study1, series1)); //$NON-NLS-1$
+        return datasets;
+    }
+
+    private static Attributes createDataset(String patientID, String studyUID, String seriesUID) {
+        Attributes dataset = new Attributes();
+        dataset.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        dataset.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+        if (patientID != null) {
+            dataset.setString(Tag.PatientID, VR.LO, patientID);
+            dataset.setString(Tag.PatientName, VR.PN, "Name^" + patientID); //$NON-NLS-1$
+        }
+        if (studyUID != null) {
+            dataset.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+            dataset.setString(Tag.StudyDate, VR.DA, "20160101"); //$NON-NLS-1$
+        }
+        if (seriesUID != null) {
+            dataset.setString(Tag.SeriesInstanceUID, VR.UI, seriesUID);
+            dataset.setString(Tag.Modality, VR.CS, "OT"); //$NON-NLS-1$
+        }
+        dataset.setInt(Tag.InstanceNumber, VR.IS, 1);
+        return dataset;
+    }
+
+    private static DicomDirBuilder buildAll(List<Attributes> datasets, File dir) {
+        DicomDirBuilder builder = new DicomDirBuilder(new File(dir, "DICOMDIR")); //$NON-NLS-1$
+        for (Attributes dataset : datasets) {
+            builder.add(new Attributes(dataset), null, dataset.getString(Tag.SOPInstanceUID), getFile(dir, dataset));
+        }
+        return builder;
+    }
+
+    private static File getFile(File dir, Attributes dataset) {
+        String id = IsoExporter.makeFileIDs(dataset.getString(Tag.SOPInstanceUID));
+        return new File(dir, "DICOM" + File.separator + id); //$NON-NLS-1$
+    }
+
+    /**
+     * The algorithm writing each instance in the DICOMDIR file, before the records were collected in memory.
+     */
+    private static void writeSequentially(DicomDirWriter writer, Attributes dataset, File destinationFile)
+        throws IOException {
+        Attributes fmi = dataset.createFileMetaInformation(UID.ImplicitVRLittleEndian);
+        String iuid = dataset.getString(Tag.SOPInstanceUID, null);
+        String pid = dataset.getString(Tag.PatientID, null);
+        String styuid = dataset.getString(Tag.StudyInstanceUID, null);
+        String seruid = dataset.getString(Tag.SeriesInstanceUID, null);
+
+        if (styuid != null && seruid != null) {
+            if (pid == null) {
+                pid = styuid;
+                dataset.setString(Tag.PatientID, VR.LO, pid);
+            }
+            Attributes patRec = writer.findPatientRecord(pid);
+            if (patRec == null) {
+                patRec = DicomDirLoader.RecordFactory.createRecord(RecordType.PATIENT, null, dataset, null, null);
+                writer.addRootDirectoryRecord(patRec);
+            }
+            Attributes studyRec = writer.findStudyRecord(patRec, styuid);
+            if (studyRec == null) {
+                studyRec = DicomDirLoader.RecordFactory.createRecord(RecordType.STUDY, null, dataset, null, null);
+                writer.addLowerDirectoryRecord(patRec, studyRec);
+            }
+            Attributes seriesRec = writer.findSeriesRecord(studyRec, seruid);
+            if (seriesRec == null) {
+                seriesRec = DicomDirLoader.RecordFactory.createRecord(RecordType.SERIES, null, dataset, null, null);
+                writer.addLowerDirectoryRecord(studyRec, seriesRec);
+            }
+            if (writer.findLowerInstanceRecord(seriesRec, false, iuid) == null) {
+                writer.addLowerDirectoryRecord(seriesRec,
+                    DicomDirLoader.RecordFactory.createRecord(dataset, fmi, writer.toFileIDs(destinationFile)));
+            }
+        } else if (writer.findRootInstanceRecord(false, iuid) == null) {
+            writer.addRootDirectoryRecord(
+                DicomDirLoader.RecordFactory.createRecord(dataset, fmi, writer.toFileIDs(destinationFile)));
+        }
+    }
+
+    /**
+     * @return the records in depth-first order with their level, without the attributes depending on their position
+     */
+    private static List<Entry<Integer, Attributes>> readRecords(File file) throws IOException {
+        List<Entry<Integer, Attributes>> records = new ArrayList<>();
+        DicomDirReader reader = new DicomDirReader(file);
+        try {
+            readRecords(reader, reader.readFirstRootDirectoryRecord(), 0, records);
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static void readRecords(DicomDirReader reader, Attributes first, int level,
+        List<Entry<Integer, Attributes>> records) throws IOException {
+        for (Attributes rec = first; rec != null; rec = reader.readNextDirectoryRecord(rec)) {
+            Attributes lower = reader.readLowerDirectoryRecord(rec);
+            Attributes copy = new Attributes(rec);
+            for (int tag : OFFSETS) {
+                copy.remove(tag);
+            }
+            records.add(new SimpleImmutableEntry<>(level, copy));
+            readRecords(reader, lower, level + 1, records);
+        }
+    }
+}
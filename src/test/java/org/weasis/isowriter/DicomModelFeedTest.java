@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.UIDUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.core.api.explorer.ObservableEvent;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.MediaSeries;
+import org.weasis.dicom.codec.DicomMediaIO;
+import org.weasis.dicom.explorer.DicomModel;
+
+/**
+ * {@link DicomModelFeed} with a stand-in loader, which adds the instances of a series to the model over time like the
+ * retrieval of a study.
+ */
+public class DicomModelFeedTest {
+
+    private static final int NB_INSTANCES = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 20000L)
+    public void feedWhileLoading() throws Exception {
+        StandInLoader loader = new StandInLoader(writeSeries(), true);
+        List<ExportItem> items = consume(loader);
+
+        assertEquals(NB_INSTANCES, items.size());
+        for (int i = 0; i < NB_INSTANCES; i++) {
+            // The files not yet in the cache are added later, each instance is added once
+            assertTrue(loader.loaded.contains(items.get(i).getMedia()));
+            assertSame(loader.series, items.get(i).getSeries());
+        }
+        assertEquals(NB_INSTANCES, items.stream().map(ExportItem::getMedia).distinct().count());
+    }
+
+    @Test(timeout = 20000L)
+    public void finishWhenLoadingIsCancelled() throws Exception {
+        // No LOADING_STOP event: the feed must not wait forever
+        StandInLoader loader = new StandInLoader(writeSeries(), false);
+        List<ExportItem> items = consume(loader);
+
+        assertEquals(loader.loaded.size(), items.size());
+        assertTrue(items.size() < NB_INSTANCES);
+    }
+
+    @Test(timeout = 20000L)
+    public void dropMissingFiles() throws Exception {
+        List<File> files = writeSeries();
+        DicomMediaIO reader = new DicomMediaIO(files.get(0));
+        MediaSeries<MediaElement> series = reader.getMediaSeries();
+        for (File file : files) {
+            series.addMedia(new DicomMediaIO(file).getMediaElement()[0]);
+        }
+        // Never in the cache
+        assertTrue(files.get(1).delete());
+
+        DicomModelFeed modelFeed = new DicomModelFeed(new DicomModel(), Collections.emptyList()) {
+
+            @Override
+            List<SeriesNode> getSeries() {
+                return Collections.singletonList(new SeriesNode("patient", "study", series)); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+
+            @Override
+            boolean isLoading(MediaSeries<?> s) {
+                return false;
+            }
+        };
+        modelFeed.start();
+
+        List<ExportItem> items = new ArrayList<>();
+        for (ExportItem item : modelFeed.getFeed()) {
+            items.add(item);
+        }
+        assertEquals(NB_INSTANCES - 1, items.size());
+        assertEquals(1, modelFeed.getFeed().getDroppedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addAfterFinish() throws IOException {
+        DicomMediaIO reader = new DicomMediaIO(writeSeries().get(0));
+        ExportItem item =
+            ExportItem.ofMedia("patient", "study", reader.getMediaSeries(), reader.getMediaElement()[0]); //$NON-NLS-1$ //$NON-NLS-2$
+        ExportFeed feed = new ExportFeed();
+        feed.finish();
+        feed.add(item);
+    }
+
+    private static List<ExportItem> consume(StandInLoader loader) throws InterruptedException {
+        DicomModel model = new DicomModel();
+        DicomModelFeed modelFeed = new DicomModelFeed(model, Collections.emptyList()) {
+
+            @Override
+            List<SeriesNode> getSeries() {
+                return Collections.singletonList(new SeriesNode("patient", "study", loader.series)); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+
+            @Override
+            boolean isLoading(MediaSeries<?> series) {
+                return loader.loading;
+            }
+        };
+        loader.model = model;
+        Thread thread = new Thread(loader, "Stand-in loader"); //$NON-NLS-1$
+        modelFeed.start();
+        thread.start();
+
+        List<ExportItem> items = new ArrayList<>();
+        for (ExportItem item : modelFeed.getFeed()) {
+            items.add(item);
+        }
+        thread.join();
+        return items;
+    }
+
+    private List<File> writeSeries() throws IOException {
+        String studyUID = UIDUtils.createUID();
+        String seriesUID = UIDUtils.createUID();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < NB_INSTANCES; i++) {
+            Attributes attributes = new Attributes();
+            attributes.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+            attributes.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+            attributes.setString(Tag.PatientID, VR.LO, "P1"); //$NON-NLS-1$
+            attributes.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+            attributes.setString(Tag.SeriesInstanceUID, VR.UI, seriesUID);
+            attributes.setString(Tag.Modality, VR.CS, "OT"); //$NON-NLS-1$
+            attributes.setInt(Tag.InstanceNumber, VR.IS, i + 1);
+            File file = folder.newFile("I" + i); //$NON-NLS-1$
+            try (DicomOutputStream dos = new DicomOutputStream(file)) {
+                dos.writeDataset(attributes.createFileMetaInformation(UID.ExplicitVRLittleEndian), attributes);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Adds the instances one by one. Every third file is added to the series before being available, like a file not
+     * yet in the cache. When the loading is cancelled, it stops at the middle of the series without event.
+     */
+    private static class StandInLoader implements Runnable {
+        private final List<File> files;
+        private final boolean complete;
+        private final MediaSeries<MediaElement> series;
+        private final List<MediaElement> loaded = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean loading = true;
+        private volatile DicomModel model;
+
+        StandInLoader(List<File> files, boolean complete) throws IOException {
+            this.files = files;
+            this.complete = complete;
+            DicomMediaIO reader = new DicomMediaIO(files.get(0));
+            if (!reader.isReadableDicom()) {
+                throw new IOException("Cannot read " + files.get(0)); //$NON-NLS-1$
+            }
+            this.series = reader.getMediaSeries();
+        }
+
+        @Override
+        public void run() {
+            try {
+                int nb = complete ? files.size() : files.size() / 2;
+                for (int i = 0; i < nb; i++) {
+                    File file = files.get(i);
+                    MediaElement media = new DicomMediaIO(file).getMediaElement()[0];
+                    File hidden = new File(file.getPath() + ".part"); //$NON-NLS-1$
+                    boolean late = i % 3 == 0;
+                    if (late) {
+                        assertTrue(file.renameTo(hidden));
+                    }
+                    synchronized (series) {
+                        series.addMedia(media);
+                    }
+                    loaded.add(media);
+                    fire(ObservableEvent.BasicAction.ADD, media);
+                    Thread.sleep(20L);
+                    if (late) {
+                        assertTrue(hidden.renameTo(file));
+                        fire(ObservableEvent.BasicAction.UPDATE, media);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                loading = false;
+                if (complete) {
+                    fire(ObservableEvent.BasicAction.LOADING_STOP, null);
+                }
+            }
+        }
+
+        private void fire(ObservableEvent.BasicAction action, Object value) {
+            model.firePropertyChange(new ObservableEvent(action, model, null, value));
+        }
+    }
+}
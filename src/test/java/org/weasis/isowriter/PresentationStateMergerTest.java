@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.UIDUtils;
+import org.junit.Test;
+
+/**
+ * Merge of the presentation states of single images by {@link PresentationStateMerger}.
+ */
+public class PresentationStateMergerTest {
+
+    private final String prUID = UIDUtils.createUID();
+    private final String seriesUID = UIDUtils.createUID();
+
+    @Test
+    public void emptyList() {
+        assertNull(PresentationStateMerger.merge(null));
+        assertNull(PresentationStateMerger.merge(Collections.emptyList()));
+    }
+
+    @Test
+    public void referenceAllImages() {
+        String image1 = UIDUtils.createUID();
+        String image2 = UIDUtils.createUID();
+        Attributes pr1 = createPresentation(image1, "TEXT1"); //$NON-NLS-1$
+        Attributes pr2 = createPresentation(image2, "TEXT2"); //$NON-NLS-1$
+        // The second image is referenced twice
+        Attributes pr3 = createPresentation(image2, "TEXT3"); //$NON-NLS-1$
+
+        Attributes merged = PresentationStateMerger.merge(Arrays.asList(pr1, pr2, pr3));
+
+        assertEquals(prUID, merged.getString(Tag.SOPInstanceUID));
+        Sequence seriesSeq = merged.getSequence(Tag.ReferencedSeriesSequence);
+        assertEquals(1, seriesSeq.size());
+        assertEquals(seriesUID, seriesSeq.get(0).getString(Tag.SeriesInstanceUID));
+        Sequence images = seriesSeq.get(0).getSequence(Tag.ReferencedImageSequence);
+        assertEquals(2, images.size());
+        assertEquals(image1, images.get(0).getString(Tag.ReferencedSOPInstanceUID));
+        assertEquals(image2, images.get(1).getString(Tag.ReferencedSOPInstanceUID));
+
+        // The layers are defined once
+        assertEquals(1, merged.getSequence(Tag.GraphicLayerSequence).size());
+    }
+
+    @Test
+    public void restrictItemsToTheirImage() {
+        String image1 = UIDUtils.createUID();
+        String image2 = UIDUtils.createUID();
+        Attributes pr1 = createPresentation(image1, "TEXT1"); //$NON-NLS-1$
+        Attributes pr2 = createPresentation(image2, "TEXT2"); //$NON-NLS-1$
+
+        Attributes merged = PresentationStateMerger.merge(Arrays.asList(pr1, pr2));
+
+        Sequence annotations = merged.getSequence(Tag.GraphicAnnotationSequence);
+        assertEquals(2, annotations.size());
+        assertAnnotation(annotations.get(0), "TEXT1", image1); //$NON-NLS-1$
+        assertAnnotation(annotations.get(1), "TEXT2", image2); //$NON-NLS-1$
+
+        Sequence areas = merged.getSequence(Tag.DisplayedAreaSelectionSequence);
+        assertEquals(2, areas.size());
+        assertEquals(image1, areas.get(0).getSequence(Tag.ReferencedImageSequence).get(0)
+            .getString(Tag.ReferencedSOPInstanceUID));
+        assertEquals(image2, areas.get(1).getSequence(Tag.ReferencedImageSequence).get(0)
+            .getString(Tag.ReferencedSOPInstanceUID));
+
+        // The original presentation states are not modified
+        assertNull(pr1.getSequence(Tag.GraphicAnnotationSequence).get(0).getSequence(Tag.ReferencedImageSequence));
+    }
+
+    @Test
+    public void keepExistingReferences() {
+        String image1 = UIDUtils.createUID();
+        Attributes pr = createPresentation(image1, "TEXT1"); //$NON-NLS-1$
+        String other = UIDUtils.createUID();
+        Attributes annotation = pr.getSequence(Tag.GraphicAnnotationSequence).get(0);
+        annotation.newSequence(Tag.ReferencedImageSequence, 1).add(createImageReference(other));
+
+        Attributes merged = PresentationStateMerger.merge(Collections.singletonList(pr));
+
+        Sequence refs = merged.getSequence(Tag.GraphicAnnotationSequence).get(0)
+            .getSequence(Tag.ReferencedImageSequence);
+        assertEquals(1, refs.size());
+        assertEquals(other, refs.get(0).getString(Tag.ReferencedSOPInstanceUID));
+    }
+
+    private static void assertAnnotation(Attributes item, String text, String imageUID) {
+        assertEquals(text,
+            item.getSequence(Tag.TextObjectSequence).get(0).getString(Tag.UnformattedTextValue));
+        Sequence refs = item.getSequence(Tag.ReferencedImageSequence);
+        assertEquals(1, refs.size());
+        assertEquals(imageUID, refs.get(0).getString(Tag.ReferencedSOPInstanceUID));
+    }
+
+    /**
+     * @return the presentation state of a single image, with one annotation and one displayed area
+     */
+    private Attributes createPresentation(String imageUID, String text) {
+        Attributes pr = new Attributes();
+        pr.setString(Tag.SOPClassUID, VR.UI, UID.GrayscaleSoftcopyPresentationStateStorageSOPClass);
+        pr.setString(Tag.SOPInstanceUID, VR.UI, prUID);
+
+        Attributes seriesItem = new Attributes(2);
+        seriesItem.newSequence(Tag.ReferencedImageSequence, 1).add(createImageReference(imageUID));
+        seriesItem.setString(Tag.SeriesInstanceUID, VR.UI, seriesUID);
+        pr.newSequence(Tag.ReferencedSeriesSequence, 1).add(seriesItem);
+
+        Attributes textItem = new Attributes();
+        textItem.setString(Tag.UnformattedTextValue, VR.ST, text);
+        Attributes annotation = new Attributes();
+        annotation.setString(Tag.GraphicLayer, VR.CS, "LAYER"); //$NON-NLS-1$
+        annotation.newSequence(Tag.TextObjectSequence, 1).add(textItem);
+        pr.newSequence(Tag.GraphicAnnotationSequence, 1).add(annotation);
+
+        Attributes area = new Attributes();
+        area.setString(Tag.PresentationSizeMode, VR.CS, "SCALE TO FIT"); //$NON-NLS-1$
+        pr.newSequence(Tag.DisplayedAreaSelectionSequence, 1).add(area);
+
+        Attributes layer = new Attributes();
+        layer.setString(Tag.GraphicLayer, VR.CS, "LAYER"); //$NON-NLS-1$
+        layer.setInt(Tag.GraphicLayerOrder, VR.IS, 1);
+        pr.newSequence(Tag.GraphicLayerSequence, 1).add(layer);
+        return pr;
+    }
+
+    private static Attributes createImageReference(String imageUID) {
+        Attributes image = new Attributes(2);
+        image.setString(Tag.ReferencedSOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        image.setString(Tag.ReferencedSOPInstanceUID, VR.UI, imageUID);
+        return image;
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The image streamed by {@link SequentialStreamHandler} must be the same as the image written in a file.
+ */
+public class SequentialStreamHandlerTest {
+
+    // Fixed date of the files, so both images are identical whenever they are written
+    private static final long CREATION_TIME = 1262304000000L;
+    private static final int SECTOR_SIZE = 2048;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void streamIso9660() throws IOException {
+        assertSameImage(FileSystemType.ISO9660);
+    }
+
+    @Test
+    public void streamUdf() throws IOException {
+        assertSameImage(FileSystemType.UDF);
+    }
+
+    private void assertSameImage(FileSystemType fileSystem) throws IOException {
+        File tree = folder.newFolder("tree"); //$NON-NLS-1$
+        writeTree(tree);
+        ExportOptions options = new ExportOptions();
+        options.setFileSystem(fileSystem);
+        IsoExporter exporter =
+            new IsoExporter(options, new ExportProgress(), ExportLimits.UNLIMITED, folder.newFolder("burn")); //$NON-NLS-1$
+        IsoLayout layout = new IsoLayout(folder.newFolder("layout"), false, CREATION_TIME); //$NON-NLS-1$
+        layout.addTree(tree, ""); //$NON-NLS-1$
+
+        File image = exporter.makeISO(layout, new File(folder.getRoot(), "image.iso"), () -> false); //$NON-NLS-1$
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long size = exporter.makeISO(layout, Channels.newChannel(stream), () -> false);
+
+        assertNotNull(image);
+        byte[] expected = Files.readAllBytes(image.toPath());
+        byte[] actual = stream.toByteArray();
+        assertEquals(expected.length, size);
+        if (fileSystem == FileSystemType.ISO9660) {
+            clearVolumeDates(expected);
+            clearVolumeDates(actual);
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * The ISO 9660 volume descriptors are dated by the library when they are written, independently of the layout.
+     * Clear their dates (creation, modification, expiration and effective) in the descriptors from the sector 16 to
+     * the terminator.
+     */
+    private static void clearVolumeDates(byte[] image) {
+        for (int offset = 16 * SECTOR_SIZE; offset + SECTOR_SIZE <= image.length; offset += SECTOR_SIZE) {
+            int type = image[offset] & 0xff;
+            if (type == 255) {
+                break;
+            }
+            if (type == 1 || type == 2) {
+                Arrays.fill(image, offset + 813, offset + 881, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Files of several sizes: empty, smaller than a sector, several sectors and larger than the buffers of the
+     * handlers.
+     */
+    private static void writeTree(File dir) throws IOException {
+        Random random = new Random(42L);
+        int[] sizes = { 0, 1, 2047, 2048, 2049, 100000, 3 * 1024 * 1024 + 7 };
+        for (int d = 0; d < 3; d++) {
+            File sub = new File(dir, "DIR" + d); //$NON-NLS-1$
+            assertTrue(sub.mkdirs());
+            for (int i = 0; i < sizes.length; i++) {
+                byte[] content = new byte[sizes[i]];
+                random.nextBytes(content);
+                try (OutputStream out = new FileOutputStream(new File(sub, "FILE" + i))) { //$NON-NLS-1$
+                    out.write(content);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.isowriter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che3.util.UIDUtils;
+import org.junit.Test;
+import org.weasis.dicom.codec.DicomSeries;
+
+/**
+ * Distribution of the items of the selection into the volumes by {@link VolumePlanner#plan(List,
+ * java.util.function.ToLongFunction)}.
+ */
+public class VolumePlannerTest {
+
+    private final Map<ExportItem, Long> sizes = new IdentityHashMap<>();
+
+    @Test
+    public void singleVolume() {
+        DicomSeries series = new DicomSeries(UIDUtils.createUID());
+        List<ExportItem> items = Arrays.asList(item("P1", "S1", series, 20L), item("P1", "S1", series, 30L)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+        List<VolumePlanner.Volume> volumes = new VolumePlanner(100L, 10L).plan(items, sizes::get);
+
+        assertEquals(1, volumes.size());
+        assertEquals(1, volumes.get(0).getNumber());
+        assertEquals(60L, volumes.get(0).getSize());
+        assertEquals(items, volumes.get(0).getItems());
+    }
+
+    @Test
+    public void splitPatientIntoStudies() {
+        DicomSeries seriesA = new DicomSeries(UIDUtils.createUID());
+        DicomSeries seriesB = new DicomSeries(UIDUtils.createUID());
+        DicomSeries seriesC = new DicomSeries(UIDUtils.createUID());
+        // The patient P1 (100) does not fit in 90, its studies S1 (60) and S2 (40) are distributed separately
+        ExportItem a1 = item("P1", "S1", seriesA, 20L); //$NON-NLS-1$ //$NON-NLS-2$
+        ExportItem c1 = item("P2", "S3", seriesC, 30L); //$NON-NLS-1$ //$NON-NLS-2$
+        ExportItem b1 = item("P1", "S2", seriesB, 20L); //$NON-NLS-1$ //$NON-NLS-2$
+        ExportItem a2 = item("P1", "S1", seriesA, 20L); //$NON-NLS-1$ //$NON-NLS-2$
+        ExportItem b2 = item("P1", "S2", seriesB, 20L); //$NON-NLS-1$ //$NON-NLS-2$
+        ExportItem a3 = item("P1", "S1", seriesA, 20L); //$NON-NLS-1$ //$NON-NLS-2$
+
+        List<VolumePlanner.Volume> volumes =
+            new VolumePlanner(100L, 10L).plan(Arrays.asList(a1, c1, b1, a2, b2, a3), sizes::get);
+
+        // First fit decreasing: S1 (60), S2 (40) on a new volume, then P2 (30) fills the first volume
+        assertEquals(2, volumes.size());
+        assertEquals(Arrays.asList(a1, c1, a2, a3), volumes.get(0).getItems());
+        assertEquals(100L, volumes.get(0).getSize());
+        assertEquals(Arrays.asList(b1, b2), volumes.get(1).getItems());
+        assertEquals(50L, volumes.get(1).getSize());
+        assertEquals(2, volumes.get(1).getNumber());
+    }
+
+    @Test
+    public void neverSplitSeries() {
+        DicomSeries large = new DicomSeries(UIDUtils.createUID());
+        DicomSeries small = new DicomSeries(UIDUtils.createUID());
+        List<ExportItem> items = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            items.add(item("P1", "S1", large, 40L)); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        ExportItem other = item("P1", "S1", small, 10L); //$NON-NLS-1$ //$NON-NLS-2$
+        items.add(other);
+
+        List<VolumePlanner.Volume> volumes = new VolumePlanner(100L, 10L).plan(items, sizes::get);
+
+        // The series larger than the medium has its own volume
+        assertEquals(2, volumes.size());
+        assertEquals(items.subList(0, 5), volumes.get(0).getItems());
+        assertEquals(210L, volumes.get(0).getSize());
+        assertEquals(Arrays.asList(other), volumes.get(1).getItems());
+    }
+
+    @Test
+    public void emptySelection() {
+        assertEquals(0, new VolumePlanner(100L, 10L).plan(new ArrayList<>(), sizes::get).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityTooSmall() {
+        new VolumePlanner(10L, 10L);
+    }
+
+    @Test
+    public void alignToSector() {
+        assertEquals(0L, VolumePlanner.alignToSector(0L));
+        assertEquals(2048L, VolumePlanner.alignToSector(1L));
+        assertEquals(2048L, VolumePlanner.alignToSector(2048L));
+        assertEquals(4096L, VolumePlanner.alignToSector(2049L));
+    }
+
+    private ExportItem item(String patient, String study, DicomSeries series, long size) {
+        ExportItem item = ExportItem.ofPresentations(patient, study, series);
+        sizes.put(item, size);
+        return item;
+    }
+}